@@ -39,6 +39,7 @@ public final class R {
     public static final class id {
         public static final int device_address=0x7f080000;
         public static final int device_name=0x7f08000a;
+        public static final int device_rssi=0x7f080016;
         public static final int fire_adress=0x7f080005;
         public static final int fire_list=0x7f080004;
         public static final int fire_number=0x7f080006;
@@ -48,9 +49,12 @@ public final class R {
         public static final int last_updated=0x7f080007;
         public static final int list_observed=0x7f08000e;
         public static final int menu_connect=0x7f080010;
+        public static final int menu_connect_gateways=0x7f080017;
         public static final int menu_disconnect=0x7f080011;
+        public static final int menu_metrics=0x7f080015;
         public static final int menu_refresh=0x7f08000f;
         public static final int menu_scan=0x7f080012;
+        public static final int menu_simulate=0x7f080014;
         public static final int menu_stop=0x7f080013;
         public static final int observ_time=0x7f080009;
         public static final int observed_addr=0x7f080008;
@@ -71,14 +75,22 @@ public final class R {
         public static final int gatt_services=0x7f070000;
         public static final int main=0x7f070001;
     }
+    public static final class raw {
+        public static final int company_ids=0x7f090000;
+    }
     public static final class string {
         public static final int addr=0x7f050012;
         public static final int app_name=0x7f050000;
         public static final int ble_not_supported=0x7f050002;
         public static final int connected=0x7f050007;
+        public static final int device_rssi=0x7f05001c;
+        public static final int device_rssi_label=0x7f05001d;
         public static final int disconnected=0x7f050008;
         public static final int empty=0x7f050018;
         public static final int error_bluetooth_not_supported=0x7f05000a;
+        public static final int firestorm_count=0x7f050021;
+        public static final int gateway_count=0x7f05001f;
+        public static final int helena_gateway=0x7f05001e;
         public static final int label_data=0x7f050003;
         public static final int label_device_address=0x7f050004;
         public static final int label_last_seen=0x7f050014;
@@ -87,8 +99,12 @@ public final class R {
         /**  Menu items 
          */
         public static final int menu_connect=0x7f05000e;
+        public static final int menu_connect_gateways=0x7f050020;
         public static final int menu_disconnect=0x7f05000f;
+        public static final int menu_metrics=0x7f05001b;
         public static final int menu_scan=0x7f050010;
+        public static final int menu_simulate_start=0x7f050019;
+        public static final int menu_simulate_stop=0x7f05001a;
         public static final int menu_stop=0x7f050011;
         public static final int no_data=0x7f050006;
         public static final int number=0x7f050013;
@@ -0,0 +1,232 @@
+package edu.stanford.cs.sing.common.event;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Typed publish/subscribe dispatcher.
+ *
+ * <p>Handlers are registered explicitly per event class through {@link #subscribe}, so there is
+ * no annotation scanning and no reflection. Events are matched by their exact class; posting
+ * looks the class up in a map and hands the event to an immutable array of subscribers, so the
+ * post path takes no lock and, for coalesced subscribers, does not allocate.</p>
+ *
+ * <p>Each subscriber chooses where its handler runs: on the thread that posts, on the main
+ * executor, or on the background executor. Queued events are delivered in batches: however many
+ * are posted before the executor gets to a subscriber, they cost a single task and are handled
+ * in posting order. A coalescing subscriber keeps only the latest pending event, for
+ * high-frequency events where only the current state matters.</p>
+ *
+ * <p>The bus does not touch Android classes; on Android the main executor posts to the main
+ * looper. All methods are thread-safe.</p>
+ */
+public final class EventBus {
+
+	/** Handlers run on the posting thread, before {@link #post(Object)} returns. */
+	public static final int POSTING = 0;
+	/** Handlers run on the main executor. */
+	public static final int MAIN = 1;
+	/** Handlers run on the background executor. */
+	public static final int BACKGROUND = 2;
+
+	/**
+	 * Receives events of one type.
+	 */
+	public interface Handler<E> {
+		void onEvent(E event);
+	}
+
+	private static final Subscriber<?>[] NONE = new Subscriber<?>[0];
+
+	private final Executor mMain;
+	private final Executor mBackground;
+	// Event class -> subscribers, replaced as a whole on every change. Guarded by this.
+	private volatile HashMap<Class<?>, Subscriber<?>[]> mSubscribers =
+			new HashMap<Class<?>, Subscriber<?>[]>();
+
+	/**
+	 * @param main runs {@link #MAIN} handlers
+	 * @param background runs {@link #BACKGROUND} handlers
+	 */
+	public EventBus(Executor main, Executor background) {
+		mMain = main;
+		mBackground = background;
+	}
+
+	/**
+	 * Delivers every event of the given class to handler, on the given thread.
+	 *
+	 * @param thread {@link #POSTING}, {@link #MAIN} or {@link #BACKGROUND}
+	 * @return the subscription, to pass to {@link #unsubscribe(Subscription)}
+	 */
+	public <E> Subscription subscribe(Class<E> type, Handler<? super E> handler, int thread) {
+		return add(new Subscriber<E>(type, handler, executor(thread), false));
+	}
+
+	/**
+	 * Like {@link #subscribe}, but only the latest event posted before the handler gets to run
+	 * is delivered. Not available for {@link #POSTING}, which never has pending events.
+	 */
+	public <E> Subscription subscribeCoalesced(Class<E> type, Handler<? super E> handler,
+			int thread) {
+		if (thread == POSTING) {
+			throw new IllegalArgumentException("coalescing needs MAIN or BACKGROUND");
+		}
+		return add(new Subscriber<E>(type, handler, executor(thread), true));
+	}
+
+	/**
+	 * Stops delivery to a subscription, including events already queued for it.
+	 */
+	public synchronized void unsubscribe(Subscription subscription) {
+		final Subscriber<?> subscriber = (Subscriber<?>) subscription;
+		subscriber.mActive = false;
+		final Subscriber<?>[] current = mSubscribers.get(subscriber.mType);
+		if (current == null) {
+			return;
+		}
+		int index = -1;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] == subscriber) {
+				index = i;
+				break;
+			}
+		}
+		if (index < 0) {
+			return;
+		}
+		final HashMap<Class<?>, Subscriber<?>[]> copy =
+				new HashMap<Class<?>, Subscriber<?>[]>(mSubscribers);
+		if (current.length == 1) {
+			copy.remove(subscriber.mType);
+		} else {
+			final Subscriber<?>[] remaining = new Subscriber<?>[current.length - 1];
+			System.arraycopy(current, 0, remaining, 0, index);
+			System.arraycopy(current, index + 1, remaining, index, remaining.length - index);
+			copy.put(subscriber.mType, remaining);
+		}
+		mSubscribers = copy;
+	}
+
+	/**
+	 * Hands event to every subscriber of its class. Safe to call from any thread.
+	 *
+	 * @return false if nobody subscribes to the event's class
+	 */
+	public boolean post(Object event) {
+		final Subscriber<?>[] subscribers = mSubscribers.get(event.getClass());
+		if (subscribers == null) {
+			return false;
+		}
+		for (int i = 0; i < subscribers.length; i++) {
+			subscribers[i].offer(event);
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if anybody subscribes to events of the given class, so posters can skip
+	 *         building events nobody receives
+	 */
+	public boolean hasSubscribers(Class<?> type) {
+		return mSubscribers.containsKey(type);
+	}
+
+	private synchronized Subscription add(Subscriber<?> subscriber) {
+		final Subscriber<?>[] current = mSubscribers.get(subscriber.mType);
+		final Subscriber<?>[] old = current == null ? NONE : current;
+		final Subscriber<?>[] grown = new Subscriber<?>[old.length + 1];
+		System.arraycopy(old, 0, grown, 0, old.length);
+		grown[old.length] = subscriber;
+		final HashMap<Class<?>, Subscriber<?>[]> copy =
+				new HashMap<Class<?>, Subscriber<?>[]>(mSubscribers);
+		copy.put(subscriber.mType, grown);
+		mSubscribers = copy;
+		return subscriber;
+	}
+
+	private Executor executor(int thread) {
+		switch (thread) {
+			case POSTING:
+				return null;
+			case MAIN:
+				return mMain;
+			case BACKGROUND:
+				return mBackground;
+			default:
+				throw new IllegalArgumentException("unknown thread " + thread);
+		}
+	}
+
+	/**
+	 * Handle of one registered handler.
+	 */
+	public interface Subscription {
+	}
+
+	private static final class Subscriber<E> implements Subscription, Runnable {
+		final Class<E> mType;
+		private final Handler<? super E> mHandler;
+		// Null for POSTING.
+		private final Executor mExecutor;
+		private final boolean mCoalesce;
+		volatile boolean mActive = true;
+		// True while a drain task is queued on the executor.
+		private final AtomicBoolean mScheduled = new AtomicBoolean();
+		// Pending events, unused when coalescing.
+		private final ConcurrentLinkedQueue<E> mQueue;
+		// Latest pending event when coalescing.
+		private final AtomicReference<E> mLatest;
+
+		Subscriber(Class<E> type, Handler<? super E> handler, Executor executor,
+				boolean coalesce) {
+			mType = type;
+			mHandler = handler;
+			mExecutor = executor;
+			mCoalesce = coalesce;
+			mQueue = coalesce ? null : new ConcurrentLinkedQueue<E>();
+			mLatest = coalesce ? new AtomicReference<E>() : null;
+		}
+
+		void offer(Object event) {
+			// Only reached for events whose class is exactly mType.
+			final E typed = mType.cast(event);
+			if (mExecutor == null) {
+				if (mActive) {
+					mHandler.onEvent(typed);
+				}
+				return;
+			}
+			if (mCoalesce) {
+				mLatest.set(typed);
+			} else {
+				mQueue.add(typed);
+			}
+			if (mScheduled.compareAndSet(false, true)) {
+				mExecutor.execute(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			// Cleared first: an event offered from here on schedules another run at worst.
+			mScheduled.set(false);
+			if (mCoalesce) {
+				final E event = mLatest.getAndSet(null);
+				if (event != null && mActive) {
+					mHandler.onEvent(event);
+				}
+				return;
+			}
+			E event;
+			while ((event = mQueue.poll()) != null) {
+				if (mActive) {
+					mHandler.onEvent(event);
+				}
+			}
+		}
+	}
+}
@@ -6,7 +6,8 @@ public class ByteWork {
 
 
     /***
-     * returns byte part of a byte array
+     * returns byte part of a byte array. Allocates, prefer the offset based converters
+     * on hot paths.
      * @param bytes byte array
      * @param start starting index of byte array
      * @param end end index of byte array
@@ -14,9 +15,7 @@ public class ByteWork {
      */
     public static byte[] getBytes(byte[] bytes, int start, int end){
         byte[] b = new byte[end-start+1];
-        for(int i=0; start <= end;i++){
-            b[i]=bytes[start++];
-        }
+        System.arraycopy(bytes, start, b, 0, b.length);
         return b;
     }
 
@@ -32,13 +31,36 @@ public class ByteWork {
     public static int convertTwoBytesToInt (byte[] bytes)
     {
         if (bytes.length !=2) throw new AssertionError("Expected 2 bytes");
-        return (bytes[1] << 8) | (bytes[0] & 0xFF);
+        return convertTwoBytesToInt(bytes, 0);
+    }
+
+    /***
+     * Signed little endian 16 bit value read in place, without copying the bytes out
+     * @param bytes byte array
+     * @param offset index of the low byte
+     * @return converted int
+     */
+    public static int convertTwoBytesToInt (byte[] bytes, int offset)
+    {
+        return (bytes[offset + 1] << 8) | (bytes[offset] & 0xFF);
     }
 
     public static int convertFourBytesToInt (byte[] bytes)
     {
         if (bytes.length !=4 ) throw new AssertionError("Expected 4 bytes");
-        return (bytes[3] << 24) | (bytes[2] & 0xFF) << 16 | (bytes[1] & 0xFF) << 8 | (bytes[0] & 0xFF);
+        return convertFourBytesToInt(bytes, 0);
+    }
+
+    /***
+     * Little endian 32 bit value read in place
+     * @param bytes byte array
+     * @param offset index of the lowest byte
+     * @return converted int
+     */
+    public static int convertFourBytesToInt (byte[] bytes, int offset)
+    {
+        return (bytes[offset + 3] << 24) | (bytes[offset + 2] & 0xFF) << 16
+                | (bytes[offset + 1] & 0xFF) << 8 | (bytes[offset] & 0xFF);
     }
 
     /***
@@ -49,7 +71,18 @@ public class ByteWork {
     public static int convertTwoUnsignedBytesToInt (byte[] bytes)
     {
         if (bytes.length != 2) throw new AssertionError("Expected 2 bytes");
-        return (bytes[1] & 0xFF) << 8 | (bytes[0] & 0xFF);
+        return convertTwoUnsignedBytesToInt(bytes, 0);
+    }
+
+    /***
+     * Convert two unsigned bytes at offset to int, Litle Endian
+     * @param bytes byte array
+     * @param offset index of the low byte
+     * @return converted int
+     */
+    public static int convertTwoUnsignedBytesToInt (byte[] bytes, int offset)
+    {
+        return (bytes[offset + 1] & 0xFF) << 8 | (bytes[offset] & 0xFF);
     }
 
     /***
@@ -60,7 +93,19 @@ public class ByteWork {
     public static long convertFourUnsignedBytesToLong (byte[] bytes)
     {
         if (bytes.length !=4) throw new AssertionError("Expected 4 bytes");
-        return (long) (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+        return convertFourUnsignedBytesToLong(bytes, 0);
+    }
+
+    /***
+     * Convert 4 unsigned bytes at offset to long, Big Endian
+     * @param bytes byte array
+     * @param offset index of the highest byte
+     * @return converted long
+     */
+    public static long convertFourUnsignedBytesToLong (byte[] bytes, int offset)
+    {
+        return (long) (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8 | (bytes[offset + 3] & 0xFF);
     }
 
 }
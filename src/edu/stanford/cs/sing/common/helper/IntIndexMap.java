@@ -0,0 +1,151 @@
+package edu.stanford.cs.sing.common.helper;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from int keys to non-negative int values, typically positions in
+ * a list. Lookups and inserts are O(1) and nothing is boxed.
+ *
+ * <p>Uses linear probing over power-of-two tables kept at most half full; removal shifts the
+ * following entries back so no tombstones are left behind. Not thread-safe.</p>
+ */
+public class IntIndexMap {
+
+	/** Returned by {@link #get(int)} when the key is absent. */
+	public static final int MISSING = -1;
+
+	private static final int MIN_CAPACITY = 16;
+
+	private int[] mKeys;
+	// Value + 1 for each slot, 0 marks an empty slot.
+	private int[] mValues;
+	private int mMask;
+	private int mSize;
+
+	public IntIndexMap() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize number of entries to size the table for
+	 */
+	public IntIndexMap(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		mKeys = new int[capacity];
+		mValues = new int[capacity];
+		mMask = capacity - 1;
+	}
+
+	private int slot(int key) {
+		final int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mMask;
+	}
+
+	/**
+	 * @return the value stored for key, or {@link #MISSING}
+	 */
+	public int get(int key) {
+		for (int i = slot(key); mValues[i] != 0; i = (i + 1) & mMask) {
+			if (mKeys[i] == key) {
+				return mValues[i] - 1;
+			}
+		}
+		return MISSING;
+	}
+
+	public boolean containsKey(int key) {
+		return get(key) != MISSING;
+	}
+
+	/**
+	 * Associates value with key, replacing any previous value.
+	 *
+	 * @param value non-negative value
+	 */
+	public void put(int key, int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("value must be non-negative: " + value);
+		}
+		int i = slot(key);
+		while (mValues[i] != 0) {
+			if (mKeys[i] == key) {
+				mValues[i] = value + 1;
+				return;
+			}
+			i = (i + 1) & mMask;
+		}
+		mKeys[i] = key;
+		mValues[i] = value + 1;
+		if (++mSize * 2 > mValues.length) {
+			rehash(mValues.length << 1);
+		}
+	}
+
+	/**
+	 * @return the value that was stored for key, or {@link #MISSING}
+	 */
+	public int remove(int key) {
+		int i = slot(key);
+		while (mValues[i] != 0) {
+			if (mKeys[i] == key) {
+				final int value = mValues[i] - 1;
+				shiftBack(i);
+				mSize--;
+				return value;
+			}
+			i = (i + 1) & mMask;
+		}
+		return MISSING;
+	}
+
+	// Closes the gap at slot by moving back entries whose probe chain runs through it.
+	private void shiftBack(int gap) {
+		int i = gap;
+		while (true) {
+			i = (i + 1) & mMask;
+			if (mValues[i] == 0) {
+				break;
+			}
+			final int home = slot(mKeys[i]);
+			// Move the entry if its home slot is not in the cyclic range (gap, i].
+			if (((i - home) & mMask) >= ((i - gap) & mMask)) {
+				mKeys[gap] = mKeys[i];
+				mValues[gap] = mValues[i];
+				gap = i;
+			}
+		}
+		mValues[gap] = 0;
+	}
+
+	private void rehash(int capacity) {
+		final int[] keys = mKeys;
+		final int[] values = mValues;
+		allocate(capacity);
+		for (int j = 0; j < values.length; j++) {
+			if (values[j] != 0) {
+				int i = slot(keys[j]);
+				while (mValues[i] != 0) {
+					i = (i + 1) & mMask;
+				}
+				mKeys[i] = keys[j];
+				mValues[i] = values[j];
+			}
+		}
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public void clear() {
+		Arrays.fill(mValues, 0);
+		mSize = 0;
+	}
+}
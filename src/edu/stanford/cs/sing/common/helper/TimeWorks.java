@@ -1,13 +1,37 @@
 package edu.stanford.cs.sing.common.helper;
 
 import java.sql.Timestamp;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.TimeZone;
 
 import android.text.format.Time;
 
 public class TimeWorks {
 
+	/** Number of chars written by {@link #formatTime(long, char[], int)}. */
+	public static final int TIME_LENGTH = 8;
+
+	// Formatted text of the current second, published as one immutable object so readers
+	// never need to synchronize.
+	private static volatile CachedSecond sCachedSecond;
+	private static volatile TimeZone sZone = TimeZone.getDefault();
+
+	private static final ThreadLocal<char[]> sBuffer = new ThreadLocal<char[]>() {
+		@Override
+		protected char[] initialValue() {
+			return new char[TIME_LENGTH];
+		}
+	};
+
+	private static final class CachedSecond {
+		final long second;
+		final String text;
+
+		CachedSecond(long second, String text) {
+			this.second = second;
+			this.text = text;
+		}
+	}
+
 	public static String timestampToString(Timestamp timestamp , String format) {
 		Time today = new Time(Time.getCurrentTimezone());
 		today.set(timestamp.getTime());
@@ -15,20 +39,70 @@ public class TimeWorks {
 	}
 
 	/**
-	 * 
+	 * The string for the current second is cached, so repeated calls within the same second
+	 * return the same instance without allocating.
+	 *
 	 * @return HH:mm:ss formate date as string
 	 */
 	public static String getCurrentTimeStamp(){
-	    try {
+		final long now = System.currentTimeMillis();
+		final long second = now / 1000;
+		final CachedSecond cached = sCachedSecond;
+		if(cached != null && cached.second == second){
+			return cached.text;
+		}
+		// A new second, pick up time zone changes while we are off the fast path.
+		sZone = TimeZone.getDefault();
+		final String text = format(now);
+		sCachedSecond = new CachedSecond(second, text);
+		return text;
+	}
 
-	        SimpleDateFormat dateFormat = new SimpleDateFormat("HH:mm:ss");
-	        String currentTimeStamp = dateFormat.format(new Date()); // Find todays date
+	/**
+	 * Formats a time as HH:mm:ss, reusing the cached string when it falls in the current
+	 * second.
+	 *
+	 * @param millis time in milliseconds since the epoch
+	 * @return HH:mm:ss formate time as string
+	 */
+	public static String formatTime(long millis){
+		final CachedSecond cached = sCachedSecond;
+		if(cached != null && cached.second == millis / 1000){
+			return cached.text;
+		}
+		return format(millis);
+	}
+
+	private static String format(long millis){
+		final char[] buffer = sBuffer.get();
+		formatTime(millis, buffer, 0);
+		return new String(buffer);
+	}
 
-	        return currentTimeStamp;
-	    } catch (Exception e) {
-	        e.printStackTrace();
+	/**
+	 * Writes a time as HH:mm:ss into dst without allocating.
+	 *
+	 * @param millis time in milliseconds since the epoch
+	 * @param dst buffer with room for {@link #TIME_LENGTH} chars from offset
+	 * @param offset where to start writing
+	 * @return offset just past the written chars
+	 */
+	public static int formatTime(long millis, char[] dst, int offset){
+		final long local = millis + sZone.getOffset(millis);
+		int secondOfDay = (int) ((local / 1000) % 86400);
+		if(secondOfDay < 0){
+			secondOfDay += 86400;
+		}
+		offset = twoDigits(secondOfDay / 3600, dst, offset);
+		dst[offset++] = ':';
+		offset = twoDigits(secondOfDay / 60 % 60, dst, offset);
+		dst[offset++] = ':';
+		return twoDigits(secondOfDay % 60, dst, offset);
+	}
 
-	        return null;
-	    }
+	private static int twoDigits(int value, char[] dst, int offset){
+		dst[offset] = (char) ('0' + value / 10);
+		dst[offset + 1] = (char) ('0' + value % 10);
+		return offset + 2;
 	}
 }
@@ -0,0 +1,242 @@
+package edu.stanford.cs.sing.common.logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link LogNode} front end that hands records to the rest of the chain on a background
+ * thread, so logging never blocks the caller. Templated records keep their primitive
+ * arguments; they reach a {@link StructuredLogNode} next in the chain as they are, and are
+ * formatted on the background thread for any other node.
+ *
+ * <p>Records go into a preallocated bounded ring that any number of threads may write to
+ * (Vyukov's array queue). A single consumer thread takes them out and passes them to the next
+ * node. When the ring is full the new record is dropped and counted; the consumer then reports
+ * the number of dropped records to the next node as a warning.</p>
+ */
+public class AsyncLogNode implements StructuredLogNode {
+
+    private static final String TAG = "AsyncLogNode";
+    public static final int DEFAULT_CAPACITY = 1024;
+    // Upper bound on how long a missed wake-up can delay the consumer.
+    private static final long IDLE_PARK_NANOS = 100 * 1000 * 1000;
+    // Argument count of a plain message record.
+    private static final int PLAIN = -1;
+
+    private final int mMask;
+    // Per slot: index + 1 once a record is published, index + capacity once it is consumed.
+    private final AtomicLongArray mSequence;
+    private final int[] mPriority;
+    private final String[] mTag;
+    private final String[] mMsg;
+    private final Throwable[] mThrowable;
+    private final long[] mArg1;
+    private final long[] mArg2;
+    private final int[] mArgCount;
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    // Consumer only.
+    private long mHead;
+    private long mReportedDrops;
+
+    private final Thread mConsumer;
+    private volatile boolean mConsumerIdle;
+    private volatile boolean mRunning = true;
+
+    // The next LogNode in the chain, only called from the consumer thread.
+    private volatile LogNode mNext;
+
+    public AsyncLogNode(LogNode next) {
+        this(next, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param next node receiving the records on the consumer thread
+     * @param capacity number of records the ring holds, rounded up to a power of two
+     */
+    public AsyncLogNode(LogNode next, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mSequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequence.set(i, i);
+        }
+        mPriority = new int[size];
+        mTag = new String[size];
+        mMsg = new String[size];
+        mThrowable = new Throwable[size];
+        mArg1 = new long[size];
+        mArg2 = new long[size];
+        mArgCount = new int[size];
+        mNext = next;
+
+        mConsumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, TAG);
+        mConsumer.setDaemon(true);
+        mConsumer.setPriority(Thread.MIN_PRIORITY);
+        mConsumer.start();
+    }
+
+    /**
+     * Queues the record and returns right away. Safe to call from any thread.
+     */
+    @Override
+    public void println(int priority, String tag, String msg, Throwable tr) {
+        final long pos = claim();
+        if (pos < 0) {
+            return;
+        }
+        final int slot = (int) pos & mMask;
+        mPriority[slot] = priority;
+        mTag[slot] = tag;
+        mMsg[slot] = msg;
+        mThrowable[slot] = tr;
+        mArgCount[slot] = PLAIN;
+        publish(pos);
+    }
+
+    /**
+     * Queues the template and its arguments unformatted and returns right away. Safe to call
+     * from any thread.
+     */
+    @Override
+    public void println(int priority, String tag, String template, long arg1, long arg2,
+            int argCount) {
+        final long pos = claim();
+        if (pos < 0) {
+            return;
+        }
+        final int slot = (int) pos & mMask;
+        mPriority[slot] = priority;
+        mTag[slot] = tag;
+        mMsg[slot] = template;
+        mArg1[slot] = arg1;
+        mArg2[slot] = arg2;
+        mArgCount[slot] = argCount;
+        publish(pos);
+    }
+
+    // Reserves the next slot, returns its position or -1 if the ring is full.
+    private long claim() {
+        long pos = mTail.get();
+        while (true) {
+            final long diff = mSequence.get((int) pos & mMask) - pos;
+            if (diff == 0) {
+                if (mTail.compareAndSet(pos, pos + 1)) {
+                    return pos;
+                }
+                pos = mTail.get();
+            } else if (diff < 0) {
+                // Full: drop the newest record rather than wait for the consumer.
+                mDropped.incrementAndGet();
+                return -1;
+            } else {
+                pos = mTail.get();
+            }
+        }
+    }
+
+    private void publish(long pos) {
+        mSequence.set((int) pos & mMask, pos + 1);
+        if (mConsumerIdle) {
+            mConsumerIdle = false;
+            LockSupport.unpark(mConsumer);
+        }
+    }
+
+    private void consume() {
+        while (mRunning) {
+            if (!consumeOne()) {
+                reportDrops();
+                mConsumerIdle = true;
+                // Re-check after announcing, a producer may have published in between.
+                if (!consumeOne()) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                mConsumerIdle = false;
+            }
+        }
+    }
+
+    // Passes the oldest record on, returns false if there was none.
+    private boolean consumeOne() {
+        final int slot = (int) mHead & mMask;
+        if (mSequence.get(slot) != mHead + 1) {
+            return false;
+        }
+        final int priority = mPriority[slot];
+        final String tag = mTag[slot];
+        final String msg = mMsg[slot];
+        final Throwable tr = mThrowable[slot];
+        final long arg1 = mArg1[slot];
+        final long arg2 = mArg2[slot];
+        final int argCount = mArgCount[slot];
+        mTag[slot] = null;
+        mMsg[slot] = null;
+        mThrowable[slot] = null;
+        mSequence.lazySet(slot, mHead + mMask + 1);
+        mHead++;
+        final LogNode next = mNext;
+        if (next != null) {
+            try {
+                if (argCount == PLAIN) {
+                    next.println(priority, tag, msg, tr);
+                } else if (next instanceof StructuredLogNode) {
+                    ((StructuredLogNode) next).println(priority, tag, msg, arg1, arg2, argCount);
+                } else {
+                    final StringBuilder sb = new StringBuilder(msg.length() + 16);
+                    LogTemplate.expand(sb, msg, arg1, arg2, argCount);
+                    next.println(priority, tag, sb.toString(), null);
+                }
+            } catch (RuntimeException e) {
+                // A broken node must not take the logging thread down with it.
+                android.util.Log.e(TAG, "Log node failed", e);
+            }
+        }
+        return true;
+    }
+
+    private void reportDrops() {
+        final long dropped = mDropped.get();
+        final LogNode next = mNext;
+        if (dropped != mReportedDrops && next != null) {
+            next.println(Log.WARN, TAG, "Dropped " + (dropped - mReportedDrops)
+                    + " log records, queue full", null);
+            mReportedDrops = dropped;
+        }
+    }
+
+    /**
+     * Stops the consumer thread. Records still queued are discarded.
+     */
+    public void shutdown() {
+        mRunning = false;
+        LockSupport.unpark(mConsumer);
+    }
+
+    /**
+     * @return number of records dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    public LogNode getNext() {
+        return mNext;
+    }
+
+    public void setNext(LogNode node) {
+        mNext = node;
+    }
+}
@@ -0,0 +1,367 @@
+package edu.stanford.cs.sing.common.logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * {@link StructuredLogNode} that records log calls as fixed-size binary records in a
+ * memory-mapped ring file instead of formatting them. Formatting is left to
+ * BinaryLogDecoder in the test project, which turns the file back into text.
+ *
+ * <p>Tags and templates come from a bounded set in the code; they are stored once in a
+ * dictionary file next to the log, named after it with a ".dict" suffix, and records refer to
+ * them by id. The text of plain messages and Throwables is unbounded, so it goes into a text
+ * ring after the records instead, and the record refers to its position there. The record ring
+ * keeps the newest {@code capacity} records and survives restarts; sequence numbers give the
+ * order. Text overwritten by newer text is lost while its record may remain.</p>
+ *
+ * <p>Records at or above the forward level are also formatted and passed to the next node,
+ * e.g. to keep warnings in logcat while everything is traced to the file. Writing a new tag or
+ * template to the dictionary is synchronous file I/O, so put the node behind an
+ * {@link AsyncLogNode}.</p>
+ */
+public class BinaryLogNode implements StructuredLogNode {
+
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    static final int MAGIC = 0x484C4F47; // "HLOG"
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 40;
+    static final String DICTIONARY_SUFFIX = ".dict";
+
+    // Header layout after magic, version, record size and capacity.
+    static final int OFF_TEXT_SIZE = 16;
+    static final int OFF_TEXT_POSITION = 24;
+    // Bytes of text ring per record; messages are stored as UTF-16 chars.
+    static final int TEXT_BYTES_PER_RECORD = 32;
+    // Longer message texts are cut.
+    static final int MAX_TEXT_CHARS = 4096;
+
+    // Record layout; the sequence number is written last and 0 marks an empty slot.
+    static final int OFF_TIME = 0;
+    static final int OFF_TAG = 8;
+    static final int OFF_TEMPLATE = 12;
+    static final int OFF_ARG1 = 16;
+    static final int OFF_ARG2 = 24;
+    static final int OFF_PRIORITY = 32;
+    static final int OFF_ARG_COUNT = 33;
+    static final int OFF_FLAGS = 34;
+    static final int OFF_SEQUENCE = 36;
+
+    /**
+     * Flag: the message is in the text ring, arg1 holds its byte position counted from the
+     * start of the log and arg2 its length in chars. A Throwable's description follows the
+     * message on its own line.
+     */
+    static final int FLAG_TEXT = 1;
+
+    /** Dictionary id used once the dictionary is full. */
+    static final int NOT_STORED = 0;
+    private static final int MAX_DICTIONARY_SIZE = 16 * 1024;
+
+    private final int mCapacity;
+    private final int mTextBase;
+    private final int mTextSize;
+    // Bytes of text written since the log was created.
+    private long mTextPosition;
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final HashMap<String, Integer> mDictionary = new HashMap<String, Integer>();
+    private final Writer mDictionaryWriter;
+    private int mNextSlot;
+    private int mSequence;
+    private boolean mClosed;
+
+    private volatile int mForwardLevel = Log.NONE;
+    // The next LogNode in the chain.
+    private volatile LogNode mNext;
+
+    public BinaryLogNode(File file) throws IOException {
+        this(file, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Opens or creates the log file. An existing file with a different capacity or format is
+     * started over.
+     *
+     * @param file log file, the dictionary is kept next to it
+     * @param capacity number of records kept
+     */
+    public BinaryLogNode(File file, int capacity) throws IOException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mCapacity = capacity;
+        mTextBase = HEADER_SIZE + capacity * RECORD_SIZE;
+        mTextSize = capacity * TEXT_BYTES_PER_RECORD;
+        final File dictionary = dictionaryFile(file);
+        final long size = (long) mTextBase + mTextSize;
+        mFile = new RandomAccessFile(file, "rw");
+        final boolean fresh = mFile.length() != size || !readHeader(capacity)
+                || !readDictionary(dictionary);
+        if (fresh) {
+            // Truncating lets the file system hand back zeroed pages, rather than writing
+            // every byte of the mapping.
+            mFile.setLength(0);
+            mFile.setLength(size);
+        }
+        mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (fresh) {
+            mDictionary.clear();
+            dictionary.delete();
+            mBuffer.putInt(0, MAGIC);
+            mBuffer.putInt(4, VERSION);
+            mBuffer.putInt(8, RECORD_SIZE);
+            mBuffer.putInt(12, capacity);
+            mBuffer.putInt(OFF_TEXT_SIZE, mTextSize);
+        } else {
+            recoverPosition();
+            mTextPosition = mBuffer.getLong(OFF_TEXT_POSITION);
+        }
+        mDictionaryWriter = new OutputStreamWriter(new FileOutputStream(dictionary, true), "UTF-8");
+    }
+
+    static File dictionaryFile(File log) {
+        return new File(log.getPath() + DICTIONARY_SUFFIX);
+    }
+
+    // True if the file starts with the header this node would write.
+    private boolean readHeader(int capacity) throws IOException {
+        mFile.seek(0);
+        return mFile.readInt() == MAGIC && mFile.readInt() == VERSION
+                && mFile.readInt() == RECORD_SIZE && mFile.readInt() == capacity
+                && mFile.readInt() == mTextSize;
+    }
+
+    // Loads existing ids so new records keep using them. False if the file is unreadable.
+    private boolean readDictionary(File dictionary) {
+        try {
+            final BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(dictionary), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final int tab = line.indexOf('\t');
+                    if (tab > 0) {
+                        mDictionary.put(unescape(line.substring(tab + 1)),
+                                Integer.valueOf(line.substring(0, tab)));
+                    }
+                }
+                return true;
+            } finally {
+                reader.close();
+            }
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            return false;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // Continues after the record with the highest sequence number.
+    private void recoverPosition() {
+        int newest = -1;
+        for (int slot = 0; slot < mCapacity; slot++) {
+            final int sequence = mBuffer.getInt(offset(slot) + OFF_SEQUENCE);
+            if (sequence != 0 && (newest < 0 || sequence - mSequence > 0)) {
+                newest = slot;
+                mSequence = sequence;
+            }
+        }
+        mNextSlot = newest < 0 ? 0 : (newest + 1) % mCapacity;
+    }
+
+    /**
+     * Records at or above this priority are also formatted and passed to the next node.
+     * Defaults to {@link Log#NONE}, which forwards everything.
+     */
+    public void setForwardLevel(int level) {
+        mForwardLevel = level;
+    }
+
+    public LogNode getNext() {
+        return mNext;
+    }
+
+    public void setNext(LogNode node) {
+        mNext = node;
+    }
+
+    @Override
+    public void println(int priority, String tag, String template, long arg1, long arg2,
+            int argCount) {
+        synchronized (this) {
+            write(priority, tag, template, arg1, arg2, argCount, 0);
+        }
+        final LogNode next = mNext;
+        if (next != null && priority >= mForwardLevel) {
+            final StringBuilder sb = new StringBuilder(template.length() + 16);
+            LogTemplate.expand(sb, template, arg1, arg2, argCount);
+            next.println(priority, tag, sb.toString(), null);
+        }
+    }
+
+    @Override
+    public void println(int priority, String tag, String msg, Throwable tr) {
+        synchronized (this) {
+            if (!mClosed) {
+                final long position = mTextPosition;
+                final int length = writeText(msg, tr);
+                write(priority, tag, null, position, length, 0, FLAG_TEXT);
+            }
+        }
+        final LogNode next = mNext;
+        if (next != null && priority >= mForwardLevel) {
+            next.println(priority, tag, msg, tr);
+        }
+    }
+
+    private void write(int priority, String tag, String template, long arg1, long arg2,
+            int argCount, int flags) {
+        if (mClosed) {
+            return;
+        }
+        final int tagId = intern(tag);
+        final int templateId = template == null ? NOT_STORED : intern(template);
+        final int base = offset(mNextSlot);
+        // Invalidate the slot first so a half-overwritten record is never read as valid.
+        mBuffer.putInt(base + OFF_SEQUENCE, 0);
+        mBuffer.putLong(base + OFF_TIME, System.currentTimeMillis());
+        mBuffer.putInt(base + OFF_TAG, tagId);
+        mBuffer.putInt(base + OFF_TEMPLATE, templateId);
+        mBuffer.putLong(base + OFF_ARG1, arg1);
+        mBuffer.putLong(base + OFF_ARG2, arg2);
+        mBuffer.put(base + OFF_PRIORITY, (byte) priority);
+        mBuffer.put(base + OFF_ARG_COUNT, (byte) argCount);
+        mBuffer.put(base + OFF_FLAGS, (byte) flags);
+        if (++mSequence == 0) {
+            mSequence = 1;
+        }
+        mBuffer.putInt(base + OFF_SEQUENCE, mSequence);
+        mNextSlot = (mNextSlot + 1) % mCapacity;
+    }
+
+    // Appends msg and the description of tr to the text ring, returns the number of chars.
+    private int writeText(String msg, Throwable tr) {
+        int length = 0;
+        if (msg != null) {
+            length = putChars(msg, length);
+        }
+        if (tr != null) {
+            if (msg != null) {
+                length = putChars("\n", length);
+            }
+            length = putChars(tr.toString(), length);
+        }
+        mTextPosition += 2L * length;
+        mBuffer.putLong(OFF_TEXT_POSITION, mTextPosition);
+        return length;
+    }
+
+    // Writes s after the length chars already written for the current message.
+    private int putChars(String s, int length) {
+        final int end = Math.min(s.length(), Math.min(MAX_TEXT_CHARS, mTextSize / 2) - length);
+        long position = mTextPosition + 2L * length;
+        for (int i = 0; i < end; i++) {
+            mBuffer.putChar(mTextBase + (int) (position % mTextSize), s.charAt(i));
+            position += 2;
+        }
+        return length + Math.max(0, end);
+    }
+
+    // Returns the dictionary id of s, adding it on first use.
+    private int intern(String s) {
+        final String key = s == null ? "" : s;
+        final Integer id = mDictionary.get(key);
+        if (id != null) {
+            return id;
+        }
+        if (mDictionary.size() >= MAX_DICTIONARY_SIZE) {
+            return NOT_STORED;
+        }
+        final int newId = mDictionary.size() + 1;
+        try {
+            mDictionaryWriter.write(newId + "\t" + escape(key) + "\n");
+            mDictionaryWriter.flush();
+        } catch (IOException e) {
+            return NOT_STORED;
+        }
+        mDictionary.put(key, newId);
+        return newId;
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    /**
+     * Forces recorded data to the storage device.
+     */
+    public synchronized void flush() {
+        if (!mClosed) {
+            mBuffer.force();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mBuffer.force();
+        mFile.close();
+        mDictionaryWriter.close();
+    }
+
+    static String escape(String s) {
+        final StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    static String unescape(String s) {
+        final StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c != '\\' || i + 1 == s.length()) {
+                sb.append(c);
+                continue;
+            }
+            final char e = s.charAt(++i);
+            sb.append(e == 'n' ? '\n' : e == 'r' ? '\r' : e == 't' ? '\t' : e);
+        }
+        return sb.toString();
+    }
+}
@@ -15,6 +15,10 @@
  */
 package edu.stanford.cs.sing.common.logger;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Helper class for a list (or tree) of LoggerNodes.
  *
@@ -34,8 +38,8 @@ public class Log {
     public static final int ERROR = android.util.Log.ERROR;
     public static final int ASSERT = android.util.Log.ASSERT;
 
-    // Stores the beginning of the LogNode topology.
-    private static LogNode mLogNode;
+    // Stores the beginning of the LogNode topology. Set on one thread, read on all others.
+    private static volatile LogNode mLogNode;
 
     /**
      * Returns the next LogNode in the linked list.
@@ -51,6 +55,47 @@ public class Log {
         mLogNode = node;
     }
 
+    // Lowest priority passed on to the LogNode, unless overridden for the tag.
+    private static volatile int mMinLevel = VERBOSE;
+    // Copy-on-write, so isLoggable never locks.
+    private static volatile Map<String, Integer> mTagLevels = Collections.emptyMap();
+
+    /**
+     * Sets the lowest priority that is passed on to the LogNode, for tags without a level of
+     * their own. Use {@link #NONE} to pass everything, ASSERT + 1 to pass nothing.
+     */
+    public static void setMinLevel(int level) {
+        mMinLevel = level;
+    }
+
+    /**
+     * Sets the lowest priority passed on for one tag, overriding the global level.
+     *
+     * @param level minimum priority, or {@link #NONE} to fall back to the global level
+     */
+    public static synchronized void setMinLevel(String tag, int level) {
+        final Map<String, Integer> levels = new HashMap<String, Integer>(mTagLevels);
+        if (level == NONE) {
+            levels.remove(tag);
+        } else {
+            levels.put(tag, level);
+        }
+        mTagLevels = levels;
+    }
+
+    /**
+     * Returns true if a message with this priority and tag would reach a LogNode. Cheap enough
+     * to guard any work done only to build a log message.
+     */
+    public static boolean isLoggable(int priority, String tag) {
+        if (mLogNode == null) {
+            return false;
+        }
+        final Map<String, Integer> levels = mTagLevels;
+        final Integer level = levels.isEmpty() || tag == null ? null : levels.get(tag);
+        return priority >= (level != null ? level : mMinLevel);
+    }
+
     /**
      * Instructs the LogNode to print the log data provided. Other LogNodes can
      * be chained to the end of the LogNode as desired.
@@ -62,8 +107,34 @@ public class Log {
      *           to extract and print useful information.
      */
     public static void println(int priority, String tag, String msg, Throwable tr) {
-        if (mLogNode != null) {
-            mLogNode.println(priority, tag, msg, tr);
+        final LogNode node = mLogNode;
+        if (node != null && isLoggable(priority, tag)) {
+            node.println(priority, tag, msg, tr);
+        }
+    }
+
+    /**
+     * Prints template with each "{}" replaced by the next argument. The message is only built
+     * when the priority is loggable for the tag.
+     */
+    private static void printf(int priority, String tag, String template, Object arg1,
+            Object arg2, int argCount) {
+        if (!isLoggable(priority, tag)) {
+            return;
+        }
+        final StringBuilder sb = new StringBuilder(template.length() + 16);
+        LogTemplate.expand(sb, template, arg1, arg2, argCount);
+        println(priority, tag, sb.toString(), null);
+    }
+
+    // Primitive arguments reach a StructuredLogNode unformatted. Callers check isLoggable.
+    private static void printf(int priority, String tag, String template, long arg1,
+            long arg2, int argCount) {
+        final LogNode node = mLogNode;
+        if (node instanceof StructuredLogNode) {
+            ((StructuredLogNode) node).println(priority, tag, template, arg1, arg2, argCount);
+        } else {
+            printf(priority, tag, template, (Object) arg1, (Object) arg2, argCount);
         }
     }
 
@@ -233,4 +304,136 @@ public class Log {
     public static void wtf(String tag, Throwable tr) {
         wtf(tag, null, tr);
     }
+
+    /**
+     * Prints a message at VERBOSE priority, with each "{}" in template replaced by the
+     * next argument. Nothing is allocated unless VERBOSE is loggable for the tag.
+     */
+    public static void v(String tag, String template, long arg) {
+        if (isLoggable(VERBOSE, tag)) {
+            printf(VERBOSE, tag, template, arg, 0, 1);
+        }
+    }
+
+    public static void v(String tag, String template, long arg1, long arg2) {
+        if (isLoggable(VERBOSE, tag)) {
+            printf(VERBOSE, tag, template, arg1, arg2, 2);
+        }
+    }
+
+    public static void v(String tag, String template, Object arg) {
+        printf(VERBOSE, tag, template, arg, null, 1);
+    }
+
+    public static void v(String tag, String template, Object arg1, Object arg2) {
+        printf(VERBOSE, tag, template, arg1, arg2, 2);
+    }
+
+    /**
+     * Prints a message at DEBUG priority, with each "{}" in template replaced by the
+     * next argument. Nothing is allocated unless DEBUG is loggable for the tag.
+     */
+    public static void d(String tag, String template, long arg) {
+        if (isLoggable(DEBUG, tag)) {
+            printf(DEBUG, tag, template, arg, 0, 1);
+        }
+    }
+
+    public static void d(String tag, String template, long arg1, long arg2) {
+        if (isLoggable(DEBUG, tag)) {
+            printf(DEBUG, tag, template, arg1, arg2, 2);
+        }
+    }
+
+    public static void d(String tag, String template, Object arg) {
+        printf(DEBUG, tag, template, arg, null, 1);
+    }
+
+    public static void d(String tag, String template, Object arg1, Object arg2) {
+        printf(DEBUG, tag, template, arg1, arg2, 2);
+    }
+
+    /**
+     * Prints a message at INFO priority, with each "{}" in template replaced by the
+     * next argument. Nothing is allocated unless INFO is loggable for the tag.
+     */
+    public static void i(String tag, String template, long arg) {
+        if (isLoggable(INFO, tag)) {
+            printf(INFO, tag, template, arg, 0, 1);
+        }
+    }
+
+    public static void i(String tag, String template, long arg1, long arg2) {
+        if (isLoggable(INFO, tag)) {
+            printf(INFO, tag, template, arg1, arg2, 2);
+        }
+    }
+
+    public static void i(String tag, String template, Object arg) {
+        printf(INFO, tag, template, arg, null, 1);
+    }
+
+    public static void i(String tag, String template, Object arg1, Object arg2) {
+        printf(INFO, tag, template, arg1, arg2, 2);
+    }
+
+    /**
+     * Prints a message at WARN priority, with each "{}" in template replaced by the
+     * next argument. Nothing is allocated unless WARN is loggable for the tag.
+     */
+    public static void w(String tag, String template, long arg) {
+        if (isLoggable(WARN, tag)) {
+            printf(WARN, tag, template, arg, 0, 1);
+        }
+    }
+
+    public static void w(String tag, String template, long arg1, long arg2) {
+        if (isLoggable(WARN, tag)) {
+            printf(WARN, tag, template, arg1, arg2, 2);
+        }
+    }
+
+    public static void w(String tag, String template, Object arg) {
+        printf(WARN, tag, template, arg, null, 1);
+    }
+
+    public static void w(String tag, String template, Object arg1, Object arg2) {
+        printf(WARN, tag, template, arg1, arg2, 2);
+    }
+
+    /**
+     * Prints a message at ERROR priority, with each "{}" in template replaced by the
+     * next argument. Nothing is allocated unless ERROR is loggable for the tag.
+     */
+    public static void e(String tag, String template, long arg) {
+        if (isLoggable(ERROR, tag)) {
+            printf(ERROR, tag, template, arg, 0, 1);
+        }
+    }
+
+    public static void e(String tag, String template, long arg1, long arg2) {
+        if (isLoggable(ERROR, tag)) {
+            printf(ERROR, tag, template, arg1, arg2, 2);
+        }
+    }
+
+    public static void e(String tag, String template, Object arg) {
+        printf(ERROR, tag, template, arg, null, 1);
+    }
+
+    public static void e(String tag, String template, Object arg1, Object arg2) {
+        printf(ERROR, tag, template, arg1, arg2, 2);
+    }
+
+    /**
+     * Prints a message at ERROR priority with the stack trace of tr, with the "{}" in template
+     * replaced by arg.
+     */
+    public static void e(String tag, String template, long arg, Throwable tr) {
+        if (isLoggable(ERROR, tag)) {
+            final StringBuilder sb = new StringBuilder(template.length() + 16);
+            LogTemplate.expand(sb, template, arg, null, 1);
+            println(ERROR, tag, sb.toString(), tr);
+        }
+    }
 }
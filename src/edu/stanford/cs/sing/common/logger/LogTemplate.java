@@ -0,0 +1,28 @@
+package edu.stanford.cs.sing.common.logger;
+
+/**
+ * Expands "{}" placeholders in log message templates.
+ */
+final class LogTemplate {
+
+    private LogTemplate() {
+    }
+
+    /**
+     * Appends template to sb with the first argCount "{}" replaced by arg1 and arg2, in order.
+     * Placeholders without an argument are kept as they are.
+     */
+    static StringBuilder expand(StringBuilder sb, String template, Object arg1, Object arg2,
+            int argCount) {
+        int from = 0;
+        for (int i = 0; i < argCount; i++) {
+            final int at = template.indexOf("{}", from);
+            if (at < 0) {
+                break;
+            }
+            sb.append(template, from, at).append(i == 0 ? arg1 : arg2);
+            from = at + 2;
+        }
+        return sb.append(template, from, template.length());
+    }
+}
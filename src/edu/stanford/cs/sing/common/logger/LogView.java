@@ -15,25 +15,50 @@
  */
 package edu.stanford.cs.sing.common.logger;
 
-import android.app.Activity;
+import java.util.ArrayList;
+
 import android.content.Context;
+import android.graphics.Typeface;
 import android.util.AttributeSet;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
 import android.widget.TextView;
 
-/** Simple TextView which is used to output log data received through the LogNode interface.
-*/
-public class LogView extends TextView implements LogNode {
+/** Simple list which is used to output log data received through the LogNode interface.
+ *
+ * <p>Only the newest {@link #DEFAULT_MAX_LINES} lines are kept, in a ring, and only the visible
+ * ones are laid out. Lines arriving from other threads are batched and added at most every
+ * {@link #FLUSH_INTERVAL_MS} milliseconds; the view follows the tail while it is scrolled to the
+ * bottom. At most as many lines as the view keeps wait for the UI thread; beyond that the oldest
+ * waiting line is dropped, counted and reported in the view.</p>
+ */
+public class LogView extends ListView implements LogNode {
+
+    public static final int DEFAULT_MAX_LINES = 10000;
+    public static final long FLUSH_INTERVAL_MS = 100;
 
     public LogView(Context context) {
         super(context);
+        init();
     }
 
     public LogView(Context context, AttributeSet attrs) {
         super(context, attrs);
+        init();
     }
 
     public LogView(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
+        init();
+    }
+
+    private void init() {
+        setTranscriptMode(AbsListView.TRANSCRIPT_MODE_NORMAL);
+        setDivider(null);
+        setAdapter(mAdapter);
     }
 
     /**
@@ -47,7 +72,7 @@ public class LogView extends TextView implements LogNode {
     @Override
     public void println(int priority, String tag, String msg, Throwable tr) {
 
-        
+
         String priorityStr = null;
 
         // For the purposes of this View, we want to print the priority as readable text.
@@ -91,14 +116,22 @@ public class LogView extends TextView implements LogNode {
         appendIfNotNull(outputBuilder, exceptionStr, delimiter);
 
         // In case this was originally called from an AsyncTask or some other off-UI thread,
-        // make sure the update occurs within the UI thread.
-        ((Activity) getContext()).runOnUiThread( (new Thread(new Runnable() {
-            @Override
-            public void run() {
-                // Display the text we just generated within the LogView.
-                appendToLog(outputBuilder.toString());
+        // queue the line; the UI thread picks up everything queued in one batch.
+        synchronized (mPendingLock) {
+            if (mPending.size() < mMaxPending) {
+                mPending.add(outputBuilder.toString());
+            } else {
+                // Full, overwrite the oldest; it would have been scrolled out of the ring anyway.
+                mPending.set(mPendingStart, outputBuilder.toString());
+                mPendingStart = (mPendingStart + 1) % mPending.size();
+                mPendingDropped++;
+                mDroppedLines++;
+            }
+            if (!mFlushPosted) {
+                mFlushPosted = true;
+                postDelayed(mFlushPending, FLUSH_INTERVAL_MS);
             }
-        })));
+        }
 
         if (mNext != null) {
             mNext.println(priority, tag, msg, tr);
@@ -136,10 +169,149 @@ public class LogView extends TextView implements LogNode {
     // The next LogNode in the chain.
     LogNode mNext;
 
-    /** Outputs the string as a new line of log data in the LogView. */
+    // Lines waiting for the UI thread, guarded by mPendingLock. Once it holds mMaxPending lines
+    // it is used as a ring, oldest line at mPendingStart.
+    private final Object mPendingLock = new Object();
+    private ArrayList<String> mPending = new ArrayList<String>();
+    // Swapped with mPending on every flush so neither list is reallocated.
+    private ArrayList<String> mFlushing = new ArrayList<String>();
+    private int mPendingStart;
+    private int mMaxPending = DEFAULT_MAX_LINES;
+    // Dropped since the last flush, and in total.
+    private int mPendingDropped;
+    private long mDroppedLines;
+    private boolean mFlushPosted;
+
+    private final Runnable mFlushPending = new Runnable() {
+        @Override
+        public void run() {
+            final ArrayList<String> lines;
+            final int start;
+            final int pendingDropped;
+            synchronized (mPendingLock) {
+                lines = mPending;
+                start = mPendingStart;
+                pendingDropped = mPendingDropped;
+                mPending = mFlushing;
+                mFlushing = lines;
+                mPendingStart = 0;
+                mPendingDropped = 0;
+                mFlushPosted = false;
+            }
+            int dropped = 0;
+            if (pendingDropped > 0) {
+                dropped += mAdapter.add(pendingDropped + " log lines dropped");
+            }
+            dropped += mAdapter.addAll(lines, start);
+            lines.clear();
+            keepPosition(dropped);
+            mAdapter.notifyDataSetChanged();
+        }
+    };
+
+    /** Outputs the string as a new line of log data in the LogView. Must be called on the UI
+     * thread. */
     public void appendToLog(String s) {
-        append("\n" + s);
+        keepPosition(mAdapter.add(s));
+        mAdapter.notifyDataSetChanged();
+    }
+
+    /** Sets how many lines are kept; older ones are discarded. Clears the view. */
+    public void setMaxLines(int maxLines) {
+        mAdapter.reset(maxLines);
+        synchronized (mPendingLock) {
+            mPending.clear();
+            mPendingStart = 0;
+            mMaxPending = maxLines;
+        }
+        mAdapter.notifyDataSetChanged();
+    }
+
+    /** Returns the number of lines dropped because the UI thread fell behind. */
+    public long getDroppedLineCount() {
+        synchronized (mPendingLock) {
+            return mDroppedLines;
+        }
+    }
+
+    // When the oldest lines were dropped while the user is reading further up, keep the same
+    // lines on screen. At the bottom the transcript mode follows the tail instead.
+    private void keepPosition(int dropped) {
+        if (dropped == 0 || getChildCount() == 0
+                || getLastVisiblePosition() >= mAdapter.getCount() - 1) {
+            return;
+        }
+        final View first = getChildAt(0);
+        setSelectionFromTop(Math.max(0, getFirstVisiblePosition() - dropped), first.getTop());
     }
 
+    private final LineAdapter mAdapter = new LineAdapter(DEFAULT_MAX_LINES);
+
+    // Ring of the newest lines, oldest at position 0.
+    private class LineAdapter extends BaseAdapter {
+        private String[] mLines;
+        private int mStart;
+        private int mCount;
+
+        LineAdapter(int maxLines) {
+            reset(maxLines);
+        }
+
+        void reset(int maxLines) {
+            if (maxLines <= 0) {
+                throw new IllegalArgumentException("maxLines must be positive");
+            }
+            mLines = new String[maxLines];
+            mStart = 0;
+            mCount = 0;
+        }
+
+        // Returns the number of old lines dropped to make room.
+        int add(String line) {
+            if (mCount < mLines.length) {
+                mLines[(mStart + mCount++) % mLines.length] = line;
+                return 0;
+            }
+            mLines[mStart] = line;
+            mStart = (mStart + 1) % mLines.length;
+            return 1;
+        }
+
+        // Adds lines in ring order, oldest at start.
+        int addAll(ArrayList<String> lines, int start) {
+            final int size = lines.size();
+            int dropped = 0;
+            for (int i = 0; i < size; i++) {
+                dropped += add(lines.get((start + i) % size));
+            }
+            return dropped;
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public String getItem(int position) {
+            return mLines[(mStart + position) % mLines.length];
+        }
 
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            TextView line = (TextView) convertView;
+            if (line == null) {
+                line = new TextView(getContext());
+                line.setTypeface(Typeface.MONOSPACE);
+                line.setTextAppearance(getContext(), android.R.style.TextAppearance_Small);
+            }
+            line.setText(getItem(position));
+            return line;
+        }
+    }
 }
@@ -0,0 +1,20 @@
+package edu.stanford.cs.sing.common.logger;
+
+/**
+ * {@link LogNode} that also accepts messages as a template plus primitive arguments, so it can
+ * store them without formatting. {@link Log} hands templated calls with primitive arguments to
+ * the head node through this interface when it implements it.
+ */
+public interface StructuredLogNode extends LogNode {
+
+    /**
+     * @param priority Log level of the data being logged.  Verbose, Error, etc.
+     * @param tag Tag for for the log data.  Can be used to organize log statements.
+     * @param template Message with a "{}" for each argument.
+     * @param arg1 First argument, ignored if argCount is 0.
+     * @param arg2 Second argument, ignored if argCount is less than 2.
+     * @param argCount Number of arguments used, 0 to 2.
+     */
+    public void println(int priority, String tag, String template, long arg1, long arg2,
+            int argCount);
+}
@@ -0,0 +1,32 @@
+package edu.stanford.cs.sing.common.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monotonic event counter, safe to bump from any thread without locking.
+ */
+public final class Counter {
+
+	private final String mName;
+	private final AtomicLong mCount = new AtomicLong();
+
+	public Counter(String name) {
+		mName = name;
+	}
+
+	public void inc() {
+		mCount.incrementAndGet();
+	}
+
+	public void add(long delta) {
+		mCount.addAndGet(delta);
+	}
+
+	public long get() {
+		return mCount.get();
+	}
+
+	public String getName() {
+		return mName;
+	}
+}
@@ -0,0 +1,107 @@
+package edu.stanford.cs.sing.common.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds.
+ *
+ * <p>Buckets are log-linear in the style of HdrHistogram: every power of two is split into
+ * eight equal sub-buckets, so a reported value is within 12.5% of the recorded
+ * one over the whole range of a long. Recording is a single atomic increment and never
+ * allocates.</p>
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final String mName;
+	private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mMax = new AtomicLong();
+
+	public LatencyHistogram(String name) {
+		mName = name;
+	}
+
+	/**
+	 * @param nanos latency to record, negative values are counted as 0
+	 */
+	public void record(long nanos) {
+		final long value = nanos < 0 ? 0 : nanos;
+		mBuckets.incrementAndGet(bucketOf(value));
+		mCount.incrementAndGet();
+		long max;
+		while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+			// Lost a race with another recorder, retry against the new max.
+		}
+	}
+
+	/**
+	 * Records the time elapsed since startNanos, as read from {@link System#nanoTime()}.
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	public long getCount() {
+		return mCount.get();
+	}
+
+	public long getMax() {
+		return mMax.get();
+	}
+
+	/**
+	 * @param percentile 0 to 100
+	 * @return upper bound of the bucket holding the given percentile, 0 if nothing was recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = 0;
+		final long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = mBuckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100) / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(upperBoundOf(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		final int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	// Smallest value that lands in the given bucket.
+	static long lowerBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		final int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+	}
+
+	static long upperBoundOf(int bucket) {
+		return bucket + 1 < BUCKETS ? lowerBoundOf(bucket + 1) - 1 : Long.MAX_VALUE;
+	}
+}
@@ -0,0 +1,86 @@
+package edu.stanford.cs.sing.common.metrics;
+
+import edu.stanford.cs.sing.common.logger.Log;
+
+/**
+ * Process-wide counters and latency histograms for the notification path, from the GATT
+ * callback to the list on screen. All of them can be updated from any thread.
+ */
+public final class Metrics {
+
+	private static final String TAG = "Metrics";
+
+	/** Characteristic reads and notifications delivered to the GATT callback. */
+	public static final Counter NOTIFICATIONS = new Counter("notifications");
+	/** Listed-device frames decoded into the model. */
+	public static final Counter FRAMES_DECODED = new Counter("frames decoded");
+	/** Listed-device records applied to the model; a packed frame carries several. */
+	public static final Counter RECORDS_DECODED = new Counter("records decoded");
+	/** Listed-device frames lost because the model fell behind or the frame was invalid. */
+	public static final Counter FRAMES_DROPPED = new Counter("frames dropped");
+	/** Firestorms added to the model. */
+	public static final Counter FIRESTORMS_CREATED = new Counter("firestorms created");
+	/** Adapter refreshes actually performed. */
+	public static final Counter UI_REFRESHES = new Counter("ui refreshes");
+	/** GATT operations restarted after an error, a refusal or a timeout. */
+	public static final Counter GATT_RETRIES = new Counter("gatt retries");
+	/** GATT operations given up on after their last retry. */
+	public static final Counter GATT_FAILURES = new Counter("gatt failures");
+	/** Automatic reconnect attempts after a gateway link dropped. */
+	public static final Counter RECONNECTS = new Counter("reconnects");
+
+	/** From the GATT callback until the frame has been applied to the model. */
+	public static final LatencyHistogram GATT_TO_MODEL = new LatencyHistogram("gatt to model");
+	/** From the first model change until the adapter is refreshed for the next frame. */
+	public static final LatencyHistogram MODEL_TO_SCREEN = new LatencyHistogram("model to screen");
+	/** From the connect request until the gateway acknowledged the notification subscription. */
+	public static final LatencyHistogram CONNECT_TO_SUBSCRIBED =
+			new LatencyHistogram("connect to subscribed");
+	/** From an unexpected disconnect until notifications are enabled again. */
+	public static final LatencyHistogram LINK_DROP_TO_SUBSCRIBED =
+			new LatencyHistogram("link drop to subscribed");
+
+	private static final Counter[] COUNTERS = {
+		NOTIFICATIONS, FRAMES_DECODED, RECORDS_DECODED, FRAMES_DROPPED, FIRESTORMS_CREATED, UI_REFRESHES,
+		GATT_RETRIES, GATT_FAILURES, RECONNECTS
+	};
+	private static final LatencyHistogram[] HISTOGRAMS = {
+		GATT_TO_MODEL, MODEL_TO_SCREEN, CONNECT_TO_SUBSCRIBED, LINK_DROP_TO_SUBSCRIBED
+	};
+
+	private Metrics() {
+		// No instances.
+	}
+
+	/**
+	 * Appends one line per metric, latencies in microseconds.
+	 */
+	public static StringBuilder describe(StringBuilder sb) {
+		for (Counter counter : COUNTERS) {
+			sb.append(counter.getName()).append(": ").append(counter.get()).append('\n');
+		}
+		for (LatencyHistogram histogram : HISTOGRAMS) {
+			sb.append(histogram.getName())
+					.append(": n=").append(histogram.getCount())
+					.append(" p50=").append(histogram.getValueAtPercentile(50) / 1000)
+					.append(" p99=").append(histogram.getValueAtPercentile(99) / 1000)
+					.append(" p99.9=").append(histogram.getValueAtPercentile(99.9) / 1000)
+					.append(" max=").append(histogram.getMax() / 1000)
+					.append(" us\n");
+		}
+		return sb;
+	}
+
+	/**
+	 * Writes every metric to the log chain at INFO level.
+	 */
+	public static void dump() {
+		if (!Log.isLoggable(Log.INFO, TAG)) {
+			return;
+		}
+		final String[] lines = describe(new StringBuilder()).toString().split("\n");
+		for (String line : lines) {
+			Log.i(TAG, line);
+		}
+	}
+}
@@ -1,20 +1,46 @@
 package edu.stanford.cs.sing.helena;
 
-import com.squareup.otto.Bus;
-import com.squareup.otto.ThreadEnforcer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Handler;
+import android.os.Looper;
+import edu.stanford.cs.sing.common.event.EventBus;
 
 /**
  * Maintains a singleton instance for obtaining the bus. Ideally this would be replaced with a more efficient means
  * such as through injection directly into interested classes.
+ *
+ * <p>MAIN handlers run on the main looper, BACKGROUND handlers one at a time on a single worker thread.</p>
  */
 public final class BusProvider {
-  private static final Bus BUS = new Bus(ThreadEnforcer.MAIN);
+  private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+  private static final Executor MAIN = new Executor() {
+    @Override
+    public void execute(Runnable task) {
+      MAIN_HANDLER.post(task);
+    }
+  };
+
+  private static final ExecutorService BACKGROUND = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable task) {
+      final Thread thread = new Thread(task, "EventBus");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private static final EventBus BUS = new EventBus(MAIN, BACKGROUND);
 
-  public static Bus getInstance() {
+  public static EventBus getInstance() {
     return BUS;
   }
 
   private BusProvider() {
     // No instances.
   }
-}
\ No newline at end of file
+}
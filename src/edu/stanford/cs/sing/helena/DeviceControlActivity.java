@@ -18,11 +18,10 @@ package edu.stanford.cs.sing.helena;
 
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.List;
+import java.util.HashSet;
 
 import android.app.Activity;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
+import android.app.AlertDialog;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
@@ -36,7 +35,7 @@ import android.graphics.drawable.ColorDrawable;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.support.v4.app.DialogFragment;
-import android.util.Log;
+import android.text.TextUtils;
 import android.view.Display;
 import android.view.Gravity;
 import android.view.LayoutInflater;
@@ -51,12 +50,13 @@ import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.PopupWindow;
 import android.widget.TextView;
-import edu.stanford.cs.sing.common.helper.ByteWork;
+import edu.stanford.cs.sing.common.event.EventBus;
+import edu.stanford.cs.sing.common.logger.Log;
+import edu.stanford.cs.sing.common.metrics.Metrics;
 import edu.stanford.cs.sing.helena.ble.BluetoothLeService;
-import edu.stanford.cs.sing.helena.ble.HelenaGattAttributes;
 import edu.stanford.cs.sing.helena.nodes.FireAdapter;
-import edu.stanford.cs.sing.helena.nodes.FireArray;
 import edu.stanford.cs.sing.helena.nodes.Firestorm;
+import edu.stanford.cs.sing.helena.nodes.FirestormList;
 import edu.stanford.cs.sing.helena.nodes.ObservAdapter;
 
 
@@ -65,31 +65,42 @@ import edu.stanford.cs.sing.helena.nodes.ObservAdapter;
 
 
 /**
- * For a given BLE device, this Activity provides the user interface to connect, display data,
- * and display GATT services and characteristics supported by the device.  The Activity
+ * For one or more Helena gateways, this Activity provides the user interface to connect and
+ * display the firestorms they report, tagged by gateway.  The Activity
  * communicates with {@code BluetoothLeService}, which in turn interacts with the
- * Bluetooth LE API.
+ * Bluetooth LE API and owns the firestorm model, so the model survives the Activity
+ * being recreated.
  */
 public class DeviceControlActivity extends Activity {
 	private final static String TAG = DeviceControlActivity.class.getSimpleName();
 
 	public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";
 	public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
+	/** String array of gateway addresses, connected concurrently; replaces the single address. */
+	public static final String EXTRAS_DEVICE_ADDRESSES = "DEVICE_ADDRESSES";
+
+	// Load profile of the debug-menu gateway simulation.
+	private static final int SIMULATED_FIRESTORMS = 2000;
+	private static final int SIMULATED_FRAMES_PER_SECOND = 2000;
+	private static final int SIMULATED_BURST_SIZE = 20;
+	// Packed frames as sent at an MTU of 27, i.e. 8 records per notification.
+	private static final int SIMULATED_RECORDS_PER_FRAME = 8;
 
 	private ImageView mConnectionState;
 
 	private String mDeviceName;
-	private String mDeviceAddress;
+	private String[] mDeviceAddresses;
 	private BluetoothLeService mBluetoothLeService;
-	private boolean mConnected = false;
-	private BluetoothGattCharacteristic mNotifyCharacteristic;
-	private BluetoothGattService mHelenaService;
+	// Addresses of the gateways currently connected.
+	private final HashSet<String> mConnectedGateways = new HashSet<String>();
 	private OnItemClickListener mFireListOnClickListner;
 	private PopupWindow  popWindow;
-	public FireArray mFirestormArray;
+	// Read-only view of the service's model, null until the service is connected.
+	private FirestormList mFirestormArray;
 	private FireAdapter mFireAdapter;
 	private ObservAdapter mObserverAdapter;
 	private boolean mFireLitDisplay;
+	private EventBus.Subscription mNodeListSubscription;
 
 	// Code to manage Service lifecycle.
 	private final ServiceConnection mServiceConnection = new ServiceConnection() {
@@ -101,8 +112,15 @@ public class DeviceControlActivity extends Activity {
 				Log.e(TAG, "Unable to initialize Bluetooth");
 				finish();
 			}
-			// Automatically connects to the device upon successful start-up initialization.
-			mBluetoothLeService.connect(mDeviceAddress);
+			// Only wraps the model, so reattaching costs the visible rows, not a replay.
+			mFirestormArray = mBluetoothLeService.getFirestorms();
+			mFireAdapter = new FireAdapter(DeviceControlActivity.this, mFirestormArray);
+			mFireLitDisplay = false;
+			addFireList();
+			getActionBar().setSubtitle(
+					getString(R.string.firestorm_count, mFirestormArray.size()));
+			// Automatically connects to the gateways upon successful start-up initialization.
+			connectAll();
 		}
 
 		@Override
@@ -112,76 +130,66 @@ public class DeviceControlActivity extends Activity {
 	};
 
 	// Handles various events fired by the Service.
-	// ACTION_GATT_CONNECTED: connected to a GATT server.
-	// ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
-	// ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-	// ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read
-	//                        or notification operations.
+	// ACTION_GATT_CONNECTED: connected to a gateway.
+	// ACTION_GATT_DISCONNECTED: disconnected from a gateway.
+	// The service subscribes to each gateway itself once its services are discovered.
+	// Listed-device data does not come through here, the service decodes it into its model.
 	private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
 		@Override
 		public void onReceive(Context context, Intent intent) {
 			final String action = intent.getAction();
+			final String address = intent.getStringExtra(BluetoothLeService.EXTRA_ADDRESS);
 			if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
-				mConnected = true;
+				mConnectedGateways.add(address);
 				//updateConnectionState(R.drawable.connected);
 				invalidateOptionsMenu();
 
 			} else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
-				mConnected = false;
+				mConnectedGateways.remove(address);
 				//updateConnectionState(R.drawable.disconnected);
 				invalidateOptionsMenu();
 				//clearUI();
-			} else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
-				// Show all the supported services and characteristics on the user interface.
-				checkServices(mBluetoothLeService.getSupportedGattServices());
-			} else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-				
-				dealWithData(intent.getByteArrayExtra(BluetoothLeService.BYTE_DATA));
-				
 			}
 		}
 	};
 
-	
-	private void dealWithData(byte[] data){
-		Log.d("DealWithData", String.valueOf(data.length));
-		byte[] device = ByteWork.getBytes(data, 0, 1);
-		byte observed = data[2];
-
-		
-		
-		StringBuilder str = new StringBuilder(device.length);
-		for(byte byteChar : device)
-			str.append(String.format("%02X ", byteChar));
-		mFirestormArray.addDeviceData(str.toString(),observed);
-		
-	}
-
+	// Shows the firestorm count; coalesced, as a burst of new firestorms only needs the last.
+	private final EventBus.Handler<NodeListUpdatedEvent> mNodeListHandler =
+			new EventBus.Handler<NodeListUpdatedEvent>() {
+		@Override
+		public void onEvent(NodeListUpdatedEvent event) {
+			getActionBar().setSubtitle(getString(R.string.firestorm_count, event.count));
+		}
+	};
 
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		mFireLitDisplay = false;
-		mFirestormArray = new FireArray();
 		mFireListOnClickListner= new FireListOnClickListner();
 	    setContentView(R.layout.device_control_activity);
 
 		//
 		final Intent intent = getIntent();
 		mDeviceName = intent.getStringExtra(EXTRAS_DEVICE_NAME);
-		mDeviceAddress = intent.getStringExtra(EXTRAS_DEVICE_ADDRESS);
+		mDeviceAddresses = intent.getStringArrayExtra(EXTRAS_DEVICE_ADDRESSES);
+		if (mDeviceAddresses == null) {
+			final String address = intent.getStringExtra(EXTRAS_DEVICE_ADDRESS);
+			mDeviceAddresses = address == null ? new String[0] : new String[] { address };
+		}
 		Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
+		// Started as well as bound, so the service keeps its model across recreation.
+		startService(gattServiceIntent);
 		bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
-		getActionBar().setTitle(mDeviceName);
+		getActionBar().setTitle(mDeviceName != null ? mDeviceName
+				: getString(R.string.gateway_count, mDeviceAddresses.length));
 		getActionBar().setDisplayHomeAsUpEnabled(true);
-		((TextView) findViewById(R.id.device_address)).setText(mDeviceAddress);
+		((TextView) findViewById(R.id.device_address)).setText(
+				TextUtils.join(", ", mDeviceAddresses));
 
         //mGattServicesList.setOnChildClickListener(servicesListClickListner);
        // mConnectionState = (ImageView) findViewById(R.id.connection_state);
-        // Create the adapter to convert the array to views
-        mFireAdapter = new FireAdapter(DeviceControlActivity.this, mFirestormArray);
-        
-        addFireList();
+        // The adapter is created once the service hands out its model.
 		
 		Log.d(TAG, "onCreate bindService");
 	}
@@ -207,7 +215,7 @@ public class DeviceControlActivity extends Activity {
 		mFireLitDisplay = false;
 		Firestorm mFire = mFirestormArray.get(position); 
 		
-		Log.d(TAG, "FIRE ID " + mFire.id);
+		Log.d(TAG, "FIRE ID {}", mFire.id);
 		
 		
         // get device size
@@ -238,7 +246,8 @@ public class DeviceControlActivity extends Activity {
 		mFireLitDisplay = false;
 		Firestorm mFire = mFirestormArray.get(position); 
 		ListView listView = (ListView) inflatedView.findViewById(R.id.list_observed);
-		Log.d(TAG, "FIRE ID " + mFire.id);
+		detachObserverAdapter();
+		Log.d(TAG, "FIRE ID {}", mFire.id);
         ((TextView) inflatedView.findViewById(R.id.popup_header)).setText("" + mFire.toString());
 		((TextView) inflatedView.findViewById(R.id.popup_header_columt_1)).setText("MAC");
 		((TextView) inflatedView.findViewById(R.id.popup_header_columt_2)).setText("Time");
@@ -252,19 +261,27 @@ public class DeviceControlActivity extends Activity {
     	
 	}
 	
+	// The observation arrays belong to the service, they must not keep this activity alive.
+	private void detachObserverAdapter(){
+		if(mObserverAdapter != null){
+			mObserverAdapter.detach();
+			mObserverAdapter = null;
+		}
+	}
+
 	class FireListOnClickListner implements OnItemClickListener{
 
 		@Override
 		public void onItemClick(AdapterView<?> parent, View view, int position,
 				long id) {
 			onShowPopup( view,  position);
-        	Log.d(TAG, "onClick " + position);
+        	Log.d(TAG, "onClick {}", position);
 		}
 		
 	}
 	private void addFireList(){
-		if(!mFireLitDisplay){
-			Log.d(TAG, "Connected to " + mDeviceAddress );
+		if(!mFireLitDisplay && mFireAdapter != null){
+			Log.d(TAG, "Connected to {} gateways", mDeviceAddresses.length);
 			mFireLitDisplay = true;
 			((TextView) findViewById(R.id.header_columt_1)).setText(R.string.addr);
 			((TextView) findViewById(R.id.header_columt_2)).setText(R.string.number);
@@ -282,9 +299,17 @@ public class DeviceControlActivity extends Activity {
 		super.onResume();
 	
 		registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
+		mNodeListSubscription = BusProvider.getInstance().subscribeCoalesced(
+				NodeListUpdatedEvent.class, mNodeListHandler, EventBus.MAIN);
 		if (mBluetoothLeService != null) {
-			final boolean result = mBluetoothLeService.connect(mDeviceAddress);
-			Log.d(TAG, "Connect request result=" + result);
+			connectAll();
+		}
+	}
+
+	private void connectAll() {
+		for (String address : mDeviceAddresses) {
+			final boolean result = mBluetoothLeService.connect(address);
+			Log.d(TAG, "Connect request {} result={}", address, result);
 		}
 	}
 
@@ -292,19 +317,28 @@ public class DeviceControlActivity extends Activity {
 	protected void onPause() {
 		super.onPause();
 		unregisterReceiver(mGattUpdateReceiver);
+		BusProvider.getInstance().unsubscribe(mNodeListSubscription);
 	}
 
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
+		if (mFirestormArray != null) {
+			mFirestormArray.removeAddapter(mFireAdapter);
+		}
+		detachObserverAdapter();
 		unbindService(mServiceConnection);
 		mBluetoothLeService = null;
+		if (isFinishing()) {
+			// Leaving for good; the service writes its snapshot when it is destroyed.
+			stopService(new Intent(this, BluetoothLeService.class));
+		}
 	}
 
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		getMenuInflater().inflate(R.menu.gatt_services, menu);
-		if (mConnected) {
+		if (!mConnectedGateways.isEmpty()) {
 			menu.findItem(R.id.menu_connect).setVisible(false);
 			menu.findItem(R.id.menu_disconnect).setVisible(true);
 		} else {
@@ -312,15 +346,22 @@ public class DeviceControlActivity extends Activity {
 			menu.findItem(R.id.menu_connect).setVisible(true);
 
 		}
+		if (BuildConfig.DEBUG) {
+			final boolean simulating =
+					mBluetoothLeService != null && mBluetoothLeService.isSimulating();
+			menu.findItem(R.id.menu_simulate).setVisible(true).setTitle(simulating
+					? R.string.menu_simulate_stop : R.string.menu_simulate_start);
+			menu.findItem(R.id.menu_metrics).setVisible(true);
+		}
 		return true;
 	}
 
 	@Override
 	public boolean onOptionsItemSelected(MenuItem item) {
-		if(mDeviceAddress != null){
+		if(mDeviceAddresses.length > 0){
 			switch(item.getItemId()) {
 			case R.id.menu_connect:
-				mBluetoothLeService.connect(mDeviceAddress);
+				connectAll();
 				return true;
 			case R.id.menu_disconnect:
 				mBluetoothLeService.disconnect();
@@ -328,13 +369,39 @@ public class DeviceControlActivity extends Activity {
 			case android.R.id.home:
 				onBackPressed();
 				return true;
+			case R.id.menu_simulate:
+				if (mBluetoothLeService == null) {
+					return true;
+				}
+				if (mBluetoothLeService.isSimulating()) {
+					mBluetoothLeService.stopSimulation();
+				} else {
+					mBluetoothLeService.startSimulation(SIMULATED_FIRESTORMS,
+							SIMULATED_FRAMES_PER_SECOND, SIMULATED_BURST_SIZE,
+							SIMULATED_RECORDS_PER_FRAME);
+				}
+				invalidateOptionsMenu();
+				return true;
+			case R.id.menu_metrics:
+				showMetrics();
+				return true;
 			}
 		} else {
-			Log.d(TAG, "onOptionsItemSelected mDeviceAddress == null " );
+			Log.d(TAG, "onOptionsItemSelected no gateway addresses" );
 		}
 		return super.onOptionsItemSelected(item);
 	}
 
+	// Debug overlay with the current metrics, which are also written to the log chain.
+	private void showMetrics() {
+		Metrics.dump();
+		new AlertDialog.Builder(this)
+				.setTitle(R.string.menu_metrics)
+				.setMessage(Metrics.describe(new StringBuilder()))
+				.setPositiveButton(android.R.string.ok, null)
+				.show();
+	}
+
 	private void updateConnectionState(final int resourceId) {
 		runOnUiThread(new Runnable() {
 			@Override
@@ -360,45 +427,10 @@ public class DeviceControlActivity extends Activity {
 	  // Restore UI state from the savedInstanceState.  
 	  //TODO: implement restorations of the instance
 	    }
-	private void checkServices(List<BluetoothGattService> gattServices) {
-		if (gattServices == null) return;
-		String uuid;
-		// Loops through available GATT Services.
-		for (BluetoothGattService gattService : gattServices) {
-			 uuid = gattService.getUuid().toString();
-			 //only interested in helena service
-			if(uuid.equals(HelenaGattAttributes.HELENA_SERVICE)){
-				mHelenaService = gattService;
-				List<BluetoothGattCharacteristic> gattCharacteristics =
-						gattService.getCharacteristics();
-				// Loops through available Characteristics.
-				for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
-					//only interested in this characteristic
-					if(gattCharacteristic.getUuid().toString().equals(HelenaGattAttributes.UUID_LISTED_DEVICE)){
-						mNotifyCharacteristic = gattCharacteristic;
-						final int charaProp = gattCharacteristic.getProperties();
-							if ((charaProp | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
-								//Initiate notifications
-								mNotifyCharacteristic = gattCharacteristic;
-								mBluetoothLeService.setCharacteristicNotification(
-										mNotifyCharacteristic, true);
-							}
-							
-						}
-				}
-
-			} else {
-				Log.d(TAG, "Skipping other services");
-			}
-		}
-	}
-
 	private static IntentFilter makeGattUpdateIntentFilter() {
 		final IntentFilter intentFilter = new IntentFilter();
 		intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
 		intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
-		intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-		intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
 		return intentFilter;
 	}
 }
@@ -0,0 +1,46 @@
+package edu.stanford.cs.sing.helena;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.app.Application;
+import edu.stanford.cs.sing.common.logger.AsyncLogNode;
+import edu.stanford.cs.sing.common.logger.BinaryLogNode;
+import edu.stanford.cs.sing.common.logger.Log;
+import edu.stanford.cs.sing.common.logger.LogWrapper;
+
+/**
+ * Sets up the log chain when the process starts, before any activity or the
+ * BluetoothLeService can log.
+ */
+public class HelenaApplication extends Application {
+	private final static String TAG = "HelenaApplication";
+
+	// Binary trace of all log calls, see BinaryLogDecoder.
+	private static final String TRACE_FILE = "trace.bin";
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		initializeLogging();
+	}
+
+	/**
+	 * Log calls only copy the record into the ring of an AsyncLogNode. On its thread everything
+	 * is traced to a binary log file, and records at the forward level are also sent to logcat.
+	 */
+	private void initializeLogging() {
+		final int forwardLevel = BuildConfig.DEBUG ? Log.VERBOSE : Log.INFO;
+		final LogWrapper logcat = new LogWrapper();
+		try {
+			final BinaryLogNode trace = new BinaryLogNode(new File(getFilesDir(), TRACE_FILE));
+			trace.setForwardLevel(forwardLevel);
+			trace.setNext(logcat);
+			Log.setLogNode(new AsyncLogNode(trace));
+		} catch (IOException e) {
+			Log.setMinLevel(forwardLevel);
+			Log.setLogNode(new AsyncLogNode(logcat));
+			Log.w(TAG, "Binary trace unavailable", e);
+		}
+	}
+}
@@ -1,9 +1,14 @@
 package edu.stanford.cs.sing.helena;
 
-import android.util.Log;
-
+/**
+ * Posted on the {@link BusProvider} bus when firestorms are added to or dropped from the
+ * service's FireArray. Not posted for new observations of known firestorms.
+ */
 public class NodeListUpdatedEvent {
-	public NodeListUpdatedEvent(){
-		Log.d("NodeListUpdatedEvent", "construct event");
+	/** Number of firestorms after the change. */
+	public final int count;
+
+	public NodeListUpdatedEvent(int count){
+		this.count = count;
 	}
 }
@@ -0,0 +1,240 @@
+package edu.stanford.cs.sing.helena.ble;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+import edu.stanford.cs.sing.common.helper.BLEManufactureIDs;
+
+/**
+ * Reads the AD structures of an LE advertisement record in place.
+ *
+ * <p>{@link #parse(byte[])} walks the record once and remembers where each field of interest
+ * starts; nothing is copied out of the record and parsing does not allocate. Accessors decode
+ * from the record on demand, so the record must not change while it is being inspected. A
+ * structure running past the end of the record stops the walk and marks the record
+ * {@link #isMalformed() malformed}; the fields found before it stay available.</p>
+ *
+ * <p>Instances are reusable but not thread-safe.</p>
+ */
+public final class AdvertisementParser {
+
+	public static final int TYPE_FLAGS = 0x01;
+	public static final int TYPE_UUID16_INCOMPLETE = 0x02;
+	public static final int TYPE_UUID16_COMPLETE = 0x03;
+	public static final int TYPE_UUID32_INCOMPLETE = 0x04;
+	public static final int TYPE_UUID32_COMPLETE = 0x05;
+	public static final int TYPE_UUID128_INCOMPLETE = 0x06;
+	public static final int TYPE_UUID128_COMPLETE = 0x07;
+	public static final int TYPE_NAME_SHORT = 0x08;
+	public static final int TYPE_NAME_COMPLETE = 0x09;
+	public static final int TYPE_TX_POWER = 0x0A;
+	public static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+	/** Returned by {@link #getTxPower()} when the record has no TX power level. */
+	public static final int NO_TX_POWER = Integer.MIN_VALUE;
+	/** Returned by {@link #getManufacturerId()} when the record has no manufacturer data. */
+	public static final int NO_MANUFACTURER = -1;
+
+	// Bluetooth base UUID, 0000xxxx-0000-1000-8000-00805F9B34FB.
+	private static final long BASE_UUID_MSB = 0x0000000000001000L;
+	private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private byte[] mRecord;
+	private int mEnd;
+	private boolean mMalformed;
+	private int mTxPower;
+	private int mManufacturerOffset;
+	private int mManufacturerLength;
+	private int mNameOffset;
+	private int mNameLength;
+	private boolean mNameComplete;
+
+	/**
+	 * Parses a whole scan record.
+	 *
+	 * @return this parser
+	 */
+	public AdvertisementParser parse(byte[] record) {
+		return parse(record, record == null ? 0 : record.length);
+	}
+
+	/**
+	 * Parses the first length bytes of a scan record. Scan records are usually zero-padded to
+	 * 62 bytes; a zero length byte ends the significant part.
+	 *
+	 * @return this parser
+	 */
+	public AdvertisementParser parse(byte[] record, int length) {
+		mRecord = record;
+		mEnd = record == null ? 0 : Math.min(length, record.length);
+		mMalformed = false;
+		mTxPower = NO_TX_POWER;
+		mManufacturerOffset = -1;
+		mManufacturerLength = 0;
+		mNameOffset = -1;
+		mNameLength = 0;
+		mNameComplete = false;
+		int pos = 0;
+		while (pos < mEnd) {
+			final int fieldLength = mRecord[pos] & 0xFF;
+			if (fieldLength == 0) {
+				break;
+			}
+			if (pos + 1 + fieldLength > mEnd) {
+				mMalformed = true;
+				break;
+			}
+			final int type = mRecord[pos + 1] & 0xFF;
+			final int data = pos + 2;
+			final int dataLength = fieldLength - 1;
+			switch (type) {
+				case TYPE_TX_POWER:
+					if (dataLength >= 1) {
+						mTxPower = mRecord[data];
+					}
+					break;
+				case TYPE_MANUFACTURER_DATA:
+					if (dataLength >= 2 && mManufacturerOffset < 0) {
+						mManufacturerOffset = data;
+						mManufacturerLength = dataLength;
+					}
+					break;
+				case TYPE_NAME_COMPLETE:
+				case TYPE_NAME_SHORT:
+					if (mNameOffset < 0 || (type == TYPE_NAME_COMPLETE && !mNameComplete)) {
+						mNameOffset = data;
+						mNameLength = dataLength;
+						mNameComplete = type == TYPE_NAME_COMPLETE;
+					}
+					break;
+				default:
+					break;
+			}
+			pos = data + dataLength;
+		}
+		return this;
+	}
+
+	/**
+	 * @return true if an AD structure ran past the end of the record
+	 */
+	public boolean isMalformed() {
+		return mMalformed;
+	}
+
+	/**
+	 * @return advertised TX power level in dBm, or {@link #NO_TX_POWER}
+	 */
+	public int getTxPower() {
+		return mTxPower;
+	}
+
+	/**
+	 * @return company id of the first manufacturer specific data, or {@link #NO_MANUFACTURER}
+	 */
+	public int getManufacturerId() {
+		if (mManufacturerOffset < 0) {
+			return NO_MANUFACTURER;
+		}
+		return (mRecord[mManufacturerOffset] & 0xFF)
+				| (mRecord[mManufacturerOffset + 1] & 0xFF) << 8;
+	}
+
+	/**
+	 * @return company name for the manufacturer data, or null if the record has none
+	 */
+	public String getManufacturerName() {
+		final int id = getManufacturerId();
+		return id == NO_MANUFACTURER ? null : BLEManufactureIDs.lookupManufactoreID(id);
+	}
+
+	/**
+	 * @return offset in the record of the manufacturer payload following the company id,
+	 *         or -1 if there is none
+	 */
+	public int getManufacturerDataOffset() {
+		return mManufacturerOffset < 0 ? -1 : mManufacturerOffset + 2;
+	}
+
+	/**
+	 * @return length of the manufacturer payload following the company id
+	 */
+	public int getManufacturerDataLength() {
+		return mManufacturerOffset < 0 ? 0 : mManufacturerLength - 2;
+	}
+
+	public boolean hasLocalName() {
+		return mNameOffset >= 0;
+	}
+
+	/**
+	 * Decodes the local name, preferring the complete name over the shortened one. This is
+	 * the only accessor that allocates.
+	 *
+	 * @return the name, or null if the record has none
+	 */
+	public String getLocalName() {
+		return mNameOffset < 0 ? null : new String(mRecord, mNameOffset, mNameLength, UTF_8);
+	}
+
+	/**
+	 * Checks the 16, 32 and 128 bit service UUID lists for uuid. 16 and 32 bit entries match
+	 * UUIDs built on the Bluetooth base UUID.
+	 */
+	public boolean hasServiceUuid(UUID uuid) {
+		final long msb = uuid.getMostSignificantBits();
+		final long lsb = uuid.getLeastSignificantBits();
+		final boolean shortForm = lsb == BASE_UUID_LSB
+				&& (msb & 0xFFFFFFFFL) == BASE_UUID_MSB;
+		final long shortUuid = msb >>> 32;
+		int pos = 0;
+		while (pos < mEnd) {
+			final int fieldLength = mRecord[pos] & 0xFF;
+			if (fieldLength == 0 || pos + 1 + fieldLength > mEnd) {
+				break;
+			}
+			final int type = mRecord[pos + 1] & 0xFF;
+			final int data = pos + 2;
+			final int end = data + fieldLength - 1;
+			switch (type) {
+				case TYPE_UUID16_INCOMPLETE:
+				case TYPE_UUID16_COMPLETE:
+					for (int i = data; shortForm && i + 2 <= end; i += 2) {
+						if (readLittleEndian(i, 2) == shortUuid) {
+							return true;
+						}
+					}
+					break;
+				case TYPE_UUID32_INCOMPLETE:
+				case TYPE_UUID32_COMPLETE:
+					for (int i = data; shortForm && i + 4 <= end; i += 4) {
+						if (readLittleEndian(i, 4) == shortUuid) {
+							return true;
+						}
+					}
+					break;
+				case TYPE_UUID128_INCOMPLETE:
+				case TYPE_UUID128_COMPLETE:
+					for (int i = data; i + 16 <= end; i += 16) {
+						if (readLittleEndian(i, 8) == lsb && readLittleEndian(i + 8, 8) == msb) {
+							return true;
+						}
+					}
+					break;
+				default:
+					break;
+			}
+			pos = end;
+		}
+		return false;
+	}
+
+	private long readLittleEndian(int offset, int size) {
+		long value = 0;
+		for (int i = size - 1; i >= 0; i--) {
+			value = value << 8 | (mRecord[offset + i] & 0xFF);
+		}
+		return value;
+	}
+}
@@ -0,0 +1,54 @@
+package edu.stanford.cs.sing.helena.ble;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter for reconnect attempts.
+ *
+ * <p>The ceiling doubles with every attempt, from the initial delay up to the maximum, and each
+ * delay is drawn uniformly from the upper half of the current ceiling. The random half keeps
+ * several gateways dropped by the same interference from retrying in lockstep; the fixed half
+ * keeps the delay from collapsing to zero. Not thread-safe.</p>
+ */
+public final class Backoff {
+
+	private final long mInitialMs;
+	private final long mMaxMs;
+	private final Random mRandom;
+	private int mAttempts;
+
+	/**
+	 * @param initialMs ceiling of the first delay
+	 * @param maxMs largest ceiling
+	 */
+	public Backoff(long initialMs, long maxMs, Random random) {
+		if (initialMs <= 0 || maxMs < initialMs) {
+			throw new IllegalArgumentException("invalid backoff bounds");
+		}
+		mInitialMs = initialMs;
+		mMaxMs = maxMs;
+		mRandom = random;
+	}
+
+	/**
+	 * Counts an attempt and returns how long to wait before making it.
+	 */
+	public long nextDelayMs() {
+		// Stops doubling at the maximum, so the ceiling cannot overflow.
+		long ceiling = mInitialMs;
+		for (int i = 0; i < mAttempts && ceiling < mMaxMs; i++) {
+			ceiling <<= 1;
+		}
+		ceiling = Math.min(ceiling, mMaxMs);
+		mAttempts++;
+		final long half = ceiling / 2;
+		return ceiling - half + (long) (mRandom.nextDouble() * (half + 1));
+	}
+
+	/**
+	 * Starts over from the initial delay, e.g. once a connection is established.
+	 */
+	public void reset() {
+		mAttempts = 0;
+	}
+}
@@ -3,27 +3,55 @@
  */
 package edu.stanford.cs.sing.helena.ble;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
+import android.database.sqlite.SQLiteException;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import edu.stanford.cs.sing.common.logger.Log;
+import edu.stanford.cs.sing.common.metrics.Metrics;
 import edu.stanford.cs.sing.helena.BusProvider;
+import edu.stanford.cs.sing.helena.nodes.FireArray;
+import edu.stanford.cs.sing.helena.nodes.FireArraySnapshot;
+import edu.stanford.cs.sing.helena.nodes.FirestormList;
+import edu.stanford.cs.sing.helena.store.FrameJournal;
+import edu.stanford.cs.sing.helena.store.ObservationDatabase;
+import edu.stanford.cs.sing.helena.store.ObservationWriter;
 
 /**
+ * Holds one {@link GattConnection} per Helena gateway, all connected at the same time, and
+ * feeds their listed-device frames into a shared ring tagged with the gateway index.
+ *
+ * <p>The service owns the firestorm model. Frames are decoded into it on the main thread
+ * whether or not an activity is bound, and activities only read it through
+ * {@link #getFirestorms()}. The model is written to a snapshot when the app leaves the
+ * foreground or the service is destroyed, and read back when the service is created again.
+ * Only encoding the model and restoring it run on the main thread; the file work runs on a
+ * thread of its own. Activities start the service as well as binding to it, so it outlives a
+ * configuration change, and stop it when they finish.</p>
+ *
  * @author lauril
  *
  */
@@ -32,14 +60,25 @@ public class BluetoothLeService extends Service {
 
 	private BluetoothManager mBluetoothManager;
 	private BluetoothAdapter mBluetoothAdapter;
-	private String mBluetoothDeviceAddress;
-	private BluetoothGatt mBluetoothGatt;
-	private int mConnectionState = STATE_DISCONNECTED;
 
-	
-	private static final int STATE_DISCONNECTED = 0;
-	private static final int STATE_CONNECTING = 1;
-	private static final int STATE_CONNECTED = 2;
+	/** Gateway index of simulated frames; real gateways are numbered from 1. */
+	public static final int SIMULATED_GATEWAY = FrameRingBuffer.NO_GATEWAY;
+
+	// Gateway connections by device address; these three are guarded by mConnections.
+	private final HashMap<String, GattConnection> mConnections =
+			new HashMap<String, GattConnection>();
+	// Indices looked up so far. They are kept in the database, so a gateway keeps its index
+	// and its firestorms across reconnects and restarts.
+	private final HashMap<String, Integer> mGatewayIndices = new HashMap<String, Integer>();
+	// Addresses to connect to once their index has been looked up.
+	private final HashSet<String> mPendingConnects = new HashSet<String>();
+
+	// Listed-device frames are handed to the UI through this ring instead of broadcasts.
+	// Slots hold a full packed frame at the negotiated MTU, about 0.5 MB in total.
+	private static final int FRAME_BUFFER_CAPACITY = 2048;
+	private static final int MAX_FRAME_LENGTH = ListedDeviceDecoder.MAX_FRAME_SIZE;
+	private static final int DRAIN_BATCH = 256;
+	private static final String SNAPSHOT_FILE = "firestorms.snapshot";
 
 	public final static String ACTION_GATT_CONNECTED =
 			"edu.stanford.cs.sing.helena.ble.ACTION_GATT_CONNECTED";
@@ -51,101 +90,379 @@ public class BluetoothLeService extends Service {
 			"edu.stanford.cs.sing.helena.ble.ACTION_DATA_AVAILABLE";
 	public final static String EXTRA_DATA =
 			"edu.stanford.cs.sing.helena.ble.EXTRA_DATA";
-	public final static String BYTE_DATA =
-			"edu.stanford.cs.sing.helena.ble.BYTE_DATA";
+	/** Address of the gateway a broadcast is about. */
+	public final static String EXTRA_ADDRESS =
+			"edu.stanford.cs.sing.helena.ble.EXTRA_ADDRESS";
+	/** Index tagging the gateway's frames, see {@link FrameRingBuffer.FrameConsumer}. */
+	public final static String EXTRA_GATEWAY =
+			"edu.stanford.cs.sing.helena.ble.EXTRA_GATEWAY";
 
 	public final static UUID UUID_LISTED_DEVICE =
 			UUID.fromString(HelenaGattAttributes.UUID_LISTED_DEVICE);
 	public final static UUID UUID_HELENA_SERVICE =
 			UUID.fromString(HelenaGattAttributes.HELENA_SERVICE);
-	
-	
 
-	// Implements callback methods for GATT events that the app cares about.  For example,
-	// connection change and services discovered.
-	private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+	private final FrameRingBuffer mFrameBuffer =
+			new FrameRingBuffer(FRAME_BUFFER_CAPACITY, MAX_FRAME_LENGTH);
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private final AtomicBoolean mDrainPosted = new AtomicBoolean();
+	// Raw copy of every listed-device frame, null if the journal could not be opened.
+	private volatile FrameJournal mJournal;
+	// Only touched on the main thread.
+	private final FireArray mFirestorms = new FireArray();
+	// Reads and writes snapshots and looks up gateway indices, in order, off the main thread.
+	// A snapshot's indices are thus recorded before any new gateway can be given one.
+	private final ExecutorService mSnapshotExecutor =
+			Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable task) {
+					return new Thread(task, "FireArraySnapshot");
+				}
+			});
+	// Main thread only. False until the snapshot read at creation has been applied, as writing
+	// one before would replace the saved model with a partial one.
+	private boolean mSnapshotRestored;
+	// Main thread only. True while a captured snapshot waits for the snapshot thread.
+	private boolean mSnapshotPending;
+	// Main thread only. True once a snapshot was taken since the UI was last hidden.
+	private boolean mSnapshotSinceHidden;
+
+	private final Runnable mSnapshotWritten = new Runnable() {
 		@Override
-		public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-			String intentAction;
-			if (newState == BluetoothProfile.STATE_CONNECTED) {
-				intentAction = ACTION_GATT_CONNECTED;
-				mConnectionState = STATE_CONNECTED;
-				broadcastUpdate(intentAction);
-				Log.i(TAG, "Connected to GATT server.");
-				// Attempts to discover services after successful connection.
-				Log.i(TAG, "Attempting to start service discovery:" +
-						mBluetoothGatt.discoverServices());
-
-			} else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-				intentAction = ACTION_GATT_DISCONNECTED;
-				mConnectionState = STATE_DISCONNECTED;
-				Log.i(TAG, "Disconnected from GATT server.");
-				broadcastUpdate(intentAction);
-			}
+		public void run() {
+			mSnapshotPending = false;
 		}
+	};
+	private ObservationDatabase mObservationDatabase;
+	private ObservationWriter mObservationWriter;
 
+	// Decodes drained frames into the model.
+	private final FrameRingBuffer.FrameConsumer mIngest = new FrameRingBuffer.FrameConsumer() {
 		@Override
-		public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-			if (status == BluetoothGatt.GATT_SUCCESS) {
-				broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-			} else {
-				Log.w(TAG, "onServicesDiscovered received: " + status);
-			}
+		public void onFrame(int gateway, byte[] frame, int length, long receivedAt) {
+			ingest(gateway, frame, length, receivedAt);
 		}
+	};
 
+	// Runs on the main thread and hands queued frames to the model in batches.
+	private final Runnable mDrainFrames = new Runnable() {
 		@Override
-		public void onCharacteristicRead(BluetoothGatt gatt,
-				BluetoothGattCharacteristic characteristic,
-				int status) {
-			if (status == BluetoothGatt.GATT_SUCCESS) {
-				broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+		public void run() {
+			mDrainPosted.set(false);
+			mFrameBuffer.drain(mIngest, DRAIN_BATCH, Metrics.GATT_TO_MODEL);
+			if (!mFrameBuffer.isEmpty()) {
+				scheduleDrain();
 			}
 		}
+	};
 
-		@Override
-		public void onCharacteristicChanged(BluetoothGatt gatt,
-				BluetoothGattCharacteristic characteristic) {
-			
-			broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+	/**
+	 * Called by a connection on its GATT callback thread.
+	 */
+	void dispatchCharacteristic(GattConnection connection,
+			final BluetoothGattCharacteristic characteristic) {
+		Metrics.NOTIFICATIONS.inc();
+		final byte[] value = characteristic.getValue();
+		Log.v(TAG, "Characteristic value, {} bytes", value == null ? 0 : value.length);
+		if (UUID_LISTED_DEVICE.equals(characteristic.getUuid())) {
+			onListedDeviceFrame(connection.getGateway(), value);
+		} else {
+			broadcastUpdate(ACTION_DATA_AVAILABLE, connection, characteristic);
 		}
-	};
+	}
 
-	private void broadcastUpdate(final String action) {
+	/**
+	 * Called by a connection when it connects, disconnects or has discovered services.
+	 */
+	void onGatewayEvent(GattConnection connection, String action) {
 		final Intent intent = new Intent(action);
+		intent.putExtra(EXTRA_ADDRESS, connection.getAddress());
+		intent.putExtra(EXTRA_GATEWAY, connection.getGateway());
 		sendBroadcast(intent);
 	}
 
-	private void broadcastUpdate(final String action,
+	// Feeds simulated frames into the same path as the GATT callback.
+	private final GatewaySimulator.FrameTarget mSimulatorTarget = new GatewaySimulator.FrameTarget() {
+		@Override
+		public void onListedDeviceFrame(byte[] frame) {
+			BluetoothLeService.this.onListedDeviceFrame(SIMULATED_GATEWAY, frame);
+		}
+	};
+	private GatewaySimulator mSimulator;
+
+	/**
+	 * Queues a listed-device frame for the consumer. Called on the GATT callback threads or the
+	 * simulator thread; the cost per frame is a copy into a preallocated slot.
+	 */
+	private void onListedDeviceFrame(int gateway, final byte[] data) {
+		if (data == null || data.length == 0) {
+			return;
+		}
+		final long nanos = System.nanoTime();
+		final long now = System.currentTimeMillis();
+		final FrameJournal journal = mJournal;
+		if (journal != null) {
+			try {
+				journal.append(gateway, data, data.length, now);
+			} catch (IOException e) {
+				Log.e(TAG, "Frame journal failed, disabling it", e);
+				mJournal = null;
+			}
+		}
+		final boolean queued;
+		// The ring takes a single producer, the lock serializes GATT and simulator threads.
+		synchronized (mFrameBuffer) {
+			queued = mFrameBuffer.offer(gateway, data, now, nanos);
+		}
+		if (queued) {
+			scheduleDrain();
+		} else {
+			Metrics.FRAMES_DROPPED.inc();
+		}
+	}
+
+	/**
+	 * Starts feeding synthetic listed-device frames into the ingest path.
+	 *
+	 * @param firestormCount number of distinct firestorms
+	 * @param framesPerSecond average frame rate
+	 * @param burstSize frames sent back-to-back
+	 * @param recordsPerFrame records packed into each frame
+	 */
+	public synchronized void startSimulation(int firestormCount, int framesPerSecond,
+			int burstSize, int recordsPerFrame) {
+		stopSimulation();
+		mSimulator = new GatewaySimulator(mSimulatorTarget, firestormCount, framesPerSecond,
+				burstSize, recordsPerFrame, 0xFF, GatewaySimulator.Distribution.SKEWED,
+				System.nanoTime());
+		mSimulator.start();
+		Log.i(TAG, "Simulating {} firestorms at {} fps", firestormCount, framesPerSecond);
+	}
+
+	public synchronized void stopSimulation() {
+		if (mSimulator != null) {
+			mSimulator.stop();
+			Log.i(TAG, "Simulation sent {} frames", mSimulator.getFramesSent());
+			mSimulator = null;
+		}
+	}
+
+	public synchronized boolean isSimulating() {
+		return mSimulator != null;
+	}
+
+	private void scheduleDrain() {
+		if (mDrainPosted.compareAndSet(false, true)) {
+			mMainHandler.post(mDrainFrames);
+		}
+	}
+
+	// Applies every record of a packed frame to the model in one pass.
+	private void ingest(int gateway, byte[] data, int length, long receivedAt) {
+		if (!ListedDeviceDecoder.isValid(data, length)) {
+			Log.w(TAG, "Dropping short listed device frame");
+			Metrics.FRAMES_DROPPED.inc();
+			return;
+		}
+		final int end = ListedDeviceDecoder.recordCount(length) * ListedDeviceDecoder.RECORD_SIZE;
+		for (int offset = 0; offset < end; offset += ListedDeviceDecoder.RECORD_SIZE) {
+			mFirestorms.addDeviceData(gateway, ListedDeviceDecoder.firestormId(data, offset),
+					ListedDeviceDecoder.observed(data, offset), receivedAt);
+		}
+		Metrics.FRAMES_DECODED.inc();
+		Metrics.RECORDS_DECODED.add(end / ListedDeviceDecoder.RECORD_SIZE);
+	}
+
+	/**
+	 * @return read-only view of the firestorm model, only to be used on the main thread
+	 */
+	public FirestormList getFirestorms() {
+		return mFirestorms;
+	}
+
+	/**
+	 * @return number of listed-device frames dropped because the consumer fell behind
+	 */
+	public long getDroppedFrameCount() {
+		return mFrameBuffer.getDroppedCount();
+	}
+
+	private void broadcastUpdate(final String action, GattConnection connection,
 			final BluetoothGattCharacteristic characteristic) {
 		final Intent intent = new Intent(action);
+		intent.putExtra(EXTRA_ADDRESS, connection.getAddress());
+		intent.putExtra(EXTRA_GATEWAY, connection.getGateway());
+
+		// Listed-device frames go through mFrameBuffer, this is only for other characteristics.
+		// Writes the data formatted in HEX.
+		final byte[] data = characteristic.getValue();
+		if (data != null && data.length > 0) {
+			final StringBuilder stringBuilder = new StringBuilder(data.length);
+			for(byte byteChar : data)
+				stringBuilder.append(String.format("%02X ", byteChar));
+			intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
+		}
+		sendBroadcast(intent);
+	}
 
-		if (UUID_LISTED_DEVICE.equals(characteristic.getUuid())) {
-			Log.d("RX-UPDATE", "Got data");
-			///TODO: deal with data here
-			final byte[] data = characteristic.getValue();
-			if (data != null && data.length > 0) {
-				
-				final StringBuilder stringBuilder = new StringBuilder(data.length);
-				for(byte byteChar : data)
-					stringBuilder.append(String.format("%02X ", byteChar));
-				
-				Log.d("RX-UPDATE", "Got data: " + stringBuilder.toString());
-				intent.putExtra(EXTRA_DATA,  stringBuilder.toString());
-				intent.putExtra(BYTE_DATA, data);
-				
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		try {
+			mJournal = new FrameJournal(new File(getFilesDir(), "journal"));
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to open frame journal", e);
+		}
+		mObservationDatabase = new ObservationDatabase(this);
+		mObservationWriter = new ObservationWriter(mObservationDatabase);
+		mFirestorms.setEventBus(BusProvider.getInstance());
+		mFirestorms.setObservationSink(mObservationWriter);
+		readSnapshot();
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		// Only started to outlive unbinding; without an activity there is nothing to connect.
+		return START_NOT_STICKY;
+	}
+
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		// UI_HIDDEN comes once per move to the background, the higher levels may follow while
+		// there. Once in the background the process may be killed without further notice, so
+		// snapshot once per move, and not while the previous snapshot is still being written.
+		if (level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+			mSnapshotSinceHidden = false;
+		}
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN && !mSnapshotSinceHidden) {
+			mSnapshotSinceHidden = true;
+			if (!mSnapshotPending) {
+				writeSnapshot();
 			}
+			mObservationWriter.flush();
+		}
+	}
 
-		} else {
-			// For all other profiles, writes the data formatted in HEX.
-			final byte[] data = characteristic.getValue();
-			if (data != null && data.length > 0) {
-				final StringBuilder stringBuilder = new StringBuilder(data.length);
-				for(byte byteChar : data)
-					stringBuilder.append(String.format("%02X ", byteChar));
-				intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+		stopSimulation();
+		// After using a given device, you should make sure that BluetoothGatt.close() is called
+		// such that resources are cleaned up properly.
+		close();
+		writeSnapshot();
+		// Runs the queued write, then lets the thread go.
+		mSnapshotExecutor.shutdown();
+		mFirestorms.setObservationSink(null);
+		mObservationWriter.close();
+		final FrameJournal journal = mJournal;
+		mJournal = null;
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				Log.w(TAG, "Unable to close frame journal", e);
 			}
 		}
-		sendBroadcast(intent);
+	}
+
+	// Reads and decodes on the snapshot thread, then restores on the main thread.
+	private void readSnapshot() {
+		final File file = new File(getFilesDir(), SNAPSHOT_FILE);
+		mSnapshotExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				final long start = System.nanoTime();
+				FireArraySnapshot.Decoded snapshot = null;
+				try {
+					snapshot = FireArraySnapshot.read(file);
+				} catch (IOException e) {
+					Log.w(TAG, "Discarding unreadable firestorm snapshot", e);
+					file.delete();
+				}
+				if (snapshot != null) {
+					Log.i(TAG, "Read {} firestorms in {} ms", snapshot.size(),
+							(System.nanoTime() - start) / 1000000);
+					recordGatewayIndices(snapshot.getGateways());
+				}
+				final FireArraySnapshot.Decoded read = snapshot;
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						restoreSnapshot(read);
+					}
+				});
+			}
+		});
+	}
+
+	// Snapshots from before the gateways table carry the only record of the indices.
+	private void recordGatewayIndices(Map<String, Integer> gateways) {
+		try {
+			for (Map.Entry<String, Integer> gateway : gateways.entrySet()) {
+				final int stored = mObservationDatabase.putGatewayIndex(gateway.getKey(),
+						gateway.getValue());
+				if (stored != gateway.getValue()) {
+					// Only if the table lost rows the snapshot still has; the restored
+					// firestorms keep the index they were recorded with.
+					Log.w(TAG, "Gateway {} is index {} in the database", gateway.getKey(),
+							stored);
+				}
+			}
+		} catch (SQLiteException e) {
+			Log.e(TAG, "Unable to record gateway indices", e);
+		}
+	}
+
+	// On the main thread, which owns the model.
+	private void restoreSnapshot(FireArraySnapshot.Decoded snapshot) {
+		if (mSnapshotExecutor.isShutdown()) {
+			return;
+		}
+		mSnapshotRestored = true;
+		if (snapshot == null) {
+			return;
+		}
+		final long start = System.nanoTime();
+		// The snapshot's observations are in the database already.
+		mFirestorms.setObservationSink(null);
+		final int restored = snapshot.restore(mFirestorms);
+		mFirestorms.setObservationSink(mObservationWriter);
+		Log.i(TAG, "Restored {} firestorms in {} ms", restored,
+				(System.nanoTime() - start) / 1000000);
+	}
+
+	// Encodes the model on the main thread, which owns it, and writes it on the snapshot thread.
+	private void writeSnapshot() {
+		if (!mSnapshotRestored) {
+			return;
+		}
+		final HashMap<String, Integer> gateways;
+		synchronized (mConnections) {
+			gateways = new HashMap<String, Integer>(mGatewayIndices);
+		}
+		final long start = System.nanoTime();
+		final FireArraySnapshot snapshot = FireArraySnapshot.capture(mFirestorms, gateways);
+		Log.d(TAG, "Encoded {} firestorms in {} ms", snapshot.size(),
+				(System.nanoTime() - start) / 1000000);
+		final File file = new File(getFilesDir(), SNAPSHOT_FILE);
+		mSnapshotPending = true;
+		mSnapshotExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				final long start = System.nanoTime();
+				try {
+					snapshot.write(file);
+					Log.i(TAG, "Wrote {} firestorms in {} ms", snapshot.size(),
+							(System.nanoTime() - start) / 1000000);
+				} catch (IOException e) {
+					Log.w(TAG, "Unable to write firestorm snapshot", e);
+				} finally {
+					mMainHandler.post(mSnapshotWritten);
+				}
+			}
+		});
 	}
 
 	public class LocalBinder extends Binder {
@@ -156,18 +473,20 @@ public class BluetoothLeService extends Service {
 
 	@Override
 	public IBinder onBind(Intent intent) {
-		BusProvider.getInstance().register(this);
 		Log.d(TAG, "onBind");
 		return mBinder;
 	}
 
 	@Override
 	public boolean onUnbind(Intent intent) {
-		// After using a given device, you should make sure that BluetoothGatt.close() is called
-		// such that resources are cleaned up properly.  In this particular example, close() is
-		// invoked when the UI is disconnected from the Service.
-		close();
-		return super.onUnbind(intent);
+		// Gateways stay connected and the model keeps filling until the service is stopped.
+		Log.d(TAG, "onUnbind");
+		return true;
+	}
+
+	@Override
+	public void onRebind(Intent intent) {
+		Log.d(TAG, "onRebind");
 	}
 
 	private final IBinder mBinder = new LocalBinder();
@@ -198,125 +517,182 @@ public class BluetoothLeService extends Service {
 	}
 
 	/**
-	 * Connects to the GATT server hosted on the Bluetooth LE device.
+	 * Connects to the GATT server hosted on a gateway. Other gateways stay connected.
 	 *
 	 * @param address The device address of the destination device.
 	 *
-	 * @return Return true if the connection is initiated successfully. The connection result
-	 *         is reported asynchronously through the
-	 *         {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-	 *         callback.
+	 * @return Return true if the connection is initiated successfully. The first connection
+	 *         to an address waits for its gateway index to be looked up in the database. The
+	 *         connection result is reported asynchronously through an {@link #ACTION_GATT_CONNECTED} broadcast
+	 *         carrying {@link #EXTRA_ADDRESS}. Lost links are reconnected automatically until
+	 *         {@link #disconnect(String)}.
 	 */
 	public boolean connect(final String address) {
 		if (mBluetoothAdapter == null || address == null) {
 			Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
 			return false;
 		}
+		GattConnection connection;
+		synchronized (mConnections) {
+			connection = mConnections.get(address);
+			if (connection == null) {
+				final Integer gateway = mGatewayIndices.get(address);
+				if (gateway == null) {
+					if (mPendingConnects.add(address)) {
+						lookUpGatewayIndex(address);
+					}
+					return true;
+				}
+				connection = new GattConnection(this, address, gateway);
+				mConnections.put(address, connection);
+			}
+		}
+		return connection.connect(mBluetoothAdapter);
+	}
 
-		// Previously connected device.  Try to reconnect.
-		if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-				&& mBluetoothGatt != null) {
-			Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-			if (mBluetoothGatt.connect()) {
-				mConnectionState = STATE_CONNECTING;
-				return true;
-			} else {
-				return false;
+	// The database may be opened, created or upgraded by the lookup, so it runs on the
+	// snapshot thread, and the connection is made back on the main thread.
+	private void lookUpGatewayIndex(final String address) {
+		mSnapshotExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				int gateway;
+				try {
+					gateway = mObservationDatabase.getGatewayIndex(address);
+				} catch (SQLiteException e) {
+					Log.e(TAG, "Unable to assign a gateway index", e);
+					gateway = 0;
+				}
+				final int found = gateway;
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						onGatewayIndex(address, found);
+					}
+				});
 			}
+		});
+	}
+
+	private void onGatewayIndex(String address, int gateway) {
+		synchronized (mConnections) {
+			// Cancelled by disconnect() or close() in the meantime.
+			if (!mPendingConnects.remove(address) || gateway == 0) {
+				return;
+			}
+			mGatewayIndices.put(address, gateway);
 		}
+		connect(address);
+	}
 
-		final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-		if (device == null) {
-			Log.w(TAG, "Device not found.  Unable to connect.");
-			return false;
+	/**
+	 * Disconnects one gateway or cancels a pending connection, and stops reconnecting to it.
+	 * The result is reported asynchronously through an {@link #ACTION_GATT_DISCONNECTED}
+	 * broadcast.
+	 */
+	public void disconnect(String address) {
+		final GattConnection connection;
+		synchronized (mConnections) {
+			connection = mConnections.get(address);
+			if (connection == null && mPendingConnects.remove(address)) {
+				return;
+			}
 		}
-		// We want to directly connect to the device, so we are setting the autoConnect
-		// parameter to false.
-		mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-		Log.d(TAG, "Trying to create a new connection.");
-		mBluetoothDeviceAddress = address;
-		mConnectionState = STATE_CONNECTING;
-		return true;
+		if (connection == null) {
+			Log.w(TAG, "Not connected to {}", address);
+			return;
+		}
+		connection.disconnect();
 	}
 
 	/**
-	 * Disconnects an existing connection or cancel a pending connection. The disconnection result
-	 * is reported asynchronously through the
-	 * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-	 * callback.
+	 * Disconnects all gateways.
 	 */
 	public void disconnect() {
-		if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-			Log.w(TAG, "BluetoothAdapter not initialized");
-			return;
+		synchronized (mConnections) {
+			mPendingConnects.clear();
+		}
+		for (GattConnection connection : getConnections()) {
+			connection.disconnect();
 		}
-		mBluetoothGatt.disconnect();
 	}
 
 	/**
-	 * After using a given BLE device, the app must call this method to ensure resources are
+	 * After using the gateways, the app must call this method to ensure resources are
 	 * released properly.
 	 */
 	public void close() {
-		if (mBluetoothGatt == null) {
-			return;
+		final List<GattConnection> connections = getConnections();
+		synchronized (mConnections) {
+			mConnections.clear();
+			mPendingConnects.clear();
+		}
+		for (GattConnection connection : connections) {
+			connection.close();
 		}
-		mBluetoothGatt.close();
-		mBluetoothGatt = null;
 	}
 
 	/**
-	 * Request a read on a given {@code BluetoothGattCharacteristic}. The read result is reported
-	 * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
-	 * callback.
-	 *
-	 * @param characteristic The characteristic to read from.
+	 * @return the connection to a gateway, null if {@link #connect(String)} was never called
+	 *         for it since the last {@link #close()}
 	 */
-	public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-		if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-			Log.w(TAG, "BluetoothAdapter not initialized");
-			return;
+	public GattConnection getConnection(String address) {
+		synchronized (mConnections) {
+			return mConnections.get(address);
 		}
-		mBluetoothGatt.readCharacteristic(characteristic);
 	}
 
 	/**
-	 * Enables or disables notification on a give characteristic.
+	 * @return a copy of all gateway connections
+	 */
+	public List<GattConnection> getConnections() {
+		synchronized (mConnections) {
+			return new ArrayList<GattConnection>(mConnections.values());
+		}
+	}
+
+	/**
+	 * @return number of gateways with a link up
+	 */
+	public int getConnectedCount() {
+		int connected = 0;
+		for (GattConnection connection : getConnections()) {
+			if (connection.isConnected()) {
+				connected++;
+			}
+		}
+		return connected;
+	}
+
+	/**
+	 * Request a read on a given {@code BluetoothGattCharacteristic} of a gateway. The read is
+	 * queued behind the gateway's other GATT operations and its result is reported
+	 * asynchronously through an {@link #ACTION_DATA_AVAILABLE} broadcast.
 	 *
-	 * @param characteristic Characteristic to act on.
-	 * @param enabled If true, enable notification.  False otherwise.
+	 * @param address The gateway to read from.
+	 * @param characteristic The characteristic to read from.
 	 */
-	public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
-			boolean enabled) {
-		if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+	public void readCharacteristic(String address, BluetoothGattCharacteristic characteristic) {
+		final GattConnection connection = getConnection(address);
+		if (mBluetoothAdapter == null || connection == null) {
 			Log.w(TAG, "BluetoothAdapter not initialized");
 			return;
 		}
-		mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
-		
-		if(UUID_LISTED_DEVICE.equals(characteristic.getUuid())){
-			Log.d(TAG, "setCharacteristicNotification");
-			BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
-                    UUID.fromString(HelenaGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            boolean writeDesc = mBluetoothGatt.writeDescriptor(descriptor);
-            Log.d(TAG, "Write writeDescriptor was: "+ String.valueOf(writeDesc));
-		}
-
-     
-
+		connection.read(characteristic);
 	}
 
 	/**
-	 * Retrieves a list of supported GATT services on the connected device. This should be
-	 * invoked only after {@code BluetoothGatt#discoverServices()} completes successfully.
+	 * Retrieves a list of supported GATT services on a connected gateway. This should be
+	 * invoked only after {@link #ACTION_GATT_SERVICES_DISCOVERED} was broadcast for it.
 	 *
 	 * @return A {@code List} of supported services.
 	 */
-	public List<BluetoothGattService> getSupportedGattServices() {
-		if (mBluetoothGatt == null) return null;
+	public List<BluetoothGattService> getSupportedGattServices(String address) {
+		final GattConnection connection = getConnection(address);
+		final BluetoothGatt gatt = connection == null ? null : connection.getGatt();
+		if (gatt == null) return null;
 
-		return mBluetoothGatt.getServices();
+		return gatt.getServices();
 	}
 
 }
@@ -37,6 +37,7 @@ import android.widget.BaseAdapter;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
+import edu.stanford.cs.sing.common.helper.BLEManufactureIDs;
 import edu.stanford.cs.sing.helena.DeviceControlActivity;
 import edu.stanford.cs.sing.helena.R;
 
@@ -45,6 +46,7 @@ import edu.stanford.cs.sing.helena.R;
  */
 public class DeviceScanActivity extends ListActivity {
     private LeDeviceListAdapter mLeDeviceListAdapter;
+    private ScanAggregator mScanAggregator;
     private BluetoothAdapter mBluetoothAdapter;
     private boolean mScanning;
     private Handler mHandler;
@@ -52,12 +54,21 @@ public class DeviceScanActivity extends ListActivity {
     private static final int REQUEST_ENABLE_BT = 1;
     // Stops scanning after 10 seconds.
     private static final long SCAN_PERIOD = 10000;
+    // Minimum time between device list refreshes while scanning.
+    private static final long SCAN_REFRESH_MS = 250;
  //TODO: layout is needed
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        BLEManufactureIDs.preload(this);
         getActionBar().setTitle(R.string.title_devices);
         mHandler = new Handler();
+        mScanAggregator = new ScanAggregator(SCAN_REFRESH_MS, new ScanAggregator.Listener() {
+            @Override
+            public void onScanResultsChanged() {
+                mLeDeviceListAdapter.refresh();
+            }
+        });
 
         // Use this check to determine whether BLE is supported on the device.  Then you can
         // selectively disable BLE-related features.
@@ -93,6 +104,8 @@ public class DeviceScanActivity extends ListActivity {
             menu.findItem(R.id.menu_refresh).setActionView(
                     R.layout.actionbar_indeterminate_progress);
         }
+        menu.findItem(R.id.menu_connect_gateways).setVisible(
+                mLeDeviceListAdapter != null && mLeDeviceListAdapter.getGatewayCount() > 1);
         return true;
     }
 
@@ -106,6 +119,9 @@ public class DeviceScanActivity extends ListActivity {
             case R.id.menu_stop:
                 scanLeDevice(false);
                 break;
+            case R.id.menu_connect_gateways:
+                connectGateways();
+                break;
         }
         return true;
     }
@@ -160,6 +176,18 @@ public class DeviceScanActivity extends ListActivity {
         startActivity(intent);
     }
 
+    // Opens one control screen connected to every Helena gateway found so far.
+    private void connectGateways() {
+        final Intent intent = new Intent(this, DeviceControlActivity.class);
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESSES,
+                mLeDeviceListAdapter.getGatewayAddresses());
+        if (mScanning) {
+            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            mScanning = false;
+        }
+        startActivity(intent);
+    }
+
     private void scanLeDevice(final boolean enable) {
         if (enable) {
             // Stops scanning after a pre-defined scan period.
@@ -183,27 +211,55 @@ public class DeviceScanActivity extends ListActivity {
 
     // Adapter for holding devices found through scanning.
     private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<BluetoothDevice> mLeDevices;
+        private ArrayList<ScanAggregator.Device> mLeDevices;
         private LayoutInflater mInflator;
+        private int mGatewayCount;
 
         public LeDeviceListAdapter() {
             super();
-            mLeDevices = new ArrayList<BluetoothDevice>();
+            mLeDevices = new ArrayList<ScanAggregator.Device>();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDevice device) {
-            if(!mLeDevices.contains(device)) {
-                mLeDevices.add(device);
+        // Picks up everything the aggregator collected since the last refresh.
+        public void refresh() {
+            mScanAggregator.snapshot(mLeDevices);
+            int gateways = 0;
+            for (int i = 0; i < mLeDevices.size(); i++) {
+                if (mLeDevices.get(i).gateway) {
+                    gateways++;
+                }
             }
+            if (gateways != mGatewayCount) {
+                mGatewayCount = gateways;
+                invalidateOptionsMenu();
+            }
+            notifyDataSetChanged();
         }
 
         public BluetoothDevice getDevice(int position) {
-            return mLeDevices.get(position);
+            return mLeDevices.get(position).device;
+        }
+
+        public int getGatewayCount() {
+            return mGatewayCount;
+        }
+
+        public String[] getGatewayAddresses() {
+            final ArrayList<String> addresses = new ArrayList<String>(mGatewayCount);
+            for (int i = 0; i < mLeDevices.size(); i++) {
+                if (mLeDevices.get(i).gateway) {
+                    addresses.add(mLeDevices.get(i).address);
+                }
+            }
+            return addresses.toArray(new String[addresses.size()]);
         }
 
         public void clear() {
+            mScanAggregator.clear();
             mLeDevices.clear();
+            mGatewayCount = 0;
+            notifyDataSetChanged();
         }
 
         @Override
@@ -230,18 +286,24 @@ public class DeviceScanActivity extends ListActivity {
                 viewHolder = new ViewHolder();
                 viewHolder.deviceAddress = (TextView) view.findViewById(R.id.device_address);
                 viewHolder.deviceName = (TextView) view.findViewById(R.id.device_name);
+                viewHolder.deviceRssi = (TextView) view.findViewById(R.id.device_rssi);
                 view.setTag(viewHolder);
             } else {
                 viewHolder = (ViewHolder) view.getTag();
             }
 
-            BluetoothDevice device = mLeDevices.get(i);
-            final String deviceName = device.getName();
+            final ScanAggregator.Device scanned = mLeDevices.get(i);
+            final String deviceName = scanned.name;
             if (deviceName != null && deviceName.length() > 0)
                 viewHolder.deviceName.setText(deviceName);
             else
                 viewHolder.deviceName.setText(R.string.unknown_device);
-            viewHolder.deviceAddress.setText(device.getAddress());
+            viewHolder.deviceAddress.setText(scanned.address);
+            final String label = scanned.gateway
+                    ? getString(R.string.helena_gateway) : scanned.manufacturer;
+            viewHolder.deviceRssi.setText(label == null
+                    ? getString(R.string.device_rssi, scanned.rssi, scanned.count)
+                    : getString(R.string.device_rssi_label, scanned.rssi, scanned.count, label));
 
             return view;
         }
@@ -253,18 +315,14 @@ public class DeviceScanActivity extends ListActivity {
 
         @Override
         public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mLeDeviceListAdapter.addDevice(device);
-                    mLeDeviceListAdapter.notifyDataSetChanged();
-                }
-            });
+            // Deduplicated here on the scan thread, the list refreshes in batches.
+            mScanAggregator.onScan(device, rssi, scanRecord);
         }
     };
 //
     static class ViewHolder {
         TextView deviceName;
         TextView deviceAddress;
+        TextView deviceRssi;
     	}
     }
@@ -0,0 +1,154 @@
+package edu.stanford.cs.sing.helena.ble;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.stanford.cs.sing.common.metrics.LatencyHistogram;
+
+/**
+ * Single-producer/single-consumer ring of preallocated frame slots.
+ *
+ * <p>The GATT callback thread {@link #offer(byte[], long) offers} notification values, which
+ * are copied into the next free slot together with the index of the gateway they came from;
+ * the consumer {@link #drain(FrameConsumer, int) drains} them in batches. Neither side takes a
+ * lock or allocates. When the ring is full the newest frame is dropped and counted.</p>
+ */
+public final class FrameRingBuffer {
+
+	/**
+	 * Receives drained frames. The frame array is owned by the ring and is only valid for the
+	 * duration of the call.
+	 */
+	public interface FrameConsumer {
+		/**
+		 * @param gateway index of the gateway the frame came from, {@link #NO_GATEWAY} if
+		 *        unknown
+		 */
+		void onFrame(int gateway, byte[] frame, int length, long receivedAt);
+	}
+
+	/** Gateway index of frames offered without one. */
+	public static final int NO_GATEWAY = 0;
+
+	private final byte[][] mFrames;
+	private final int[] mLengths;
+	private final int[] mGateways;
+	private final long[] mReceivedAt;
+	// System.nanoTime() at receipt, for latency measurement.
+	private final long[] mReceivedNanos;
+	private final int mMask;
+	private final int mMaxFrameLength;
+
+	// Next slot to read, advanced by the consumer only.
+	private final AtomicLong mHead = new AtomicLong();
+	// Next slot to write, advanced by the producer only.
+	private final AtomicLong mTail = new AtomicLong();
+	private final AtomicLong mDropped = new AtomicLong();
+	// Producer's last view of mHead, refreshed only when the ring looks full.
+	private long mCachedHead;
+
+	/**
+	 * @param capacity number of slots, rounded up to a power of two
+	 * @param maxFrameLength size of each slot; longer frames are truncated
+	 */
+	public FrameRingBuffer(int capacity, int maxFrameLength) {
+		if (capacity <= 0 || maxFrameLength <= 0) {
+			throw new IllegalArgumentException("capacity and maxFrameLength must be positive");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		mFrames = new byte[size][maxFrameLength];
+		mLengths = new int[size];
+		mGateways = new int[size];
+		mReceivedAt = new long[size];
+		mReceivedNanos = new long[size];
+		mMask = size - 1;
+		mMaxFrameLength = maxFrameLength;
+	}
+
+	/**
+	 * Copies a frame into the ring. Must only be called from the producer thread.
+	 *
+	 * @return false if the ring was full and the frame was dropped
+	 */
+	public boolean offer(byte[] frame, long receivedAt) {
+		return offer(NO_GATEWAY, frame, receivedAt, System.nanoTime());
+	}
+
+	/**
+	 * Copies a frame into the ring. Must only be called from the producer thread.
+	 *
+	 * @param gateway index of the gateway the frame came from
+	 * @param receivedNanos {@link System#nanoTime()} when the frame arrived
+	 * @return false if the ring was full and the frame was dropped
+	 */
+	public boolean offer(int gateway, byte[] frame, long receivedAt, long receivedNanos) {
+		final long tail = mTail.get();
+		if (tail - mCachedHead >= mFrames.length) {
+			mCachedHead = mHead.get();
+			if (tail - mCachedHead >= mFrames.length) {
+				mDropped.incrementAndGet();
+				return false;
+			}
+		}
+		final int slot = (int) tail & mMask;
+		final int length = Math.min(frame.length, mMaxFrameLength);
+		System.arraycopy(frame, 0, mFrames[slot], 0, length);
+		mLengths[slot] = length;
+		mGateways[slot] = gateway;
+		mReceivedAt[slot] = receivedAt;
+		mReceivedNanos[slot] = receivedNanos;
+		mTail.lazySet(tail + 1);
+		return true;
+	}
+
+	/**
+	 * Hands up to {@code max} queued frames to the consumer, oldest first. Must only be called
+	 * from the consumer thread.
+	 *
+	 * @return number of frames drained
+	 */
+	public int drain(FrameConsumer consumer, int max) {
+		return drain(consumer, max, null);
+	}
+
+	/**
+	 * Like {@link #drain(FrameConsumer, int)}, also recording for each frame the time from its
+	 * receipt until the consumer returned.
+	 *
+	 * @param latency histogram to record into, or null
+	 */
+	public int drain(FrameConsumer consumer, int max, LatencyHistogram latency) {
+		final long head = mHead.get();
+		final int count = (int) Math.min(mTail.get() - head, max);
+		for (int i = 0; i < count; i++) {
+			final int slot = (int) (head + i) & mMask;
+			consumer.onFrame(mGateways[slot], mFrames[slot], mLengths[slot], mReceivedAt[slot]);
+			if (latency != null) {
+				latency.recordSince(mReceivedNanos[slot]);
+			}
+		}
+		mHead.lazySet(head + count);
+		return count;
+	}
+
+	public boolean isEmpty() {
+		return mTail.get() == mHead.get();
+	}
+
+	public int size() {
+		return (int) (mTail.get() - mHead.get());
+	}
+
+	public int getCapacity() {
+		return mFrames.length;
+	}
+
+	/**
+	 * @return number of frames dropped because the ring was full
+	 */
+	public long getDroppedCount() {
+		return mDropped.get();
+	}
+}
@@ -0,0 +1,168 @@
+package edu.stanford.cs.sing.helena.ble;
+
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Synthetic Helena gateway. Emits listed-device frames on its own thread so the ingest path
+ * can be exercised and measured without Bluetooth.
+ *
+ * <p>Frames are sent in bursts of {@code burstSize} back-to-back frames, with bursts paced so
+ * that the average rate is {@code framesPerSecond}. Each frame packs {@code recordsPerFrame}
+ * records. The frame array handed to the target is reused, so the target must copy what it
+ * keeps.</p>
+ */
+public class GatewaySimulator implements Runnable {
+
+	/**
+	 * Entry point receiving the generated frames, called on the simulator thread.
+	 */
+	public interface FrameTarget {
+		void onListedDeviceFrame(byte[] frame);
+	}
+
+	/** How reports are spread over the firestorms and observed values. */
+	public enum Distribution {
+		/** Every firestorm reports equally often, every value is equally likely. */
+		UNIFORM,
+		/** A few firestorms send most of the reports, mostly with low values. */
+		SKEWED
+	}
+
+	private final FrameTarget mTarget;
+	private final int mFirestormCount;
+	private final int mFramesPerSecond;
+	private final int mBurstSize;
+	private final int mMaxObserved;
+	private final Distribution mDistribution;
+	private final Random mRandom;
+	private final byte[] mFrame;
+	private volatile boolean mRunning;
+	private volatile long mFramesSent;
+	private Thread mThread;
+
+	/**
+	 * @param target receives the frames
+	 * @param firestormCount number of distinct firestorm ids, at most 65536
+	 * @param framesPerSecond average frame rate
+	 * @param burstSize frames sent back-to-back per burst
+	 * @param maxObserved observed values are in 0..maxObserved
+	 * @param distribution how reports are spread over the firestorms and observed values
+	 * @param seed random seed, so runs can be reproduced
+	 */
+	public GatewaySimulator(FrameTarget target, int firestormCount, int framesPerSecond,
+			int burstSize, int maxObserved, Distribution distribution, long seed) {
+		this(target, firestormCount, framesPerSecond, burstSize, 1, maxObserved, distribution,
+				seed);
+	}
+
+	/**
+	 * @param recordsPerFrame records packed into each frame, at most what fits in
+	 *        {@link ListedDeviceDecoder#MAX_FRAME_SIZE}
+	 */
+	public GatewaySimulator(FrameTarget target, int firestormCount, int framesPerSecond,
+			int burstSize, int recordsPerFrame, int maxObserved, Distribution distribution,
+			long seed) {
+		if (firestormCount < 1 || firestormCount > 0x10000 || framesPerSecond < 1
+				|| burstSize < 1 || maxObserved < 0 || maxObserved > 0xFF || recordsPerFrame < 1
+				|| recordsPerFrame * ListedDeviceDecoder.RECORD_SIZE
+						> ListedDeviceDecoder.MAX_FRAME_SIZE) {
+			throw new IllegalArgumentException("invalid simulator configuration");
+		}
+		mFrame = new byte[recordsPerFrame * ListedDeviceDecoder.RECORD_SIZE];
+		mTarget = target;
+		mFirestormCount = firestormCount;
+		mFramesPerSecond = framesPerSecond;
+		mBurstSize = burstSize;
+		mMaxObserved = maxObserved;
+		mDistribution = distribution;
+		mRandom = new Random(seed);
+	}
+
+	/**
+	 * Starts emitting frames on a new thread.
+	 */
+	public synchronized void start() {
+		if (mThread != null) {
+			return;
+		}
+		mRunning = true;
+		mThread = new Thread(this, "GatewaySimulator");
+		mThread.start();
+	}
+
+	/**
+	 * Stops the simulator thread and waits for it to finish.
+	 */
+	public synchronized void stop() {
+		if (mThread == null) {
+			return;
+		}
+		mRunning = false;
+		LockSupport.unpark(mThread);
+		try {
+			mThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		mThread = null;
+	}
+
+	public boolean isRunning() {
+		return mRunning;
+	}
+
+	@Override
+	public void run() {
+		final long burstPeriod = 1000000000L * mBurstSize / mFramesPerSecond;
+		long deadline = System.nanoTime();
+		while (mRunning) {
+			for (int i = 0; i < mBurstSize; i++) {
+				nextFrame();
+				mTarget.onListedDeviceFrame(mFrame);
+			}
+			mFramesSent += mBurstSize;
+			deadline += burstPeriod;
+			long wait;
+			while (mRunning && (wait = deadline - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(wait);
+			}
+		}
+	}
+
+	/**
+	 * Emits {@code count} frames on the calling thread, as fast as the target takes them.
+	 */
+	public void emit(long count) {
+		for (long i = 0; i < count; i++) {
+			nextFrame();
+			mTarget.onListedDeviceFrame(mFrame);
+		}
+		mFramesSent += count;
+	}
+
+	private void nextFrame() {
+		for (int offset = 0; offset < mFrame.length; offset += ListedDeviceDecoder.RECORD_SIZE) {
+			final int index = next(mFirestormCount);
+			mFrame[offset] = (byte) (index >> 8);
+			mFrame[offset + 1] = (byte) index;
+			mFrame[offset + 2] = (byte) next(mMaxObserved + 1);
+		}
+	}
+
+	// Random number in 0..bound-1 following the distribution.
+	private int next(int bound) {
+		if (mDistribution == Distribution.SKEWED) {
+			final double r = mRandom.nextDouble();
+			return (int) (bound * r * r * r);
+		}
+		return mRandom.nextInt(bound);
+	}
+
+	/**
+	 * @return number of frames emitted so far
+	 */
+	public long getFramesSent() {
+		return mFramesSent;
+	}
+}
@@ -0,0 +1,503 @@
+package edu.stanford.cs.sing.helena.ble;
+
+import java.util.Random;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import edu.stanford.cs.sing.common.logger.Log;
+import edu.stanford.cs.sing.common.metrics.Metrics;
+
+/**
+ * GATT connection to one Helena gateway, owned by {@link BluetoothLeService}.
+ *
+ * <p>Each connection runs its own state machine, from connecting through service discovery to
+ * a subscription on the listed-device characteristic, and has its own callback, so events
+ * never need to be matched back to a gateway. Frames are handed to the service tagged with the
+ * gateway index the service assigned.</p>
+ *
+ * <p>All GATT operations go through a {@link GattOperationQueue}, so the steps from service
+ * discovery to the subscription run strictly one after the other and are retried on
+ * failure. If discovery or the subscription still fails, the link is dropped and reconnected
+ * like a lost one.</p>
+ *
+ * <p>When the link drops without {@link #disconnect()} having been called, the connection
+ * reconnects on its own with jittered exponential {@link Backoff}. Every attempt creates a new
+ * BluetoothGatt with autoConnect off, as BluetoothGatt.connect() would wait for the stack's
+ * background connection instead. Attribute objects belong to the BluetoothGatt that
+ * discovered them, so service discovery runs on every reconnect; for a gateway it has seen
+ * before, the stack usually answers it from its attribute cache.</p>
+ */
+public class GattConnection {
+	private final static String TAG = "GattConnection";
+
+	public static final int STATE_DISCONNECTED = 0;
+	public static final int STATE_CONNECTING = 1;
+	/** Connected, discovering services. */
+	public static final int STATE_CONNECTED = 2;
+	/** Notification enable written to the gateway, not acknowledged yet. */
+	public static final int STATE_SUBSCRIBING = 3;
+	/** Receiving listed-device notifications. */
+	public static final int STATE_SUBSCRIBED = 4;
+
+	/** ATT MTU used until a larger one is negotiated. */
+	public static final int DEFAULT_MTU = 23;
+	/**
+	 * MTU requested after connecting; 247 fills one link-layer packet when the controllers
+	 * support data length extension. Gateways pack as many records per notification as fit.
+	 */
+	public static final int DESIRED_MTU = 247;
+
+	private static final UUID UUID_CLIENT_CHARACTERISTIC_CONFIG =
+			UUID.fromString(HelenaGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+
+	private static final long RECONNECT_INITIAL_MS = 250;
+	private static final long RECONNECT_MAX_MS = 30000;
+	// A connection attempt still pending after this long is cancelled and retried.
+	private static final long CONNECT_TIMEOUT_MS = 10000;
+
+	private final BluetoothLeService mService;
+	private final String mAddress;
+	private final int mGateway;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final GattOperationQueue mQueue;
+	// Written under this, read without it by the queue's target.
+	private volatile BluetoothGatt mGatt;
+	private volatile int mState = STATE_DISCONNECTED;
+	private volatile long mConnectStartNanos;
+	private volatile int mMtu = DEFAULT_MTU;
+	// Listed-device characteristic and the client configuration descriptor written to
+	// subscribe, found by discovery on mGatt and null before.
+	private volatile BluetoothGattCharacteristic mListed;
+	private volatile BluetoothGattDescriptor mSubscription;
+	// When the link dropped, 0 if it has not dropped since the last subscription.
+	private volatile long mDroppedAtNanos;
+
+	// Guarded by this.
+	private BluetoothAdapter mAdapter;
+	// False once disconnect() or close() was called.
+	private boolean mReconnect;
+	private final Backoff mBackoff =
+			new Backoff(RECONNECT_INITIAL_MS, RECONNECT_MAX_MS, new Random());
+
+	private final Runnable mReconnectTask = new Runnable() {
+		@Override
+		public void run() {
+			reconnect();
+		}
+	};
+
+	private final Runnable mConnectTimeout = new Runnable() {
+		@Override
+		public void run() {
+			onConnectTimeout();
+		}
+	};
+
+	// Starts queued operations on mGatt.
+	private final GattOperationQueue.Target mTarget = new GattOperationQueue.Target() {
+		@Override
+		public boolean execute(GattOperationQueue.Operation op) {
+			final BluetoothGatt gatt = mGatt;
+			if (gatt == null) {
+				return false;
+			}
+			switch (op.type) {
+			case GattOperationQueue.READ:
+				return gatt.readCharacteristic((BluetoothGattCharacteristic) op.attribute);
+			case GattOperationQueue.WRITE:
+			case GattOperationQueue.WRITE_NO_RESPONSE:
+				final BluetoothGattCharacteristic characteristic =
+						(BluetoothGattCharacteristic) op.attribute;
+				characteristic.setWriteType(op.type == GattOperationQueue.WRITE
+						? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+						: BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+				characteristic.setValue(op.value);
+				return gatt.writeCharacteristic(characteristic);
+			case GattOperationQueue.WRITE_DESCRIPTOR:
+				final BluetoothGattDescriptor descriptor = (BluetoothGattDescriptor) op.attribute;
+				descriptor.setValue(op.value);
+				return gatt.writeDescriptor(descriptor);
+			case GattOperationQueue.REQUEST_MTU:
+				return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+						&& gatt.requestMtu(op.mtu);
+			case GattOperationQueue.DISCOVER_SERVICES:
+				return gatt.discoverServices();
+			default:
+				return false;
+			}
+		}
+	};
+
+	private final GattOperationQueue.Timer mTimer = new GattOperationQueue.Timer() {
+		@Override
+		public void schedule(Runnable task, long delayMs) {
+			mHandler.postDelayed(task, delayMs);
+		}
+
+		@Override
+		public void cancel(Runnable task) {
+			mHandler.removeCallbacks(task);
+		}
+	};
+
+	// Advances the state machine as queued operations finish.
+	private final GattOperationQueue.Listener mQueueListener = new GattOperationQueue.Listener() {
+		@Override
+		public void onOperationComplete(GattOperationQueue.Operation op, int status) {
+			if (status == GattOperationQueue.STATUS_CANCELLED) {
+				return;
+			}
+			switch (op.type) {
+			case GattOperationQueue.DISCOVER_SERVICES:
+				if (status != BluetoothGatt.GATT_SUCCESS) {
+					Log.w(TAG, "Gateway {} service discovery failed: {}", mGateway, status);
+					dropLink();
+					return;
+				}
+				mService.onGatewayEvent(GattConnection.this,
+						BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
+				final BluetoothGatt gatt = mGatt;
+				if (gatt != null && findHandles(gatt)) {
+					enableNotifications(gatt);
+				}
+				break;
+			case GattOperationQueue.WRITE_DESCRIPTOR:
+				if (op.attribute != mSubscription) {
+					break;
+				}
+				if (status == BluetoothGatt.GATT_SUCCESS) {
+					onSubscribed();
+				} else {
+					Log.w(TAG, "Gateway {} subscription failed: {}", mGateway, status);
+					setState(STATE_CONNECTED);
+					dropLink();
+				}
+				break;
+			default:
+				if (status != BluetoothGatt.GATT_SUCCESS) {
+					Log.w(TAG, op.type == GattOperationQueue.REQUEST_MTU
+							? "Gateway {} MTU request failed: {}"
+							: op.type == GattOperationQueue.READ
+									? "Gateway {} read failed: {}"
+									: "Gateway {} write failed: {}", mGateway, status);
+				}
+				break;
+			}
+		}
+	};
+
+	private final BluetoothGattCallback mCallback = new BluetoothGattCallback() {
+		@Override
+		public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+			Log.v(TAG, "Gateway {} connection state {}", mGateway, newState);
+			if (newState == BluetoothProfile.STATE_CONNECTED) {
+				mHandler.removeCallbacks(mConnectTimeout);
+				setState(STATE_CONNECTED);
+				Log.i(TAG, "Gateway {} connected", mGateway);
+				mMtu = DEFAULT_MTU;
+				// Negotiated first so the gateway packs records from the first notification.
+				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+					mQueue.requestMtu(DESIRED_MTU);
+				}
+				mQueue.discoverServices();
+			} else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+				Log.i(TAG, "Gateway {} disconnected, status {}", mGateway, status);
+				mQueue.clear();
+				setState(STATE_DISCONNECTED);
+				onLinkDown();
+			}
+		}
+
+		@Override
+		public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+			mQueue.onServicesDiscovered(status);
+		}
+
+		@Override
+		public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+				int status) {
+			mQueue.onDescriptorWrite(descriptor, status);
+		}
+
+		@Override
+		public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+			if (status == BluetoothGatt.GATT_SUCCESS) {
+				mMtu = mtu;
+				Log.i(TAG, "Gateway {} MTU {}", mGateway, mtu);
+			}
+			mQueue.onMtuChanged(status);
+		}
+
+		@Override
+		public void onCharacteristicRead(BluetoothGatt gatt,
+				BluetoothGattCharacteristic characteristic, int status) {
+			Log.v(TAG, "Gateway {} characteristic read status {}", mGateway, status);
+			if (status == BluetoothGatt.GATT_SUCCESS) {
+				mService.dispatchCharacteristic(GattConnection.this, characteristic);
+			}
+			mQueue.onCharacteristicRead(characteristic, status);
+		}
+
+		@Override
+		public void onCharacteristicWrite(BluetoothGatt gatt,
+				BluetoothGattCharacteristic characteristic, int status) {
+			mQueue.onCharacteristicWrite(characteristic, status);
+		}
+
+		@Override
+		public void onCharacteristicChanged(BluetoothGatt gatt,
+				BluetoothGattCharacteristic characteristic) {
+			mService.dispatchCharacteristic(GattConnection.this, characteristic);
+		}
+	};
+
+	GattConnection(BluetoothLeService service, String address, int gateway) {
+		mService = service;
+		mAddress = address;
+		mGateway = gateway;
+		mQueue = new GattOperationQueue(mTarget, mTimer, mQueueListener);
+	}
+
+	public String getAddress() {
+		return mAddress;
+	}
+
+	/**
+	 * @return index tagging frames from this gateway, assigned by the service
+	 */
+	public int getGateway() {
+		return mGateway;
+	}
+
+	public int getState() {
+		return mState;
+	}
+
+	/**
+	 * @return negotiated ATT MTU; notifications carry up to three bytes less
+	 */
+	public int getMtu() {
+		return mMtu;
+	}
+
+	/**
+	 * @return true once service discovery has started, i.e. the link is up
+	 */
+	public boolean isConnected() {
+		return mState >= STATE_CONNECTED;
+	}
+
+	/**
+	 * Connects and keeps reconnecting after link loss until {@link #disconnect()} or
+	 * {@link #close()}. The result is reported through the service's broadcasts.
+	 *
+	 * @return true if the connection was initiated
+	 */
+	synchronized boolean connect(BluetoothAdapter adapter) {
+		mAdapter = adapter;
+		mReconnect = true;
+		mBackoff.reset();
+		mHandler.removeCallbacks(mReconnectTask);
+		if (mState != STATE_DISCONNECTED) {
+			return true;
+		}
+		mConnectStartNanos = System.nanoTime();
+		return openLocked();
+	}
+
+	private boolean openLocked() {
+		final BluetoothDevice device = mAdapter.getRemoteDevice(mAddress);
+		if (device == null) {
+			Log.w(TAG, "Device not found.  Unable to connect.");
+			return false;
+		}
+		closeGattLocked();
+		// We want to directly connect to the device, so we are setting the autoConnect
+		// parameter to false.
+		mGatt = device.connectGatt(mService, false, mCallback);
+		if (mGatt == null) {
+			return false;
+		}
+		Log.d(TAG, "Gateway {} creating a new connection", mGateway);
+		setState(STATE_CONNECTING);
+		mHandler.removeCallbacks(mConnectTimeout);
+		mHandler.postDelayed(mConnectTimeout, CONNECT_TIMEOUT_MS);
+		return true;
+	}
+
+	/**
+	 * Disconnects and stops reconnecting.
+	 */
+	synchronized void disconnect() {
+		mReconnect = false;
+		mHandler.removeCallbacks(mReconnectTask);
+		mHandler.removeCallbacks(mConnectTimeout);
+		if (mGatt != null) {
+			mGatt.disconnect();
+		}
+	}
+
+	/**
+	 * Releases the BluetoothGatt and stops reconnecting. No broadcast follows, as the callback
+	 * is not invoked again.
+	 */
+	synchronized void close() {
+		mReconnect = false;
+		mHandler.removeCallbacks(mReconnectTask);
+		mHandler.removeCallbacks(mConnectTimeout);
+		closeGattLocked();
+	}
+
+	private void closeGattLocked() {
+		if (mGatt == null) {
+			return;
+		}
+		mQueue.clear();
+		mGatt.close();
+		mGatt = null;
+		mListed = null;
+		mSubscription = null;
+		mState = STATE_DISCONNECTED;
+	}
+
+	private synchronized void onLinkDown() {
+		mHandler.removeCallbacks(mConnectTimeout);
+		if (!mReconnect) {
+			return;
+		}
+		if (mDroppedAtNanos == 0) {
+			mDroppedAtNanos = System.nanoTime();
+		}
+		scheduleReconnectLocked();
+	}
+
+	private void scheduleReconnectLocked() {
+		final long delay = mBackoff.nextDelayMs();
+		Log.i(TAG, "Gateway {} reconnecting in {} ms", mGateway, delay);
+		mHandler.removeCallbacks(mReconnectTask);
+		mHandler.postDelayed(mReconnectTask, delay);
+	}
+
+	private synchronized void reconnect() {
+		if (!mReconnect || mState != STATE_DISCONNECTED) {
+			return;
+		}
+		Metrics.RECONNECTS.inc();
+		if (!openLocked()) {
+			scheduleReconnectLocked();
+		}
+	}
+
+	// The queue has run out of retries, and no data will arrive on this link. Disconnecting
+	// hands over to onLinkDown, which reconnects with backoff unless disconnect() was called.
+	private synchronized void dropLink() {
+		if (mGatt != null) {
+			mGatt.disconnect();
+		}
+	}
+
+	private synchronized void onConnectTimeout() {
+		if (mState != STATE_CONNECTING) {
+			return;
+		}
+		Log.w(TAG, "Gateway {} connection attempt timed out", mGateway);
+		if (mGatt != null) {
+			mGatt.disconnect();
+		}
+		setState(STATE_DISCONNECTED);
+		if (mReconnect) {
+			scheduleReconnectLocked();
+		}
+	}
+
+	private synchronized void onSubscribed() {
+		Log.i(TAG, "Gateway {} subscribed", mGateway);
+		mBackoff.reset();
+		if (mDroppedAtNanos != 0) {
+			Metrics.LINK_DROP_TO_SUBSCRIBED.recordSince(mDroppedAtNanos);
+			mDroppedAtNanos = 0;
+		} else {
+			Metrics.CONNECT_TO_SUBSCRIBED.recordSince(mConnectStartNanos);
+		}
+		setState(STATE_SUBSCRIBED);
+	}
+
+	BluetoothGatt getGatt() {
+		return mGatt;
+	}
+
+	/**
+	 * Queues a read; the value is delivered like a notification.
+	 */
+	public void read(BluetoothGattCharacteristic characteristic) {
+		mQueue.read(characteristic);
+	}
+
+	/**
+	 * Queues a write that waits for the gateway's response.
+	 */
+	public void write(BluetoothGattCharacteristic characteristic, byte[] value) {
+		mQueue.write(characteristic, value);
+	}
+
+	/**
+	 * Queues a write without response; consecutive ones are pipelined.
+	 */
+	public void writeNoResponse(BluetoothGattCharacteristic characteristic, byte[] value) {
+		mQueue.writeNoResponse(characteristic, value);
+	}
+
+	// Looks up the listed-device characteristic and its configuration descriptor.
+	private boolean findHandles(BluetoothGatt gatt) {
+		final BluetoothGattService service =
+				gatt.getService(BluetoothLeService.UUID_HELENA_SERVICE);
+		if (service == null) {
+			Log.w(TAG, "Gateway {} has no Helena service", mGateway);
+			return false;
+		}
+		final BluetoothGattCharacteristic listed =
+				service.getCharacteristic(BluetoothLeService.UUID_LISTED_DEVICE);
+		if (listed == null
+				|| (listed.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) == 0) {
+			Log.w(TAG, "Gateway {} does not notify listed devices", mGateway);
+			return false;
+		}
+		final BluetoothGattDescriptor descriptor =
+				listed.getDescriptor(UUID_CLIENT_CHARACTERISTIC_CONFIG);
+		if (descriptor == null) {
+			Log.w(TAG, "Gateway {} has no client configuration descriptor", mGateway);
+			return false;
+		}
+		mListed = listed;
+		mSubscription = descriptor;
+		return true;
+	}
+
+	// Enables listed-device notifications locally and on the gateway.
+	private void enableNotifications(BluetoothGatt gatt) {
+		// Local only, takes effect immediately and needs no queueing.
+		gatt.setCharacteristicNotification(mListed, true);
+		setState(STATE_SUBSCRIBING);
+		mQueue.writeDescriptor(mSubscription, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+	}
+
+	private void setState(int state) {
+		final int previous = mState;
+		mState = state;
+		if (state == STATE_CONNECTED && previous < STATE_CONNECTED) {
+			mService.onGatewayEvent(this, BluetoothLeService.ACTION_GATT_CONNECTED);
+		} else if (state == STATE_DISCONNECTED && previous != STATE_DISCONNECTED) {
+			mService.onGatewayEvent(this, BluetoothLeService.ACTION_GATT_DISCONNECTED);
+		}
+	}
+}
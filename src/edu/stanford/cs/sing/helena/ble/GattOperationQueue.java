@@ -0,0 +1,384 @@
+package edu.stanford.cs.sing.helena.ble;
+
+import java.util.ArrayDeque;
+
+import edu.stanford.cs.sing.common.metrics.Metrics;
+
+/**
+ * Serializes the GATT operations of one connection. Android silently drops an operation issued
+ * while another is still in flight, so every read, write, descriptor write, MTU request and
+ * service discovery goes through here and is only started once the previous one has completed
+ * through its BluetoothGattCallback.
+ *
+ * <p>An operation that the stack refuses to start, that completes with an error, or whose
+ * callback does not arrive within the timeout is retried up to the retry limit; after that it
+ * is reported failed and the queue moves on. Writes without response are pipelined: up to a
+ * window of them are started back to back without waiting for their callbacks, and operations
+ * that do need a response wait until the pipeline has drained.</p>
+ *
+ * <p>The queue does not touch Android classes. Operations are started through a {@link Target}
+ * and timeouts are scheduled through a {@link Timer}, so the queue also runs against an
+ * in-memory stand-in for BluetoothGatt. Attributes are passed through untouched; on Android
+ * they are BluetoothGattCharacteristic and BluetoothGattDescriptor instances. All methods are
+ * thread-safe.</p>
+ */
+public final class GattOperationQueue {
+
+	public static final int READ = 1;
+	public static final int WRITE = 2;
+	public static final int WRITE_NO_RESPONSE = 3;
+	public static final int WRITE_DESCRIPTOR = 4;
+	public static final int REQUEST_MTU = 5;
+	public static final int DISCOVER_SERVICES = 6;
+
+	/** Same value as BluetoothGatt.GATT_SUCCESS. */
+	public static final int STATUS_SUCCESS = 0;
+	/** The callback did not arrive in time on the last attempt. */
+	public static final int STATUS_TIMEOUT = -1;
+	/** The stack refused to start the operation on the last attempt. */
+	public static final int STATUS_NOT_STARTED = -2;
+	/** The operation was dropped by {@link #clear()}. */
+	public static final int STATUS_CANCELLED = -3;
+
+	public static final long DEFAULT_TIMEOUT_MS = 5000;
+	public static final int DEFAULT_MAX_RETRIES = 2;
+	public static final int DEFAULT_WRITE_WINDOW = 4;
+	// Wait before restarting an operation the stack refused.
+	private static final long RETRY_DELAY_MS = 50;
+
+	/**
+	 * Starts operations on the device.
+	 */
+	public interface Target {
+		/**
+		 * @return false if the operation could not be started
+		 */
+		boolean execute(Operation op);
+	}
+
+	/**
+	 * Runs delayed tasks; on Android a Handler.
+	 */
+	public interface Timer {
+		void schedule(Runnable task, long delayMs);
+
+		void cancel(Runnable task);
+	}
+
+	/**
+	 * Told about every operation once it has succeeded or finally failed. Called on the thread
+	 * that completed it, without the queue's lock held.
+	 */
+	public interface Listener {
+		/**
+		 * @param status {@link #STATUS_SUCCESS}, a GATT error status, or one of the negative
+		 *        statuses of this class
+		 */
+		void onOperationComplete(Operation op, int status);
+	}
+
+	/**
+	 * One queued GATT operation.
+	 */
+	public static final class Operation {
+		public final int type;
+		/** Characteristic or descriptor, null for MTU requests and service discovery. */
+		public final Object attribute;
+		/** Value to write, null for other operations. */
+		public final byte[] value;
+		/** Requested MTU for {@link #REQUEST_MTU}. */
+		public final int mtu;
+		int attempts;
+
+		Operation(int type, Object attribute, byte[] value, int mtu) {
+			this.type = type;
+			this.attribute = attribute;
+			this.value = value;
+			this.mtu = mtu;
+		}
+
+		/**
+		 * @return number of times the operation has been started or tried
+		 */
+		public int getAttempts() {
+			return attempts;
+		}
+	}
+
+	private final Target mTarget;
+	private final Timer mTimer;
+	private final Listener mListener;
+	private final long mTimeoutMs;
+	private final int mMaxRetries;
+	private final int mWriteWindow;
+
+	// Guarded by this.
+	private final ArrayDeque<Operation> mPending = new ArrayDeque<Operation>();
+	// Writes without response started and not acknowledged yet, oldest first.
+	private final ArrayDeque<Operation> mWritesInFlight = new ArrayDeque<Operation>();
+	// Operation waiting for its callback, or for a retry if it was not started.
+	private Operation mInFlight;
+	private boolean mInFlightStarted;
+	// Operations finished while holding the lock, reported once it is released.
+	private final ArrayDeque<Operation> mFinished = new ArrayDeque<Operation>();
+	private final ArrayDeque<Integer> mFinishedStatus = new ArrayDeque<Integer>();
+
+	private final Runnable mTimeout = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (GattOperationQueue.this) {
+				onTimeoutLocked();
+			}
+			reportFinished();
+		}
+	};
+
+	public GattOperationQueue(Target target, Timer timer, Listener listener) {
+		this(target, timer, listener, DEFAULT_TIMEOUT_MS, DEFAULT_MAX_RETRIES,
+				DEFAULT_WRITE_WINDOW);
+	}
+
+	/**
+	 * @param timeoutMs time to wait for each callback
+	 * @param maxRetries retries after the first attempt
+	 * @param writeWindow writes without response started ahead of their callbacks
+	 */
+	public GattOperationQueue(Target target, Timer timer, Listener listener, long timeoutMs,
+			int maxRetries, int writeWindow) {
+		if (timeoutMs <= 0 || maxRetries < 0 || writeWindow < 1) {
+			throw new IllegalArgumentException("invalid timeout, retries or window");
+		}
+		mTarget = target;
+		mTimer = timer;
+		mListener = listener;
+		mTimeoutMs = timeoutMs;
+		mMaxRetries = maxRetries;
+		mWriteWindow = writeWindow;
+	}
+
+	public Operation read(Object characteristic) {
+		return enqueue(new Operation(READ, characteristic, null, 0));
+	}
+
+	public Operation write(Object characteristic, byte[] value) {
+		return enqueue(new Operation(WRITE, characteristic, value, 0));
+	}
+
+	public Operation writeNoResponse(Object characteristic, byte[] value) {
+		return enqueue(new Operation(WRITE_NO_RESPONSE, characteristic, value, 0));
+	}
+
+	public Operation writeDescriptor(Object descriptor, byte[] value) {
+		return enqueue(new Operation(WRITE_DESCRIPTOR, descriptor, value, 0));
+	}
+
+	public Operation requestMtu(int mtu) {
+		return enqueue(new Operation(REQUEST_MTU, null, null, mtu));
+	}
+
+	public Operation discoverServices() {
+		return enqueue(new Operation(DISCOVER_SERVICES, null, null, 0));
+	}
+
+	private Operation enqueue(Operation op) {
+		synchronized (this) {
+			mPending.add(op);
+			advanceLocked();
+		}
+		reportFinished();
+		return op;
+	}
+
+	/**
+	 * Completes a read; call from onCharacteristicRead.
+	 */
+	public void onCharacteristicRead(Object characteristic, int status) {
+		complete(READ, characteristic, status);
+	}
+
+	/**
+	 * Completes a write with or without response; call from onCharacteristicWrite.
+	 */
+	public void onCharacteristicWrite(Object characteristic, int status) {
+		synchronized (this) {
+			final Operation write = mWritesInFlight.peek();
+			if (write != null && write.attribute == characteristic) {
+				mWritesInFlight.poll();
+				finishLocked(write, status);
+				if (mWritesInFlight.isEmpty()) {
+					mTimer.cancel(mTimeout);
+				}
+				advanceLocked();
+			} else {
+				completeLocked(WRITE, characteristic, status);
+			}
+		}
+		reportFinished();
+	}
+
+	/**
+	 * Completes a descriptor write; call from onDescriptorWrite.
+	 */
+	public void onDescriptorWrite(Object descriptor, int status) {
+		complete(WRITE_DESCRIPTOR, descriptor, status);
+	}
+
+	/**
+	 * Completes an MTU request; call from onMtuChanged.
+	 */
+	public void onMtuChanged(int status) {
+		complete(REQUEST_MTU, null, status);
+	}
+
+	/**
+	 * Completes service discovery; call from onServicesDiscovered.
+	 */
+	public void onServicesDiscovered(int status) {
+		complete(DISCOVER_SERVICES, null, status);
+	}
+
+	/**
+	 * Drops all queued and in-flight operations, reporting them {@link #STATUS_CANCELLED}.
+	 * Call when the link goes down.
+	 */
+	public void clear() {
+		synchronized (this) {
+			mTimer.cancel(mTimeout);
+			if (mInFlight != null) {
+				finishLocked(mInFlight, STATUS_CANCELLED);
+				mInFlight = null;
+			}
+			while (!mWritesInFlight.isEmpty()) {
+				finishLocked(mWritesInFlight.poll(), STATUS_CANCELLED);
+			}
+			while (!mPending.isEmpty()) {
+				finishLocked(mPending.poll(), STATUS_CANCELLED);
+			}
+		}
+		reportFinished();
+	}
+
+	/**
+	 * @return number of operations queued or in flight
+	 */
+	public synchronized int size() {
+		return mPending.size() + mWritesInFlight.size() + (mInFlight == null ? 0 : 1);
+	}
+
+	public synchronized boolean isIdle() {
+		return mInFlight == null && mWritesInFlight.isEmpty() && mPending.isEmpty();
+	}
+
+	private void complete(int type, Object attribute, int status) {
+		synchronized (this) {
+			completeLocked(type, attribute, status);
+		}
+		reportFinished();
+	}
+
+	private void completeLocked(int type, Object attribute, int status) {
+		final Operation op = mInFlight;
+		// Writes with and without response share a callback, so match them together.
+		if (op == null || !mInFlightStarted || op.attribute != attribute
+				|| (op.type != type && !(type == WRITE && op.type == WRITE_NO_RESPONSE))) {
+			// Stray or late callback, e.g. after the operation timed out.
+			return;
+		}
+		mTimer.cancel(mTimeout);
+		if (status != STATUS_SUCCESS && op.attempts <= mMaxRetries) {
+			Metrics.GATT_RETRIES.inc();
+			startLocked(op);
+			return;
+		}
+		mInFlight = null;
+		finishLocked(op, status);
+		advanceLocked();
+	}
+
+	private void onTimeoutLocked() {
+		if (mInFlight != null) {
+			final Operation op = mInFlight;
+			if (op.attempts <= mMaxRetries) {
+				Metrics.GATT_RETRIES.inc();
+				startLocked(op);
+				return;
+			}
+			mInFlight = null;
+			finishLocked(op, mInFlightStarted ? STATUS_TIMEOUT : STATUS_NOT_STARTED);
+		} else {
+			// The stack never acknowledged these; stop waiting for them.
+			while (!mWritesInFlight.isEmpty()) {
+				finishLocked(mWritesInFlight.poll(), STATUS_TIMEOUT);
+			}
+		}
+		advanceLocked();
+	}
+
+	// Starts as many pending operations as the in-flight rules allow.
+	private void advanceLocked() {
+		while (mInFlight == null && !mPending.isEmpty()) {
+			final Operation next = mPending.peek();
+			if (next.type == WRITE_NO_RESPONSE) {
+				if (mWritesInFlight.size() >= mWriteWindow) {
+					return;
+				}
+				next.attempts++;
+				if (mTarget.execute(next)) {
+					mPending.poll();
+					mWritesInFlight.add(next);
+					mTimer.cancel(mTimeout);
+					mTimer.schedule(mTimeout, mTimeoutMs);
+					continue;
+				}
+				next.attempts--;
+				if (!mWritesInFlight.isEmpty()) {
+					// The stack is busy with earlier writes; try again when one completes.
+					return;
+				}
+				// Refused with nothing in flight, handle it like any other operation.
+			} else if (!mWritesInFlight.isEmpty()) {
+				return;
+			}
+			mPending.poll();
+			startLocked(next);
+		}
+	}
+
+	private void startLocked(Operation op) {
+		mInFlight = op;
+		op.attempts++;
+		mInFlightStarted = mTarget.execute(op);
+		mTimer.cancel(mTimeout);
+		mTimer.schedule(mTimeout, mInFlightStarted ? mTimeoutMs : RETRY_DELAY_MS);
+	}
+
+	private void finishLocked(Operation op, int status) {
+		if (status != STATUS_SUCCESS && status != STATUS_CANCELLED) {
+			Metrics.GATT_FAILURES.inc();
+		}
+		mFinished.add(op);
+		mFinishedStatus.add(status);
+	}
+
+	private void reportFinished() {
+		if (mListener == null) {
+			synchronized (this) {
+				mFinished.clear();
+				mFinishedStatus.clear();
+			}
+			return;
+		}
+		while (true) {
+			final Operation op;
+			final int status;
+			synchronized (this) {
+				op = mFinished.poll();
+				if (op == null) {
+					return;
+				}
+				status = mFinishedStatus.poll();
+			}
+			mListener.onOperationComplete(op, status);
+		}
+	}
+}
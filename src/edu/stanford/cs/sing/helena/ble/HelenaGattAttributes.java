@@ -7,7 +7,7 @@ public class HelenaGattAttributes {
 	private static HashMap<String, String> attributes = new HashMap<String, String>();
 	public static final String UUID_LISTED_DEVICE = "00002003-0000-1000-8000-00805f9b34fb";
 	public static final String HELENA_SERVICE = "00001978-0000-1000-8000-00805f9b34fb";
-	public static String CLIENT_CHARACTERISTIC_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";
+	public static final String CLIENT_CHARACTERISTIC_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";
     
 
 
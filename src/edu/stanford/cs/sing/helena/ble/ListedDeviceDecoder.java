@@ -0,0 +1,60 @@
+package edu.stanford.cs.sing.helena.ble;
+
+/**
+ * Decodes notifications of the {@link HelenaGattAttributes#UUID_LISTED_DEVICE} characteristic.
+ *
+ * <p>A record is three bytes: the firestorm id as a big-endian unsigned 16-bit value followed by
+ * the observed value as one unsigned byte. Fields are read straight out of the characteristic
+ * value into primitives, so decoding a frame never allocates.</p>
+ *
+ * <p>A frame is packed: it holds as many records back to back as the negotiated MTU allows,
+ * without a header, so the record at index i starts at {@code i * RECORD_SIZE}. A frame of
+ * exactly one record is the original unpacked format. Bytes after the last complete record
+ * are ignored.</p>
+ */
+public final class ListedDeviceDecoder {
+
+	/** Size of one listed-device record in bytes. */
+	public static final int RECORD_SIZE = 3;
+	/** Largest frame, the notification payload at the MTU the service requests. */
+	public static final int MAX_FRAME_SIZE = GattConnection.DESIRED_MTU - 3;
+
+	private ListedDeviceDecoder() {
+		// No instances.
+	}
+
+	/**
+	 * @param frame characteristic value, may be null
+	 * @param length number of valid bytes in the frame
+	 * @return true if the frame holds at least one complete record
+	 */
+	public static boolean isValid(byte[] frame, int length) {
+		return frame != null && length >= RECORD_SIZE && length <= frame.length;
+	}
+
+	/**
+	 * @param length number of valid bytes in a frame
+	 * @return number of complete records in the frame
+	 */
+	public static int recordCount(int length) {
+		return length / RECORD_SIZE;
+	}
+
+	/**
+	 * @param frame characteristic value
+	 * @param offset offset of the record within the frame
+	 * @return firestorm id, 0..65535
+	 */
+	public static int firestormId(byte[] frame, int offset) {
+		return (frame[offset] & 0xFF) << 8 | (frame[offset + 1] & 0xFF);
+	}
+
+	/**
+	 * @param frame characteristic value
+	 * @param offset offset of the record within the frame
+	 * @return observed value, 0..255
+	 */
+	public static int observed(byte[] frame, int offset) {
+		return frame[offset + 2] & 0xFF;
+	}
+}
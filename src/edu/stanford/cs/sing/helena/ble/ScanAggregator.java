@@ -0,0 +1,169 @@
+package edu.stanford.cs.sing.helena.ble;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Collects LE scan results on the scan callback thread, one entry per device address, and
+ * tells the UI about changes at most once per refresh interval.
+ *
+ * <p>Repeated advertisements only update the entry found through a hash index on the address;
+ * the UI then copies all entries with {@link #snapshot(ArrayList)} in one go. Scan records are
+ * read in place with an {@link AdvertisementParser}.</p>
+ */
+public class ScanAggregator {
+
+	/**
+	 * Aggregated state of one scanned device.
+	 */
+	public static class Device {
+		public BluetoothDevice device;
+		public String address;
+		/** RSSI of the latest advertisement, in dBm. */
+		public int rssi;
+		/** Number of advertisements seen. */
+		public int count;
+		/** Time of the latest advertisement, from {@link System#currentTimeMillis()}. */
+		public long lastSeen;
+		/** Device name, or the advertised local name, null if neither is known. */
+		public String name;
+		/** Company name from the manufacturer data, null if none was advertised. */
+		public String manufacturer;
+		/** Advertised TX power, or {@link AdvertisementParser#NO_TX_POWER}. */
+		public int txPower;
+		/** True if the device advertises the Helena service. */
+		public boolean gateway;
+
+		void copyFrom(Device other) {
+			device = other.device;
+			address = other.address;
+			rssi = other.rssi;
+			count = other.count;
+			lastSeen = other.lastSeen;
+			name = other.name;
+			manufacturer = other.manufacturer;
+			txPower = other.txPower;
+			gateway = other.gateway;
+		}
+	}
+
+	/**
+	 * Called on the main thread when scan results have changed.
+	 */
+	public interface Listener {
+		void onScanResultsChanged();
+	}
+
+	private static final UUID HELENA_SERVICE =
+			UUID.fromString(HelenaGattAttributes.HELENA_SERVICE);
+
+	private final long mRefreshIntervalMs;
+	private final Listener mListener;
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private final AdvertisementParser mParser = new AdvertisementParser();
+
+	// Guarded by this.
+	private final HashMap<String, Device> mByAddress = new HashMap<String, Device>();
+	// In order of discovery.
+	private final ArrayList<Device> mDevices = new ArrayList<Device>();
+	private boolean mRefreshPosted;
+	private long mAdvertisements;
+
+	private final Runnable mRefresh = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (ScanAggregator.this) {
+				mRefreshPosted = false;
+			}
+			mListener.onScanResultsChanged();
+		}
+	};
+
+	/**
+	 * @param refreshIntervalMs minimum time between change notifications
+	 * @param listener notified on the main thread
+	 */
+	public ScanAggregator(long refreshIntervalMs, Listener listener) {
+		mRefreshIntervalMs = refreshIntervalMs;
+		mListener = listener;
+	}
+
+	/**
+	 * Records one advertisement. Safe to call from the scan callback thread.
+	 */
+	public void onScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+		final String address = device.getAddress();
+		final long now = System.currentTimeMillis();
+		synchronized (this) {
+			Device entry = mByAddress.get(address);
+			if (entry == null) {
+				entry = new Device();
+				entry.device = device;
+				entry.address = address;
+				entry.name = device.getName();
+				mByAddress.put(address, entry);
+				mDevices.add(entry);
+			}
+			final AdvertisementParser ad = mParser.parse(scanRecord);
+			if (entry.name == null && ad.hasLocalName()) {
+				entry.name = ad.getLocalName();
+			}
+			entry.manufacturer = ad.getManufacturerName();
+			entry.txPower = ad.getTxPower();
+			entry.gateway |= ad.hasServiceUuid(HELENA_SERVICE);
+			entry.rssi = rssi;
+			entry.count++;
+			entry.lastSeen = now;
+			mAdvertisements++;
+			if (mRefreshPosted) {
+				return;
+			}
+			mRefreshPosted = true;
+		}
+		mMainHandler.postDelayed(mRefresh, mRefreshIntervalMs);
+	}
+
+	/**
+	 * Copies the current state of all devices into rows, in order of discovery. Row objects
+	 * already in the list are reused.
+	 */
+	public synchronized void snapshot(ArrayList<Device> rows) {
+		final int size = mDevices.size();
+		while (rows.size() > size) {
+			rows.remove(rows.size() - 1);
+		}
+		for (int i = 0; i < size; i++) {
+			if (i == rows.size()) {
+				rows.add(new Device());
+			}
+			rows.get(i).copyFrom(mDevices.get(i));
+		}
+	}
+
+	/**
+	 * Forgets all devices and drops a pending notification.
+	 */
+	public synchronized void clear() {
+		mByAddress.clear();
+		mDevices.clear();
+		mAdvertisements = 0;
+		mRefreshPosted = false;
+		mMainHandler.removeCallbacks(mRefresh);
+	}
+
+	public synchronized int getDeviceCount() {
+		return mDevices.size();
+	}
+
+	/**
+	 * @return number of advertisements recorded since the last clear
+	 */
+	public synchronized long getAdvertisementCount() {
+		return mAdvertisements;
+	}
+}
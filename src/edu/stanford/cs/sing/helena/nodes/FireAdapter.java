@@ -6,6 +6,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
 import android.widget.TextView;
+import edu.stanford.cs.sing.common.helper.TimeWorks;
 import edu.stanford.cs.sing.helena.R;
 
 public class FireAdapter extends ArrayAdapter<Firestorm> {
@@ -14,17 +15,38 @@ public class FireAdapter extends ArrayAdapter<Firestorm> {
         TextView address;
         TextView number;
         TextView lastUpdated;
+        final char[] time = new char[TimeWorks.TIME_LENGTH];
     }
     
-    private FireArray mFire;
+    private FirestormList mFire;
+    // Row count as of the last refresh; the list may grow in between.
+    private int mCount;
     
 
-	public FireAdapter(Context context, FireArray fire) {
-	       super(context, R.layout.item_firestorm, fire.mArrayList);
+	public FireAdapter(Context context, FirestormList fire) {
+	       super(context, R.layout.item_firestorm, fire.asList());
 	       mFire=fire;
 	       mFire.addAddapter(this);
+	       mCount = fire.size();
 	}
 
+    // Created here rather than in the model, so the model never names Android classes and
+    // runs on a plain JVM.
+    RefreshScheduler newRefreshScheduler() {
+        return new RefreshScheduler(this);
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public void notifyDataSetChanged() {
+        mCount = mFire.size();
+        super.notifyDataSetChanged();
+    }
+
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
        // Get the data item for this position
@@ -43,9 +65,10 @@ public class FireAdapter extends ArrayAdapter<Firestorm> {
            viewHolder = (ViewHolder) convertView.getTag();
        }
        // Populate the data into the template view using the data object
-       viewHolder.address.setText(""+mFire.id);
+       viewHolder.address.setText(mFire.toString());
        viewHolder.number.setText(""+mFire.numberOfObservation());
-       viewHolder.lastUpdated.setText("" + mFire.lastUpdated);
+       TimeWorks.formatTime(mFire.getLastUpdated(), viewHolder.time, 0);
+       viewHolder.lastUpdated.setText(viewHolder.time, 0, TimeWorks.TIME_LENGTH);
        // Return the completed view to render on screen
        return convertView;
    }
@@ -2,48 +2,263 @@ package edu.stanford.cs.sing.helena.nodes;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
-import android.support.v4.util.ArrayMap;
+import edu.stanford.cs.sing.common.event.EventBus;
+import edu.stanford.cs.sing.common.helper.IntIndexMap;
+import edu.stanford.cs.sing.common.metrics.Metrics;
+import edu.stanford.cs.sing.helena.NodeListUpdatedEvent;
 
 
-public class FireArray implements Serializable{
+public class FireArray implements FirestormList, Serializable{
 
 	/**
 	 * 
 	 */
 	private static final long serialVersionUID = 6784177937875749632L;
 	public  ArrayList<Firestorm> mArrayList;
-	private ArrayMap<String, Firestorm> mFireMap;
+	// Firestorm key, see Firestorm.key(int, int) -> position in mArrayList.
+	private IntIndexMap mFireMap;
 	private FireAdapter mFireAdapter;
+	private RefreshScheduler mRefresh;
+	// How often retention limits are applied, in receive time.
+	private static final long SWEEP_INTERVAL_MS = 1000;
+	private final RetentionPolicy mPolicy;
+	private long mLastSweep;
+	private long mEvictedFirestorms;
+	// Observations dropped, not counting those still tracked by live firestorms.
+	private long mEvictedObservations;
+	private ObservationSink mSink;
+	private EventBus mBus;
+	private final List<Firestorm> mReadOnly;
 	
 	public FireArray(){
+		this(RetentionPolicy.DEFAULT);
+	}
+
+	public FireArray(RetentionPolicy policy){
 		mArrayList = new ArrayList<Firestorm>();
-		mFireMap = new ArrayMap<String, Firestorm>();
+		mFireMap = new IntIndexMap();
+		mPolicy = policy;
+		mReadOnly = Collections.unmodifiableList(mArrayList);
 	}
 
+	@Override
 	public void addAddapter(FireAdapter fa){
+		if(mRefresh != null){
+			mRefresh.cancel();
+		}
 		this.mFireAdapter = fa;
+		this.mRefresh = fa.newRefreshScheduler();
+	}
+
+	@Override
+	public void removeAddapter(FireAdapter fa){
+		if(mFireAdapter != fa){
+			return;
+		}
+		mRefresh.cancel();
+		mRefresh = null;
+		mFireAdapter = null;
+	}
+
+	/**
+	 * @param sink receives every observation added from now on, null for none
+	 */
+	public void setObservationSink(ObservationSink sink){
+		this.mSink = sink;
+	}
+
+	/**
+	 * @param bus receives a {@link NodeListUpdatedEvent} when firestorms are added or
+	 *        dropped, null for none
+	 */
+	public void setEventBus(EventBus bus){
+		this.mBus = bus;
+	}
+
+	/**
+	 * @return scheduler refreshing the attached adapter, null if none is attached
+	 */
+	public RefreshScheduler getRefreshScheduler(){
+		return mRefresh;
 	}
 	
 
 
-	public void addDeviceData(String key, byte data){
+	public void addDeviceData(int id, int data, long time){
+		addDeviceData(0, id, data, time);
+	}
 
-		if(mFireMap.containsKey(key)){
-			mFireMap.get(key).addObservation(data);
+	/**
+	 * @param gateway index of the gateway the observation came through
+	 * @param id firestorm id, unique per gateway
+	 * @param data observed value, 0..255
+	 * @param time local receive time in milliseconds
+	 */
+	public void addDeviceData(int gateway, int id, int data, long time){
+		final int key = Firestorm.key(gateway, id);
+		final int position = mFireMap.get(key);
+		if(position != IntIndexMap.MISSING){
+			mArrayList.get(position).addObservation(data, time);
 			
 		} else {
-			Firestorm fire = new Firestorm(key);
-			fire.addObservation(data);
+			Firestorm fire = new Firestorm(gateway, id, mPolicy.getMaxObservations());
+			fire.addObservation(data, time);
+			mFireMap.put(key, mArrayList.size());
 			mArrayList.add(fire);
-			mFireMap.put(key, fire);
-			
+			Metrics.FIRESTORMS_CREATED.inc();
+			postListUpdated();
 			}
-		mFireAdapter.notifyDataSetChanged();
+		if(mSink != null){
+			mSink.onObservation(gateway, id, data, time);
+		}
+		if(mRefresh != null){
+			mRefresh.markDirty();
+		}
+		if(time - mLastSweep >= SWEEP_INTERVAL_MS){
+			sweep(time);
+		}
+	}
+
+	/**
+	 * Applies the retention policy: drops inactive firestorms, observations older than the
+	 * maximum age, and the oldest observations of every firestorm holding more than its share
+	 * of the global budget. A firestorm trimmed to its share keeps at most that many until
+	 * the total falls well below the budget, then the unused part is shared out again.
+	 *
+	 * @param now current time in milliseconds
+	 */
+	public void sweep(long now){
+		mLastSweep = now;
+		final long maxInactive = mPolicy.getMaxInactiveMs();
+		final long maxAge = mPolicy.getMaxAgeMs();
+		final int count = mArrayList.size();
+		long retained = 0;
+		int kept = 0;
+		for(int i = 0; i < count; i++){
+			final Firestorm fire = mArrayList.get(i);
+			final ObservationArray observations = fire.getObservationList();
+			if(maxInactive > 0 && now - fire.getLastUpdated() > maxInactive){
+				mEvictedFirestorms++;
+				mEvictedObservations += observations.size() + observations.getEvictedCount();
+				continue;
+			}
+			if(maxAge > 0){
+				observations.trimOlderThan(now - maxAge);
+			}
+			retained += observations.size();
+			mArrayList.set(kept++, fire);
+		}
+		if(kept < count){
+			mArrayList.subList(kept, count).clear();
+			mFireMap.clear();
+			for(int i = 0; i < kept; i++){
+				mFireMap.put(mArrayList.get(i).key(), i);
+			}
+			// Positions moved, the adapter must not wait for the next frame.
+			if(mRefresh != null){
+				mRefresh.refreshNow();
+			}
+			postListUpdated();
+		}
+		final long budget = mPolicy.getMaxTotalObservations();
+		if(budget > 0 && kept > 0){
+			if(retained > budget){
+				// Also caps growth at the share until the next sweep, so storage shrinks.
+				final int share = (int) Math.max(1, budget / kept);
+				for(int i = 0; i < kept; i++){
+					mArrayList.get(i).getObservationList().trimTo(share);
+				}
+			} else if(retained < budget - budget / 4){
+				// Share out the unused budget. Even if every firestorm fills its new limit the
+				// total stays within the budget, so the busy ones are not trimmed right back.
+				final int extra = (int) Math.max(1, (budget - retained) / kept);
+				for(int i = 0; i < kept; i++){
+					final ObservationArray observations = mArrayList.get(i).getObservationList();
+					observations.setLimit(observations.size() + extra);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return number of firestorms dropped for inactivity
+	 */
+	public long getEvictedFirestormCount(){
+		return mEvictedFirestorms;
+	}
+
+	/**
+	 * @return number of observations dropped by retention limits
+	 */
+	public long getEvictedObservationCount(){
+		long evicted = mEvictedObservations;
+		for(int i = 0; i < mArrayList.size(); i++){
+			evicted += mArrayList.get(i).getObservationList().getEvictedCount();
+		}
+		return evicted;
+	}
+
+	/**
+	 * @return number of observations currently held over all firestorms
+	 */
+	public long getRetainedObservationCount(){
+		long retained = 0;
+		for(int i = 0; i < mArrayList.size(); i++){
+			retained += mArrayList.get(i).getObservationList().size();
+		}
+		return retained;
 	}
 	
+	private void postListUpdated(){
+		final EventBus bus = mBus;
+		// Skips the allocation while nobody listens.
+		if(bus != null && bus.hasSubscribers(NodeListUpdatedEvent.class)){
+			bus.post(new NodeListUpdatedEvent(mArrayList.size()));
+		}
+	}
+
+	/**
+	 * Adds a firestorm read back from a snapshot, without observations.
+	 *
+	 * @return the new firestorm, or null if one with that key exists already
+	 */
+	Firestorm restore(int gateway, int id){
+		final int key = Firestorm.key(gateway, id);
+		if(mFireMap.get(key) != IntIndexMap.MISSING){
+			return null;
+		}
+		final Firestorm fire = new Firestorm(gateway, id, mPolicy.getMaxObservations());
+		mFireMap.put(key, mArrayList.size());
+		mArrayList.add(fire);
+		return fire;
+	}
+
+	/**
+	 * Called once a snapshot has been read into this array.
+	 */
+	void onRestored(){
+		if(mRefresh != null){
+			mRefresh.refreshNow();
+		}
+		postListUpdated();
+	}
+
+	@Override
 	public Firestorm get(int possition){
 		return mArrayList.get(possition);
 	}
+
+	@Override
+	public int size(){
+		return mArrayList.size();
+	}
+
+	@Override
+	public List<Firestorm> asList(){
+		return mReadOnly;
+	}
 	
 }
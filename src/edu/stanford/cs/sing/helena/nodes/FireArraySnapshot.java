@@ -0,0 +1,336 @@
+package edu.stanford.cs.sing.helena.nodes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary snapshot of a {@link FireArray}, so the model survives the process.
+ *
+ * <p>The file is laid out as</p>
+ * <pre>
+ *   int   magic, int version, long writtenAt
+ *   int   gateway count, then per gateway: UTF address, short index
+ *   int   firestorm count, then per firestorm:
+ *           short gateway, short id, long lastUpdated, long total, long evicted, int size,
+ *           size observations: varint zigzag time delta from the previous one, byte value
+ *   int   CRC32 of everything before it
+ * </pre>
+ * <p>Receive times of a firestorm mostly grow in small steps, so an observation takes about
+ * 3 bytes instead of the 9 it takes in memory. The snapshot is written to a temporary file,
+ * synced and renamed over the previous one, so a crash while writing leaves the previous
+ * snapshot intact. A file with a bad magic, version or CRC is not read at all.</p>
+ *
+ * <p>{@link #capture} encodes the model into that form on the thread that owns it, so only
+ * the compact bytes are held until {@link #write} has run on another thread. {@link #read}
+ * decodes on any thread, and {@link Decoded#restore} applies the result on the owner.</p>
+ */
+public final class FireArraySnapshot {
+
+	private static final int MAGIC = 0x48465331;
+	private static final int VERSION = 1;
+	// Largest file read back; the default retention policy stays well below it.
+	private static final long MAX_SIZE = 64 << 20;
+	// An observation takes at least a one byte delta and its value.
+	private static final int MIN_OBSERVATION_BYTES = 2;
+	// Typical encoded sizes, to size the buffer up front.
+	private static final int OBSERVATION_BYTES = 3;
+	private static final int FIRESTORM_BYTES = 32;
+	private static final int GATEWAY_BYTES = 32;
+	// Longest varint, a 64-bit zigzag value in groups of 7 bits.
+	private static final int MAX_VARINT_BYTES = 10;
+
+	// The file without its CRC.
+	private ByteBuffer mData;
+	private final int mCount;
+
+	private FireArraySnapshot(int capacity, int count) {
+		mData = ByteBuffer.allocate(capacity);
+		mCount = count;
+	}
+
+	/**
+	 * Encodes fires and the gateway address to index map. Call on the thread that owns fires.
+	 */
+	public static FireArraySnapshot capture(FireArray fires, Map<String, Integer> gateways) {
+		final int count = fires.size();
+		long observations = 0;
+		for (int i = 0; i < count; i++) {
+			observations += fires.get(i).getObservationList().size();
+		}
+		final FireArraySnapshot snapshot = new FireArraySnapshot((int) Math.min(MAX_SIZE,
+				16 + (long) gateways.size() * GATEWAY_BYTES + (long) count * FIRESTORM_BYTES
+						+ observations * OBSERVATION_BYTES), count);
+		snapshot.encode(fires, gateways);
+		return snapshot;
+	}
+
+	private void encode(FireArray fires, Map<String, Integer> gateways) {
+		ensureRemaining(20);
+		mData.putInt(MAGIC);
+		mData.putInt(VERSION);
+		mData.putLong(System.currentTimeMillis());
+		mData.putInt(gateways.size());
+		for (Map.Entry<String, Integer> gateway : gateways.entrySet()) {
+			final String address = gateway.getKey();
+			ensureRemaining(4 + address.length());
+			// As DataOutputStream.writeUTF writes the ASCII addresses.
+			mData.putShort((short) address.length());
+			for (int i = 0; i < address.length(); i++) {
+				mData.put((byte) address.charAt(i));
+			}
+			mData.putShort(gateway.getValue().shortValue());
+		}
+		ensureRemaining(4);
+		mData.putInt(mCount);
+		for (int i = 0; i < mCount; i++) {
+			final Firestorm fire = fires.get(i);
+			final ObservationArray observations = fire.getObservationList();
+			final int size = observations.size();
+			ensureRemaining(FIRESTORM_BYTES);
+			mData.putShort((short) fire.gateway);
+			mData.putShort((short) fire.id);
+			mData.putLong(fire.getLastUpdated());
+			mData.putLong(observations.getTotal());
+			mData.putLong(observations.getEvictedCount());
+			mData.putInt(size);
+			long previous = fire.getLastUpdated();
+			for (int j = 0; j < size; j++) {
+				final long time = observations.getTime(j);
+				ensureRemaining(MAX_VARINT_BYTES + 1);
+				putVarLong(mData, time - previous);
+				mData.put((byte) observations.getObserved(j));
+				previous = time;
+			}
+		}
+	}
+
+	// Grows the buffer when the typical sizes fell short.
+	private void ensureRemaining(int bytes) {
+		if (mData.remaining() < bytes) {
+			final ByteBuffer data =
+					ByteBuffer.allocate(Math.max(mData.capacity() * 2, mData.position() + bytes));
+			mData.flip();
+			data.put(mData);
+			mData = data;
+		}
+	}
+
+	/**
+	 * @return number of firestorms in the snapshot
+	 */
+	public int size() {
+		return mCount;
+	}
+
+	/**
+	 * Writes the snapshot to file, replacing it only once the new one is on disk. May run on
+	 * any thread.
+	 */
+	public void write(File file) throws IOException {
+		final File tmp = new File(file.getPath() + ".tmp");
+		final byte[] data = mData.array();
+		final int length = mData.position();
+		final CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		final FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(data, 0, length);
+			out.write(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array());
+			// Otherwise the rename may reach the disk before the data, and a crash would leave
+			// an empty or partial file in place of the previous snapshot.
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Unable to replace " + file);
+		}
+	}
+
+	/**
+	 * A snapshot read back, decoded into columns.
+	 */
+	public static final class Decoded {
+		private final Map<String, Integer> mGateways;
+		private final int mCount;
+		private final int[] mFireGateways;
+		private final int[] mIds;
+		private final long[] mLastUpdated;
+		private final long[] mTotals;
+		private final long[] mEvicted;
+		private final int[] mSizes;
+		// Observations of all firestorms, in firestorm order, oldest first.
+		private long[] mTimes;
+		private byte[] mValues;
+
+		private Decoded(Map<String, Integer> gateways, int count, int observations) {
+			mGateways = gateways;
+			mCount = count;
+			mFireGateways = new int[count];
+			mIds = new int[count];
+			mLastUpdated = new long[count];
+			mTotals = new long[count];
+			mEvicted = new long[count];
+			mSizes = new int[count];
+			mTimes = new long[observations];
+			mValues = new byte[observations];
+		}
+
+		/**
+		 * @return number of firestorms in the snapshot
+		 */
+		public int size() {
+			return mCount;
+		}
+
+		/**
+		 * @return gateway address to index map the snapshot was taken with
+		 */
+		public Map<String, Integer> getGateways() {
+			return mGateways;
+		}
+
+		/**
+		 * Adds the snapshot's firestorms to fires, skipping those it already holds. Call on the
+		 * thread that owns fires.
+		 *
+		 * @return number of firestorms restored
+		 */
+		public int restore(FireArray fires) {
+			int restored = 0;
+			int offset = 0;
+			for (int i = 0; i < mCount; i++) {
+				final int size = mSizes[i];
+				final Firestorm fire = fires.restore(mFireGateways[i], mIds[i]);
+				if (fire != null) {
+					final ObservationArray observations = fire.getObservationList();
+					for (int j = offset; j < offset + size; j++) {
+						observations.add(mTimes[j], mValues[j] & 0xFF);
+					}
+					fire.setLastUpdated(mLastUpdated[i]);
+					observations.restoreCounts(mTotals[i],
+							mEvicted[i] + size - observations.size());
+					restored++;
+				}
+				offset += size;
+			}
+			fires.onRestored();
+			return restored;
+		}
+
+		// Observation counts are only known while decoding.
+		private void ensureCapacity(int observations) {
+			if (observations > mTimes.length) {
+				final int capacity = Math.max(observations, mTimes.length * 2);
+				mTimes = Arrays.copyOf(mTimes, capacity);
+				mValues = Arrays.copyOf(mValues, capacity);
+			}
+		}
+	}
+
+	/**
+	 * Reads and decodes a snapshot. May run on any thread.
+	 *
+	 * @return the snapshot, null if there is none
+	 */
+	public static Decoded read(File file) throws IOException {
+		if (!file.isFile() || file.length() < 4 || file.length() > MAX_SIZE) {
+			return null;
+		}
+		final byte[] data = new byte[(int) file.length()];
+		final RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+		final ByteBuffer buffer = ByteBuffer.wrap(data);
+		final CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length - 4);
+		if ((int) crc.getValue() != buffer.getInt(data.length - 4)) {
+			throw new IOException("Snapshot checksum mismatch");
+		}
+		buffer.limit(data.length - 4);
+		try {
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new IOException("Not a version " + VERSION + " snapshot");
+			}
+			buffer.getLong();
+			final int gatewayCount = buffer.getInt();
+			final Map<String, Integer> gateways = new HashMap<String, Integer>();
+			for (int i = 0; i < gatewayCount; i++) {
+				final String address = readUTF(buffer);
+				gateways.put(address, Integer.valueOf(buffer.getShort()));
+			}
+			final int count = buffer.getInt();
+			if (count < 0 || count > buffer.remaining()) {
+				throw new IOException("Malformed firestorm count");
+			}
+			final Decoded snapshot = new Decoded(gateways, count,
+					buffer.remaining() / OBSERVATION_BYTES);
+			int offset = 0;
+			for (int i = 0; i < count; i++) {
+				snapshot.mFireGateways[i] = buffer.getShort() & 0xFFFF;
+				snapshot.mIds[i] = buffer.getShort() & 0xFFFF;
+				snapshot.mLastUpdated[i] = buffer.getLong();
+				snapshot.mTotals[i] = buffer.getLong();
+				snapshot.mEvicted[i] = buffer.getLong();
+				final int size = buffer.getInt();
+				if (size < 0 || size > buffer.remaining() / MIN_OBSERVATION_BYTES) {
+					throw new IOException("Malformed observation count");
+				}
+				snapshot.mSizes[i] = size;
+				snapshot.ensureCapacity(offset + size);
+				long time = snapshot.mLastUpdated[i];
+				for (int j = offset; j < offset + size; j++) {
+					time += readVarLong(buffer);
+					snapshot.mTimes[j] = time;
+					snapshot.mValues[j] = buffer.get();
+				}
+				offset += size;
+			}
+			return snapshot;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated snapshot");
+		}
+	}
+
+	// Zigzag, so the small negative steps of out-of-order receive times stay short too.
+	private static void putVarLong(ByteBuffer out, long value) {
+		long v = (value << 1) ^ (value >> 63);
+		while ((v & ~0x7FL) != 0) {
+			out.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.put((byte) v);
+	}
+
+	private static long readVarLong(ByteBuffer in) throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final int b = in.get();
+			v |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return (v >>> 1) ^ -(v & 1);
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	// Counterpart of DataOutputStream.writeUTF for the ASCII addresses written here.
+	private static String readUTF(ByteBuffer in) throws IOException {
+		final int length = in.getShort() & 0xFFFF;
+		final byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
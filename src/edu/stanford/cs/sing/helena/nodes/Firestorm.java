@@ -1,51 +1,79 @@
 package edu.stanford.cs.sing.helena.nodes;
 
-import java.sql.Timestamp;
-
-import android.support.v4.util.ArrayMap;
-import android.text.format.Time;
-
 
 public class Firestorm {
 
 
-	//the Timestamp is additional, local when the data was created
-	public ArrayMap<Timestamp, Observation> mObservedDevices; 
-	public String id;
-	public String lastUpdated;
+	public final int gateway;
+	public final int id;
+	private long mLastUpdated;
+	private final String mLabel;
 	private ObservationArray mObservationArray;
 	
-	public Firestorm (String id){
-		this.mObservedDevices = new ArrayMap<Timestamp, Observation>();
-		this.mObservationArray = new ObservationArray();
+	/**
+	 * @param id firestorm id
+	 * @param maxObservations number of observations to retain
+	 */
+	public Firestorm (int id, int maxObservations){
+		this(0, id, maxObservations);
+	}
+
+	/**
+	 * @param gateway index of the gateway reporting the firestorm, 0 if unknown
+	 * @param id firestorm id, unique per gateway
+	 * @param maxObservations number of observations to retain
+	 */
+	public Firestorm (int gateway, int id, int maxObservations){
+		this.mObservationArray = new ObservationArray(maxObservations);
+		this.gateway = gateway;
 		this.id = id;
-		this.lastUpdated = getTimeNow();	
+		this.mLabel = gateway == 0
+				? String.format("%02X %02X", id >> 8, id & 0xFF)
+				: String.format("%d: %02X %02X", gateway, id >> 8, id & 0xFF);
+		this.mLastUpdated = System.currentTimeMillis();
 		}
 
-	
-	private String getTimeNow(){
-		Time today = new Time(Time.getCurrentTimezone());
-		today.setToNow();
-		return today.format("%k:%M:%S");
+	/**
+	 * Firestorm ids are only unique per gateway; this combines both into one model key.
+	 */
+	public static int key(int gateway, int id){
+		return gateway << 16 | (id & 0xFFFF);
 	}
-	
 
-	public void addObservation(byte obs){
-		Observation observed = new Observation(obs);
-		mObservedDevices.put(new Timestamp(System.currentTimeMillis()), observed);
-		mObservationArray.add(observed);
-		this.lastUpdated = getTimeNow();	
+	public int key(){
+		return key(gateway, id);
 	}
-	public void removeObservation(Observation observation){
-		mObservedDevices.remove(observation);
+
+
+	/**
+	 * @param obs observed value, 0..255
+	 * @param time local receive time in milliseconds
+	 */
+	public void addObservation(int obs, long time){
+		mObservationArray.add(time, obs);
+		this.mLastUpdated = time;
+	}
+
+	void setLastUpdated(long time){
+		this.mLastUpdated = time;
+	}
+
+	/**
+	 * @return local time in milliseconds of the latest observation
+	 */
+	public long getLastUpdated(){
+		return mLastUpdated;
 	}
 	
-	public int numberOfObservation(){
-		return mObservedDevices.size();
+	/**
+	 * @return number of observations received, including ones no longer retained
+	 */
+	public long numberOfObservation(){
+		return mObservationArray.getTotal();
 	}
 	
 	public String toString(){
-		return this.id;
+		return this.mLabel;
 	}
 	
 	public ObservationArray getObservationList(){
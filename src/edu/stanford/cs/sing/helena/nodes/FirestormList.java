@@ -0,0 +1,33 @@
+package edu.stanford.cs.sing.helena.nodes;
+
+import java.util.List;
+
+/**
+ * Read-only view of a {@link FireArray} for activities. The model itself is owned and fed by
+ * the BluetoothLeService; views only read it and attach their adapter, on the main thread.
+ */
+public interface FirestormList {
+
+	/**
+	 * @return number of firestorms
+	 */
+	int size();
+
+	Firestorm get(int position);
+
+	/**
+	 * @return unmodifiable live list of the firestorms, in the order they were first seen
+	 */
+	List<Firestorm> asList();
+
+	/**
+	 * Attaches the adapter refreshed on changes, replacing any previous one.
+	 */
+	void addAddapter(FireAdapter fa);
+
+	/**
+	 * Detaches fa if it is the attached adapter, so the model does not keep a destroyed
+	 * activity alive.
+	 */
+	void removeAddapter(FireAdapter fa);
+}
@@ -5,51 +5,86 @@ import android.content.Context;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.TextView;
+import edu.stanford.cs.sing.common.helper.TimeWorks;
 import edu.stanford.cs.sing.helena.R;
 
-public class ObservAdapter extends ArrayAdapter<Observation> {
+/**
+ * Shows the observations of one firestorm. Strings are only built for the rows being bound.
+ */
+public class ObservAdapter extends BaseAdapter {
 
     private static class ViewHolder {
         TextView address;
         TextView lastUpdated;
-        TextView manufacturer;
+        final char[] time = new char[TimeWorks.TIME_LENGTH];
     }
     
+    private final LayoutInflater mInflater;
     private ObservationArray mObservation;
+    // Row count as of the last refresh; the array may grow in between.
+    private int mCount;
     
 
 	public ObservAdapter(Context context, ObservationArray obsarr) {
-	       super(context, R.layout.item_oberver, obsarr.mArrayList);
+	       this.mInflater = LayoutInflater.from(context);
 	       this.mObservation=obsarr;
 	       this.mObservation.addAddapter(this);
+	       this.mCount = obsarr.size();
 	}
 
+    // See FireAdapter.newRefreshScheduler().
+    RefreshScheduler newRefreshScheduler() {
+        return new RefreshScheduler(this);
+    }
+
+    /**
+     * Stops refreshes from the observation array, which may outlive this adapter.
+     */
+    public void detach() {
+        mObservation.removeAddapter(this);
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return null;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public void notifyDataSetChanged() {
+        mCount = mObservation.size();
+        super.notifyDataSetChanged();
+    }
+
 
 	@Override
     public View getView(int position, View convertView, ViewGroup parent) {
-       // Get the data item for this position
-       Observation mobservation = getItem(position);    
        // Check if an existing view is being reused, otherwise inflate the view
        ViewHolder viewHolder; // view lookup cache stored in tag
        if (convertView == null) {
           viewHolder = new ViewHolder();
-          LayoutInflater inflater = LayoutInflater.from(getContext());
-          convertView = inflater.inflate(R.layout.item_oberver, parent, false);
+          convertView = mInflater.inflate(R.layout.item_oberver, parent, false);
           viewHolder.address= (TextView) convertView.findViewById(R.id.observed_addr);
-         // 
           viewHolder.lastUpdated = (TextView) convertView.findViewById(R.id.observ_time);
-          //viewHolder.manufacturer = (TextView) convertView.findViewById(R.id.manufacturer);
           convertView.setTag(viewHolder);
        } else {
            viewHolder = (ViewHolder) convertView.getTag();
        }
        // Populate the data into the template view using the data object
-       viewHolder.address.setText(""+mobservation.observed);
-       //viewHolder.number.setText(""+mFire.numberOfObservation());
-       viewHolder.lastUpdated.setText("" + mobservation.mSeenTime);
-       //viewHolder.manufacturer.setText("" + mobservation.mManufaturer);
+       viewHolder.address.setText(String.valueOf(mObservation.getObserved(position)));
+       TimeWorks.formatTime(mObservation.getTime(position), viewHolder.time, 0);
+       viewHolder.lastUpdated.setText(viewHolder.time, 0, TimeWorks.TIME_LENGTH);
        // Return the completed view to render on screen
        
        return convertView;
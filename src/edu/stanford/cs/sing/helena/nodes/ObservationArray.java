@@ -1,43 +1,240 @@
 package edu.stanford.cs.sing.helena.nodes;
 
-import java.io.Serializable;
-import java.util.ArrayList;
+/**
+ * Observations of one firestorm, stored column-wise in parallel primitive arrays: receive time
+ * and observed value. Costs 9 bytes per observation.
+ *
+ * <p>Storage grows by doubling up to the current limit, at most {@code maxSize}; after that
+ * the oldest observation is overwritten, so the array behaves as a bounded ring. Trimming
+ * lowers the limit and halves the storage while it is less than a quarter used, so the heap
+ * follows the retained observations. Position 0 is the oldest retained observation.</p>
+ */
+public class ObservationArray {
 
-import android.support.v4.util.ArrayMap;
-import android.util.Log;
+	private static final int INITIAL_CAPACITY = 64;
+	public static final int DEFAULT_MAX_SIZE = 1 << 16;
 
-public class ObservationArray implements Serializable {
-
-	/**
-	 * 
-	 */
-	private static final long serialVersionUID = 6864943749678836676L;
-	public  ArrayList<Observation> mArrayList;
-	private ArrayMap<String, Observation> mObservMap;
+	private long[] mTimes;
+	private byte[] mValues;
+	// Physical index of position 0.
+	private int mStart;
+	private int mSize;
+	private long mTotal;
+	private long mEvicted;
+	private final int mMaxSize;
+	// Observations retained before the oldest is overwritten, at most mMaxSize.
+	private int mLimit;
 	private ObservAdapter mObservAdapter;
+	private RefreshScheduler mRefresh;
 	
 	public ObservationArray(){
-		mArrayList = new ArrayList<Observation>();
-		mObservMap = new ArrayMap<String, Observation>();
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param maxSize maximum number of observations retained, rounded up to a power of two
+	 */
+	public ObservationArray(int maxSize){
+		int max = Integer.highestOneBit(Math.max(maxSize, 1));
+		if(max < maxSize){
+			max <<= 1;
+		}
+		mMaxSize = max;
+		mLimit = max;
+		int capacity = Math.min(INITIAL_CAPACITY, mMaxSize);
+		mTimes = new long[capacity];
+		mValues = new byte[capacity];
 	}
+
 	public void addAddapter(ObservAdapter fa){
+		if(mRefresh != null){
+			mRefresh.cancel();
+		}
 		this.mObservAdapter = fa;
+		this.mRefresh = fa.newRefreshScheduler();
 	}
 
-	public void addObservation(Observation o){
-		mArrayList.add(o);
-		if(mObservAdapter != null){
-			mObservAdapter.notifyDataSetChanged();
-		} else {
-			Log.d("ObervationArray", "ObservationAdapter == null");
+	/**
+	 * Detaches fa if it is the attached adapter.
+	 */
+	public void removeAddapter(ObservAdapter fa){
+		if(mObservAdapter != fa){
+			return;
 		}
-		
+		mRefresh.cancel();
+		mRefresh = null;
+		mObservAdapter = null;
+	}
+
+	/**
+	 * Sets the counters read back from a snapshot, after its observations were added.
+	 */
+	void restoreCounts(long total, long evicted){
+		mTotal = total;
+		mEvicted = evicted;
 	}
-	public void add(Observation observed) {
-		addObservation(observed);
-		
+
+	/**
+	 * @return scheduler refreshing the attached adapter, null if none is attached
+	 */
+	public RefreshScheduler getRefreshScheduler(){
+		return mRefresh;
 	}
-	
 
+	/**
+	 * @param time receive time in milliseconds
+	 * @param observed observed value, 0..255
+	 */
+	public void add(long time, int observed) {
+		if(mSize >= mLimit){
+			// Full, overwrite the oldest.
+			mStart = (mStart + 1) & (mTimes.length - 1);
+			mSize--;
+			mEvicted++;
+		} else if(mSize == mTimes.length){
+			resize(mTimes.length << 1);
+		}
+		final int index = (mStart + mSize) & (mTimes.length - 1);
+		mTimes[index] = time;
+		mValues[index] = (byte) observed;
+		mSize++;
+		mTotal++;
+		if(mRefresh != null){
+			mRefresh.markDirty();
+		}
+	}
+
+	/**
+	 * Drops observations received before cutoff.
+	 *
+	 * @return number of observations dropped
+	 */
+	public int trimOlderThan(long cutoff){
+		int dropped = 0;
+		while(dropped < mSize && mTimes[(mStart + dropped) & (mTimes.length - 1)] < cutoff){
+			dropped++;
+		}
+		dropFirst(dropped);
+		return dropped;
+	}
+
+	/**
+	 * Drops the oldest observations so that at most size remain, and keeps at most size from
+	 * now on, until {@link #setLimit(int)} raises the limit again.
+	 *
+	 * @return number of observations dropped
+	 */
+	public int trimTo(int size){
+		mLimit = Math.max(1, Math.min(size, mMaxSize));
+		final int dropped = Math.max(0, mSize - mLimit);
+		dropFirst(dropped);
+		// Storage never needs more than the limit rounded up to a power of two.
+		int fit = Math.min(INITIAL_CAPACITY, mTimes.length);
+		while(fit < mLimit){
+			fit <<= 1;
+		}
+		if(fit < mTimes.length){
+			resize(fit);
+		}
+		return dropped;
+	}
+
+	/**
+	 * Sets how many observations are kept before the oldest is overwritten, at most the
+	 * maximum size. Lowering the limit does not drop anything; use {@link #trimTo(int)}.
+	 */
+	public void setLimit(int limit){
+		mLimit = Math.max(Math.max(1, mSize), Math.min(limit, mMaxSize));
+	}
+
+	/**
+	 * @return observations kept before the oldest is overwritten
+	 */
+	public int getLimit(){
+		return mLimit;
+	}
+
+	/**
+	 * @return observations the storage can hold without growing, 9 bytes each
+	 */
+	public int capacity(){
+		return mTimes.length;
+	}
+
+	private void dropFirst(int count){
+		if(count == 0){
+			return;
+		}
+		mStart = (mStart + count) & (mTimes.length - 1);
+		mSize -= count;
+		mEvicted += count;
+		int capacity = mTimes.length;
+		while(capacity > INITIAL_CAPACITY && mSize < capacity >> 2){
+			capacity >>= 1;
+		}
+		if(capacity < mTimes.length){
+			resize(capacity);
+		}
+		// Rows went away, the adapter must not wait for the next frame.
+		if(mRefresh != null){
+			mRefresh.refreshNow();
+		}
+	}
+
+	// Moves the retained observations to position 0 of new storage of the given capacity.
+	private void resize(int capacity){
+		final long[] times = new long[capacity];
+		final byte[] values = new byte[capacity];
+		final int head = Math.min(mSize, mTimes.length - mStart);
+		System.arraycopy(mTimes, mStart, times, 0, head);
+		System.arraycopy(mTimes, 0, times, head, mSize - head);
+		System.arraycopy(mValues, mStart, values, 0, head);
+		System.arraycopy(mValues, 0, values, head, mSize - head);
+		mTimes = times;
+		mValues = values;
+		mStart = 0;
+	}
+
+	private int index(int position){
+		if(position < 0 || position >= mSize){
+			throw new IndexOutOfBoundsException("position " + position + ", size " + mSize);
+		}
+		return (mStart + position) & (mTimes.length - 1);
+	}
+
+	/**
+	 * @return receive time in milliseconds of the observation at position
+	 */
+	public long getTime(int position){
+		return mTimes[index(position)];
+	}
+
+	/**
+	 * @return observed value, 0..255, of the observation at position
+	 */
+	public int getObserved(int position){
+		return mValues[index(position)] & 0xFF;
+	}
+
+	/**
+	 * @return number of observations retained
+	 */
+	public int size(){
+		return mSize;
+	}
+
+	/**
+	 * @return number of observations ever added, including overwritten ones
+	 */
+	public long getTotal(){
+		return mTotal;
+	}
+
+	/**
+	 * @return number of observations dropped, by overwriting or trimming
+	 */
+	public long getEvictedCount(){
+		return mEvicted;
+	}
 
 }
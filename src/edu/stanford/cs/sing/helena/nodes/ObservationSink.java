@@ -0,0 +1,17 @@
+package edu.stanford.cs.sing.helena.nodes;
+
+/**
+ * Receives every observation added to a {@link FireArray}, e.g. to persist it.
+ */
+public interface ObservationSink {
+
+	/**
+	 * Called on the thread adding the observation; implementations must not block.
+	 *
+	 * @param gateway index of the gateway the observation came through
+	 * @param firestorm firestorm id, unique per gateway
+	 * @param observed observed value, 0..255
+	 * @param time local receive time in milliseconds
+	 */
+	void onObservation(int gateway, int firestorm, int observed, long time);
+}
@@ -0,0 +1,93 @@
+package edu.stanford.cs.sing.helena.nodes;
+
+import android.view.Choreographer;
+import android.widget.BaseAdapter;
+import edu.stanford.cs.sing.common.metrics.Metrics;
+
+/**
+ * Coalesces model updates into at most one {@link BaseAdapter#notifyDataSetChanged()} per
+ * display frame.
+ *
+ * <p>Must be used from the main thread.</p>
+ */
+public class RefreshScheduler implements Choreographer.FrameCallback {
+
+	private final BaseAdapter mAdapter;
+	private boolean mScheduled;
+	// System.nanoTime() of the first change not yet shown, 0 if there is none.
+	private long mDirtySince;
+	private long mUpdates;
+	private long mRefreshes;
+
+	/**
+	 * Refreshes the adapter at most once per display frame.
+	 */
+	public RefreshScheduler(BaseAdapter adapter) {
+		this.mAdapter = adapter;
+	}
+
+	/**
+	 * Marks the model as changed; the adapter is refreshed on the next frame.
+	 */
+	public void markDirty() {
+		mUpdates++;
+		if (mDirtySince == 0) {
+			mDirtySince = System.nanoTime();
+		}
+		if (mScheduled) {
+			return;
+		}
+		mScheduled = true;
+		Choreographer.getInstance().postFrameCallback(this);
+	}
+
+	/**
+	 * Drops a pending refresh, e.g. when the adapter is detached.
+	 */
+	public void cancel() {
+		if (!mScheduled) {
+			return;
+		}
+		mScheduled = false;
+		Choreographer.getInstance().removeFrameCallback(this);
+	}
+
+	/**
+	 * Refreshes the adapter right away, for changes that remove rows.
+	 */
+	public void refreshNow() {
+		cancel();
+		flush();
+	}
+
+	@Override
+	public void doFrame(long frameTimeNanos) {
+		flush();
+	}
+
+	private void flush() {
+		mScheduled = false;
+		mRefreshes++;
+		mAdapter.notifyDataSetChanged();
+		Metrics.UI_REFRESHES.inc();
+		// The views are laid out and drawn in this same frame's traversal.
+		if (mDirtySince != 0) {
+			Metrics.MODEL_TO_SCREEN.recordSince(mDirtySince);
+			mDirtySince = 0;
+		}
+	}
+
+	/**
+	 * @return number of model updates reported through {@link #markDirty()}
+	 */
+	public long getUpdateCount() {
+		return mUpdates;
+	}
+
+	/**
+	 * @return number of times the adapter was actually refreshed
+	 */
+	public long getRefreshCount() {
+		return mRefreshes;
+	}
+}
@@ -0,0 +1,51 @@
+package edu.stanford.cs.sing.helena.nodes;
+
+/**
+ * Limits on how much observation history {@link FireArray} keeps. The per-firestorm count is
+ * always enforced; a limit of 0 disables any of the others.
+ */
+public class RetentionPolicy {
+
+	/** 8192 observations per firestorm, 2M overall, firestorms dropped after an idle hour. */
+	public static final RetentionPolicy DEFAULT =
+			new RetentionPolicy(8192, 0, 1 << 21, 60 * 60 * 1000L);
+
+	private final int mMaxObservations;
+	private final long mMaxAgeMs;
+	private final long mMaxTotalObservations;
+	private final long mMaxInactiveMs;
+
+	/**
+	 * @param maxObservations observations kept per firestorm, rounded up to a power of two;
+	 *        must be positive
+	 * @param maxAgeMs observations older than this are dropped
+	 * @param maxTotalObservations observations kept over all firestorms
+	 * @param maxInactiveMs firestorms not heard from for this long are dropped
+	 */
+	public RetentionPolicy(int maxObservations, long maxAgeMs, long maxTotalObservations,
+			long maxInactiveMs) {
+		if (maxObservations <= 0) {
+			throw new IllegalArgumentException("maxObservations must be positive");
+		}
+		this.mMaxObservations = maxObservations;
+		this.mMaxAgeMs = maxAgeMs;
+		this.mMaxTotalObservations = maxTotalObservations;
+		this.mMaxInactiveMs = maxInactiveMs;
+	}
+
+	public int getMaxObservations() {
+		return mMaxObservations;
+	}
+
+	public long getMaxAgeMs() {
+		return mMaxAgeMs;
+	}
+
+	public long getMaxTotalObservations() {
+		return mMaxTotalObservations;
+	}
+
+	public long getMaxInactiveMs() {
+		return mMaxInactiveMs;
+	}
+}
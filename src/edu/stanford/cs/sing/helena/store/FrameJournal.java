@@ -0,0 +1,422 @@
+package edu.stanford.cs.sing.helena.store;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import edu.stanford.cs.sing.helena.ble.FrameRingBuffer;
+
+/**
+ * Append-only journal of raw listed-device frames, written into memory-mapped segment files.
+ *
+ * <p>Each record is laid out as</p>
+ * <pre>
+ *   int  length      payload length in the low 16 bits, gateway index in the high 16 bits;
+ *                    written last so a half-written record stays invisible
+ *   long receivedAt  receive time in milliseconds
+ *   byte payload[length]
+ *   int  crc         CRC32 over the length word, receivedAt and payload
+ * </pre>
+ * <p>A zero length marks the end of a segment. The next segment is created and mapped ahead of
+ * time on a background thread. When a record does not fit, the journal switches to it, and the
+ * full segment is forced and closed and the oldest ones beyond the configured count deleted on
+ * that thread too, so appending never waits for the storage device. On open, the newest
+ * segment holding records is scanned and anything after the last record with a valid CRC is
+ * zeroed, which drops a tail torn by a crash.</p>
+ */
+public class FrameJournal {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 4 << 20;
+	public static final int DEFAULT_MAX_SEGMENTS = 16;
+
+	private static final String PREFIX = "frames-";
+	private static final String SUFFIX = ".journal";
+	private static final int HEADER_SIZE = 4 + 8;
+	private static final int TRAILER_SIZE = 4;
+	private static final int MAX_PAYLOAD = 0xFFFF;
+	private static final int MAX_GATEWAY = 0x7FFF;
+
+	private final File mDir;
+	private final int mSegmentSize;
+	private final int mMaxSegments;
+	private final CRC32 mCrc = new CRC32();
+	// Prepares the next segment and retires full ones.
+	private final ExecutorService mMaintenance =
+			Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable task) {
+					final Thread thread = new Thread(task, "FrameJournal");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	private Segment mSegment;
+	private MappedByteBuffer mBuffer;
+	private Future<Segment> mNext;
+	// First failure of the background work, reported by the next append.
+	private volatile IOException mFailure;
+	private long mRecords;
+
+	/**
+	 * Opens the journal in dir with default segment size and count.
+	 */
+	public FrameJournal(File dir) throws IOException {
+		this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+	}
+
+	/**
+	 * @param dir directory holding the segment files, created if missing
+	 * @param segmentSize size of each segment file in bytes
+	 * @param maxSegments number of segments kept before the oldest is deleted
+	 */
+	public FrameJournal(File dir, int segmentSize, int maxSegments) throws IOException {
+		if (segmentSize < HEADER_SIZE + TRAILER_SIZE + 1 || maxSegments < 1) {
+			throw new IllegalArgumentException("segment size or count too small");
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create journal directory " + dir);
+		}
+		mDir = dir;
+		mSegmentSize = segmentSize;
+		mMaxSegments = maxSegments;
+		final long[] segments = listSegments(dir);
+		if (segments.length == 0) {
+			setSegment(Segment.open(dir, 0, segmentSize));
+		} else {
+			setSegment(Segment.open(dir, segments[segments.length - 1], segmentSize));
+			// The newest segments may be spares prepared before a crash, the torn tail is in the
+			// last one holding records.
+			final int end = recover(mBuffer);
+			mBuffer.position(end);
+			for (int i = segments.length - 2, last = end; last == 0 && i >= 0; i--) {
+				final Segment previous = Segment.open(dir, segments[i], segmentSize);
+				last = recover(previous.buffer);
+				previous.close();
+			}
+		}
+		prepareNext();
+	}
+
+	/**
+	 * Appends one frame without a gateway index.
+	 *
+	 * @return false if the frame was rejected or the journal is closed
+	 */
+	public boolean append(byte[] frame, int length, long receivedAt) throws IOException {
+		return append(FrameRingBuffer.NO_GATEWAY, frame, length, receivedAt);
+	}
+
+	/**
+	 * Appends one frame. Frames longer than 65535 bytes and gateway indices above 32767 are
+	 * rejected.
+	 *
+	 * @return false if the frame was rejected or the journal is closed
+	 */
+	public synchronized boolean append(int gateway, byte[] frame, int length, long receivedAt)
+			throws IOException {
+		if (mFailure != null) {
+			throw mFailure;
+		}
+		if (mSegment == null || length <= 0 || length > MAX_PAYLOAD || length > frame.length
+				|| gateway < 0 || gateway > MAX_GATEWAY) {
+			return false;
+		}
+		final int size = HEADER_SIZE + length + TRAILER_SIZE;
+		if (size > mSegmentSize) {
+			return false;
+		}
+		if (mBuffer.position() + size > mSegmentSize) {
+			rollOver();
+		}
+		final int start = mBuffer.position();
+		final int word = gateway << 16 | length;
+		mCrc.reset();
+		updateCrc(mCrc, word, 4);
+		updateCrc(mCrc, receivedAt, 8);
+		mCrc.update(frame, 0, length);
+		mBuffer.position(start + 4);
+		mBuffer.putLong(receivedAt);
+		mBuffer.put(frame, 0, length);
+		mBuffer.putInt((int) mCrc.getValue());
+		mBuffer.putInt(start, word);
+		mRecords++;
+		return true;
+	}
+
+	/**
+	 * Forces written records to the storage device.
+	 */
+	public synchronized void flush() {
+		if (mBuffer != null) {
+			mBuffer.force();
+		}
+	}
+
+	/**
+	 * Waits for the background work, then forces and closes the current segment. The prepared
+	 * next segment stays on disk, empty, and is used when the journal is opened again.
+	 */
+	public synchronized void close() throws IOException {
+		if (mSegment == null) {
+			return;
+		}
+		mMaintenance.shutdown();
+		try {
+			mMaintenance.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		final Segment next = takeNext();
+		if (next != null) {
+			next.close();
+		}
+		mBuffer.force();
+		mBuffer = null;
+		mSegment.close();
+		mSegment = null;
+		if (mFailure != null) {
+			throw mFailure;
+		}
+	}
+
+	/**
+	 * @return number of records appended since the journal was opened
+	 */
+	public synchronized long getRecordCount() {
+		return mRecords;
+	}
+
+	// Switches to the prepared segment and hands the full one to the background thread.
+	private void rollOver() throws IOException {
+		final Segment full = mSegment;
+		Segment next = takeNext();
+		if (next == null) {
+			next = Segment.open(mDir, full.number + 1, mSegmentSize);
+		}
+		setSegment(next);
+		final long oldest = next.number - mMaxSegments;
+		mMaintenance.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					full.buffer.force();
+					full.close();
+					for (long segment : listSegments(mDir)) {
+						if (segment <= oldest) {
+							segmentFile(mDir, segment).delete();
+						}
+					}
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		});
+		prepareNext();
+	}
+
+	// Creates and maps the segment after the current one in the background.
+	private void prepareNext() {
+		final long number = mSegment.number + 1;
+		mNext = mMaintenance.submit(new Callable<Segment>() {
+			@Override
+			public Segment call() throws IOException {
+				return Segment.open(mDir, number, mSegmentSize);
+			}
+		});
+	}
+
+	// The prepared segment, waiting if it is not ready yet; null if preparing it failed.
+	private Segment takeNext() {
+		final Future<Segment> next = mNext;
+		mNext = null;
+		if (next == null) {
+			return null;
+		}
+		try {
+			return next.get();
+		} catch (ExecutionException e) {
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	private void setSegment(Segment segment) {
+		mSegment = segment;
+		mBuffer = segment.buffer;
+	}
+
+	private void fail(IOException e) {
+		if (mFailure == null) {
+			mFailure = e;
+		}
+	}
+
+	// Zeroes whatever follows the last intact record of buffer, returns the offset past it.
+	private int recover(MappedByteBuffer buffer) {
+		final int end = new Scanner(buffer, mSegmentSize, mCrc).scan(null);
+		for (int i = end; i < mSegmentSize; i++) {
+			if (buffer.get(i) != 0) {
+				buffer.put(i, (byte) 0);
+			}
+		}
+		return end;
+	}
+
+	private static final class Segment {
+		final long number;
+		final RandomAccessFile file;
+		final MappedByteBuffer buffer;
+
+		private Segment(long number, RandomAccessFile file, MappedByteBuffer buffer) {
+			this.number = number;
+			this.file = file;
+			this.buffer = buffer;
+		}
+
+		static Segment open(File dir, long number, int size) throws IOException {
+			final RandomAccessFile file = new RandomAccessFile(segmentFile(dir, number), "rw");
+			try {
+				if (file.length() != size) {
+					file.setLength(size);
+				}
+				return new Segment(number, file,
+						file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+			} catch (IOException e) {
+				file.close();
+				throw e;
+			}
+		}
+
+		void close() throws IOException {
+			file.close();
+		}
+	}
+
+	/**
+	 * Replays all intact records in the journal directory, oldest first. The frame array passed
+	 * to the consumer is reused between calls.
+	 *
+	 * @return number of records replayed
+	 */
+	public static long replay(File dir, FrameRingBuffer.FrameConsumer consumer)
+			throws IOException {
+		final CRC32 crc = new CRC32();
+		long count = 0;
+		for (long segment : listSegments(dir)) {
+			final RandomAccessFile file = new RandomAccessFile(segmentFile(dir, segment), "r");
+			try {
+				final int size = (int) file.length();
+				final MappedByteBuffer buffer =
+						file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+				final Scanner scanner = new Scanner(buffer, size, crc);
+				scanner.scan(consumer);
+				count += scanner.records;
+			} finally {
+				file.close();
+			}
+		}
+		return count;
+	}
+
+	// Walks the records of one segment from its start.
+	private static class Scanner {
+		private final MappedByteBuffer mBuffer;
+		private final int mSize;
+		private final CRC32 mCrc;
+		private final byte[] mFrame = new byte[MAX_PAYLOAD];
+		long records;
+
+		Scanner(MappedByteBuffer buffer, int size, CRC32 crc) {
+			mBuffer = buffer;
+			mSize = size;
+			mCrc = crc;
+		}
+
+		/**
+		 * Hands each intact record to the consumer, if one is given.
+		 *
+		 * @return offset just past the last intact record
+		 */
+		int scan(FrameRingBuffer.FrameConsumer consumer) {
+			int position = 0;
+			while (position + HEADER_SIZE + TRAILER_SIZE <= mSize) {
+				final int word = mBuffer.getInt(position);
+				final int length = word & MAX_PAYLOAD;
+				if (word <= 0 || length == 0
+						|| position + HEADER_SIZE + length + TRAILER_SIZE > mSize) {
+					break;
+				}
+				final long receivedAt = mBuffer.getLong(position + 4);
+				mBuffer.position(position + HEADER_SIZE);
+				mBuffer.get(mFrame, 0, length);
+				mCrc.reset();
+				updateCrc(mCrc, word, 4);
+				updateCrc(mCrc, receivedAt, 8);
+				mCrc.update(mFrame, 0, length);
+				if ((int) mCrc.getValue() != mBuffer.getInt()) {
+					break;
+				}
+				if (consumer != null) {
+					consumer.onFrame(word >>> 16, mFrame, length, receivedAt);
+				}
+				position += HEADER_SIZE + length + TRAILER_SIZE;
+				records++;
+			}
+			return position;
+		}
+	}
+
+	// Feeds the low bytes of value to crc, most significant first.
+	private static void updateCrc(CRC32 crc, long value, int bytes) {
+		for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+			crc.update((int) (value >>> shift));
+		}
+	}
+
+	private static File segmentFile(File dir, long segment) {
+		return new File(dir, PREFIX + segment + SUFFIX);
+	}
+
+	// Segment numbers present in dir, ascending.
+	private static long[] listSegments(File dir) {
+		final File[] files = dir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				final String name = file.getName();
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+		if (files == null) {
+			return new long[0];
+		}
+		final long[] segments = new long[files.length];
+		int count = 0;
+		for (File file : files) {
+			final String name = file.getName();
+			try {
+				segments[count] = Long.parseLong(
+						name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+				count++;
+			} catch (NumberFormatException e) {
+				// Not one of ours.
+			}
+		}
+		final long[] result = Arrays.copyOf(segments, count);
+		Arrays.sort(result);
+		return result;
+	}
+}
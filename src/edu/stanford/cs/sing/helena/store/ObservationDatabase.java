@@ -0,0 +1,122 @@
+package edu.stanford.cs.sing.helena.store;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * SQLite database holding firestorm observations for post-session analysis. Runs in
+ * write-ahead-logging mode so readers do not block the batch writer. Also holds the index
+ * each gateway address was given, so observations keep their gateway across runs.
+ */
+public class ObservationDatabase extends SQLiteOpenHelper {
+
+	static final String DATABASE_NAME = "observations.db";
+	private static final int DATABASE_VERSION = 3;
+
+	public static final String TABLE_OBSERVATIONS = "observations";
+	public static final String COLUMN_GATEWAY = "gateway";
+	public static final String COLUMN_FIRESTORM = "firestorm";
+	public static final String COLUMN_TIME = "time";
+	public static final String COLUMN_OBSERVED = "observed";
+
+	static final String SQL_INSERT = "INSERT INTO " + TABLE_OBSERVATIONS + " ("
+			+ COLUMN_GATEWAY + ", " + COLUMN_FIRESTORM + ", " + COLUMN_TIME + ", "
+			+ COLUMN_OBSERVED + ") VALUES (?, ?, ?, ?)";
+
+	public static final String TABLE_GATEWAYS = "gateways";
+	public static final String COLUMN_ADDRESS = "address";
+	public static final String COLUMN_INDEX = "idx";
+
+	private static final String SQL_FIND_GATEWAY = "SELECT IFNULL((SELECT " + COLUMN_INDEX
+			+ " FROM " + TABLE_GATEWAYS + " WHERE " + COLUMN_ADDRESS + " = ?), 0)";
+	private static final String SQL_NEXT_GATEWAY = "SELECT IFNULL(MAX(" + COLUMN_INDEX
+			+ "), 0) + 1 FROM " + TABLE_GATEWAYS;
+	private static final String SQL_INSERT_GATEWAY = "INSERT OR IGNORE INTO " + TABLE_GATEWAYS
+			+ " (" + COLUMN_ADDRESS + ", " + COLUMN_INDEX + ") VALUES (?, ?)";
+
+	private static final String INDEX_V1 = TABLE_OBSERVATIONS + "_firestorm_time";
+	private static final String INDEX = TABLE_OBSERVATIONS + "_gateway_firestorm_time";
+
+	public ObservationDatabase(Context context) {
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+	}
+
+	@Override
+	public void onConfigure(SQLiteDatabase db) {
+		super.onConfigure(db);
+		db.enableWriteAheadLogging();
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + TABLE_OBSERVATIONS + " ("
+				+ COLUMN_GATEWAY + " INTEGER NOT NULL DEFAULT 0, "
+				+ COLUMN_FIRESTORM + " INTEGER NOT NULL, "
+				+ COLUMN_TIME + " INTEGER NOT NULL, "
+				+ COLUMN_OBSERVED + " INTEGER NOT NULL)");
+		createIndex(db);
+		createGateways(db);
+	}
+
+	private static void createGateways(SQLiteDatabase db) {
+		// Gateway 0 is reserved for untagged observations, real gateways are numbered from 1.
+		db.execSQL("CREATE TABLE " + TABLE_GATEWAYS + " ("
+				+ COLUMN_ADDRESS + " TEXT PRIMARY KEY, "
+				+ COLUMN_INDEX + " INTEGER NOT NULL UNIQUE)");
+	}
+
+	private static void createIndex(SQLiteDatabase db) {
+		db.execSQL("CREATE INDEX " + INDEX + " ON " + TABLE_OBSERVATIONS + " ("
+				+ COLUMN_GATEWAY + ", " + COLUMN_FIRESTORM + ", " + COLUMN_TIME + ")");
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		if (oldVersion < 2) {
+			// Observations recorded before gateways were tagged keep gateway 0.
+			db.execSQL("ALTER TABLE " + TABLE_OBSERVATIONS + " ADD COLUMN "
+					+ COLUMN_GATEWAY + " INTEGER NOT NULL DEFAULT 0");
+			db.execSQL("DROP INDEX IF EXISTS " + INDEX_V1);
+			createIndex(db);
+		}
+		if (oldVersion < 3) {
+			createGateways(db);
+		}
+	}
+
+	/**
+	 * Looks up the index of a gateway, assigning the next free one the first time the address
+	 * is seen. Queries and may write the database, so callers cache the result and keep it off
+	 * the main thread.
+	 */
+	public int getGatewayIndex(String address) {
+		final SQLiteDatabase db = getWritableDatabase();
+		final String[] args = {address};
+		db.beginTransaction();
+		try {
+			int index = (int) DatabaseUtils.longForQuery(db, SQL_FIND_GATEWAY, args);
+			if (index == 0) {
+				index = (int) DatabaseUtils.longForQuery(db, SQL_NEXT_GATEWAY, null);
+				db.execSQL(SQL_INSERT_GATEWAY, new Object[] {address, index});
+			}
+			db.setTransactionSuccessful();
+			return index;
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Records an index assigned elsewhere, e.g. by a snapshot written before the table
+	 * existed. Ignored if the address or the index is taken already.
+	 *
+	 * @return the index the address has now, 0 if it has none because the index was taken
+	 */
+	public int putGatewayIndex(String address, int index) {
+		final SQLiteDatabase db = getWritableDatabase();
+		db.execSQL(SQL_INSERT_GATEWAY, new Object[] {address, index});
+		return (int) DatabaseUtils.longForQuery(db, SQL_FIND_GATEWAY, new String[] {address});
+	}
+}
@@ -0,0 +1,206 @@
+package edu.stanford.cs.sing.helena.store;
+
+import java.util.ArrayDeque;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import edu.stanford.cs.sing.common.logger.Log;
+import edu.stanford.cs.sing.helena.nodes.ObservationSink;
+
+/**
+ * Persists observations to an {@link ObservationDatabase} without blocking the caller.
+ *
+ * <p>Observations are collected into preallocated batches of primitive arrays. A full batch,
+ * or a partial one older than {@link #FLUSH_DELAY_MS}, is handed to a background thread that
+ * inserts it in a single transaction through a compiled statement. If the database falls so
+ * far behind that every batch is in use, new observations are dropped and counted.</p>
+ *
+ * <p>A transaction per row spends most of its time committing; past a few hundred rows per
+ * transaction, larger batches mostly just delay the commit, hence the default of 2048.
+ * ObservationWriterTest in the test project writes a million rows on a device and logs the
+ * rate for a range of batch sizes.</p>
+ */
+public class ObservationWriter implements ObservationSink, Handler.Callback {
+	private final static String TAG = "ObservationWriter";
+
+	public static final int DEFAULT_BATCH_SIZE = 2048;
+	public static final long FLUSH_DELAY_MS = 500;
+	private static final int MAX_BATCHES = 8;
+
+	private static final int MSG_FLUSH = 1;
+	private static final int MSG_WRITE = 2;
+	private static final int MSG_CLOSE = 3;
+
+	private static class Batch {
+		final int[] gateways;
+		final int[] firestorms;
+		final int[] observed;
+		final long[] times;
+		int size;
+
+		Batch(int capacity) {
+			gateways = new int[capacity];
+			firestorms = new int[capacity];
+			observed = new int[capacity];
+			times = new long[capacity];
+		}
+	}
+
+	private final ObservationDatabase mDatabase;
+	private final HandlerThread mThread;
+	private final Handler mHandler;
+	private final int mBatchSize;
+	private final ArrayDeque<Batch> mFree = new ArrayDeque<Batch>();
+	private Batch mCurrent;
+	private int mAllocated;
+	private boolean mClosed;
+	private long mDropped;
+	private volatile long mWritten;
+	// Only touched on the writer thread.
+	private SQLiteStatement mInsert;
+
+	public ObservationWriter(ObservationDatabase database) {
+		this(database, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param database database to write to
+	 * @param batchSize observations per transaction
+	 */
+	public ObservationWriter(ObservationDatabase database, int batchSize) {
+		mDatabase = database;
+		mBatchSize = batchSize;
+		mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		mThread.start();
+		mHandler = new Handler(mThread.getLooper(), this);
+	}
+
+	@Override
+	public synchronized void onObservation(int gateway, int firestorm, int observed, long time) {
+		if (mClosed) {
+			return;
+		}
+		Batch batch = mCurrent;
+		if (batch == null) {
+			batch = mFree.poll();
+			if (batch == null) {
+				if (mAllocated == MAX_BATCHES) {
+					mDropped++;
+					return;
+				}
+				batch = new Batch(mBatchSize);
+				mAllocated++;
+			}
+			mCurrent = batch;
+			mHandler.sendEmptyMessageDelayed(MSG_FLUSH, FLUSH_DELAY_MS);
+		}
+		final int i = batch.size++;
+		batch.gateways[i] = gateway;
+		batch.firestorms[i] = firestorm;
+		batch.observed[i] = observed;
+		batch.times[i] = time;
+		if (batch.size == mBatchSize) {
+			submitLocked();
+		}
+	}
+
+	/**
+	 * Hands the partially filled batch to the writer thread.
+	 */
+	public synchronized void flush() {
+		if (mCurrent != null) {
+			submitLocked();
+		}
+	}
+
+	/**
+	 * Writes what is buffered, then closes the database and stops the writer thread.
+	 */
+	public synchronized void close() {
+		if (mClosed) {
+			return;
+		}
+		flush();
+		mClosed = true;
+		mHandler.sendEmptyMessage(MSG_CLOSE);
+	}
+
+	private void submitLocked() {
+		mHandler.removeMessages(MSG_FLUSH);
+		mHandler.obtainMessage(MSG_WRITE, mCurrent).sendToTarget();
+		mCurrent = null;
+	}
+
+	@Override
+	public boolean handleMessage(Message msg) {
+		switch (msg.what) {
+		case MSG_FLUSH:
+			flush();
+			return true;
+		case MSG_WRITE:
+			final Batch batch = (Batch) msg.obj;
+			write(batch);
+			synchronized (this) {
+				batch.size = 0;
+				mFree.add(batch);
+			}
+			return true;
+		case MSG_CLOSE:
+			if (mInsert != null) {
+				mInsert.close();
+				mInsert = null;
+			}
+			mDatabase.close();
+			mThread.quit();
+			return true;
+		}
+		return false;
+	}
+
+	private void write(Batch batch) {
+		try {
+			final SQLiteDatabase db = mDatabase.getWritableDatabase();
+			if (mInsert == null) {
+				mInsert = db.compileStatement(ObservationDatabase.SQL_INSERT);
+			}
+			db.beginTransactionNonExclusive();
+			try {
+				for (int i = 0; i < batch.size; i++) {
+					mInsert.bindLong(1, batch.gateways[i]);
+					mInsert.bindLong(2, batch.firestorms[i]);
+					mInsert.bindLong(3, batch.times[i]);
+					mInsert.bindLong(4, batch.observed[i]);
+					mInsert.executeInsert();
+				}
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+			mWritten += batch.size;
+		} catch (SQLiteException e) {
+			Log.e(TAG, "Unable to write {} observations", batch.size, e);
+			synchronized (this) {
+				mDropped += batch.size;
+			}
+		}
+	}
+
+	/**
+	 * @return number of observations committed to the database
+	 */
+	public long getWrittenCount() {
+		return mWritten;
+	}
+
+	/**
+	 * @return number of observations dropped because the writer fell behind or failed
+	 */
+	public synchronized long getDroppedCount() {
+		return mDropped;
+	}
+}
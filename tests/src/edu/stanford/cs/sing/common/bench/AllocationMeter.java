@@ -0,0 +1,73 @@
+package edu.stanford.cs.sing.common.bench;
+
+import java.lang.reflect.Method;
+
+/**
+ * Counts the bytes allocated by the calling thread, through HotSpot's
+ * com.sun.management.ThreadMXBean. It is looked up reflectively because java.lang.management
+ * is not part of Android; for the desktop benchmarks and checks in this tree.
+ */
+public final class AllocationMeter {
+
+	private final Object mBean;
+	private final Method mAllocated;
+	// Bytes the meter itself allocates between two readings, boxing the thread id and result.
+	private final long mOverhead;
+
+	public AllocationMeter() {
+		Object bean = null;
+		Method allocated = null;
+		try {
+			bean = Class.forName("java.lang.management.ManagementFactory")
+					.getMethod("getThreadMXBean").invoke(null);
+			allocated = Class.forName("com.sun.management.ThreadMXBean")
+					.getMethod("getThreadAllocatedBytes", long.class);
+		} catch (Exception e) {
+			bean = null;
+			allocated = null;
+		}
+		mBean = bean;
+		mAllocated = allocated;
+		long overhead = Long.MAX_VALUE;
+		if (isSupported()) {
+			for (int i = 0; i < 1000; i++) {
+				final long first = read();
+				overhead = Math.min(overhead, read() - first);
+			}
+		}
+		mOverhead = overhead == Long.MAX_VALUE ? 0 : overhead;
+	}
+
+	/**
+	 * @return false on VMs without per-thread allocation counters, e.g. on Android
+	 */
+	public boolean isSupported() {
+		return mAllocated != null;
+	}
+
+	/**
+	 * @return bytes allocated by the calling thread so far, -1 if not supported
+	 */
+	public long allocatedBytes() {
+		return isSupported() ? read() : -1;
+	}
+
+	/**
+	 * @param start earlier result of {@link #allocatedBytes()} on the same thread
+	 * @return bytes allocated since start, not counting the meter's own readings
+	 */
+	public long allocatedSince(long start) {
+		if (!isSupported()) {
+			return -1;
+		}
+		return Math.max(0, read() - start - mOverhead);
+	}
+
+	private long read() {
+		try {
+			return (Long) mAllocated.invoke(mBean, Thread.currentThread().getId());
+		} catch (Exception e) {
+			throw new IllegalStateException("Thread allocation counter failed", e);
+		}
+	}
+}
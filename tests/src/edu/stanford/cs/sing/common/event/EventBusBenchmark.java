@@ -0,0 +1,193 @@
+package edu.stanford.cs.sing.common.event;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Posts per second through {@link EventBus} and through a replica of the Otto post path it
+ * replaced, one handler per bus, on a desktop JVM:
+ *
+ * <pre>
+ *   java -cp bin/classes:tests/bin/classes \
+ *       edu.stanford.cs.sing.common.event.EventBusBenchmark [posts]
+ * </pre>
+ *
+ * <p>The Otto jar is not part of the tree, so {@link OttoReplica} repeats what Otto 1.3 does
+ * per post: the main thread check, the cached flattened class hierarchy, a handler set per
+ * type, the thread-local queue of event and handler pairs, and Method.invoke. Each case runs
+ * a few rounds so the later ones show the compiled code.</p>
+ */
+public final class EventBusBenchmark {
+
+	private static final int DEFAULT_POSTS = 5000000;
+	private static final int ROUNDS = 3;
+
+	static final class Event {
+		final int value;
+
+		Event(int value) {
+			this.value = value;
+		}
+	}
+
+	public static final class Target {
+		long sum;
+
+		public void onEvent(Event event) {
+			sum += event.value;
+		}
+	}
+
+	// The parts of com.squareup.otto.Bus that run for every post.
+	static final class OttoReplica {
+		private final ConcurrentMap<Class<?>, Set<Object[]>> mHandlers =
+				new ConcurrentHashMap<Class<?>, Set<Object[]>>();
+		private final ConcurrentMap<Class<?>, Set<Class<?>>> mFlattened =
+				new ConcurrentHashMap<Class<?>, Set<Class<?>>>();
+		private final ThreadLocal<ConcurrentLinkedQueue<Object[]>> mQueue =
+				new ThreadLocal<ConcurrentLinkedQueue<Object[]>>() {
+					@Override
+					protected ConcurrentLinkedQueue<Object[]> initialValue() {
+						return new ConcurrentLinkedQueue<Object[]>();
+					}
+				};
+		private final ThreadLocal<Boolean> mDispatching = new ThreadLocal<Boolean>() {
+			@Override
+			protected Boolean initialValue() {
+				return Boolean.FALSE;
+			}
+		};
+		private final Thread mMain = Thread.currentThread();
+
+		void register(Object target, Class<?> type) throws NoSuchMethodException {
+			final Method method = target.getClass().getMethod("onEvent", type);
+			final Set<Object[]> handlers = new CopyOnWriteArraySet<Object[]>();
+			handlers.add(new Object[] {target, method});
+			mHandlers.put(type, handlers);
+		}
+
+		void post(Object event) throws Exception {
+			if (Thread.currentThread() != mMain) {
+				throw new IllegalStateException("Event bus accessed from non-main thread");
+			}
+			for (Class<?> type : flatten(event.getClass())) {
+				final Set<Object[]> handlers = mHandlers.get(type);
+				if (handlers != null) {
+					for (Object[] handler : handlers) {
+						mQueue.get().offer(new Object[] {event, handler});
+					}
+				}
+			}
+			if (mDispatching.get()) {
+				return;
+			}
+			mDispatching.set(Boolean.TRUE);
+			try {
+				Object[] queued;
+				while ((queued = mQueue.get().poll()) != null) {
+					final Object[] handler = (Object[]) queued[1];
+					((Method) handler[1]).invoke(handler[0], queued[0]);
+				}
+			} finally {
+				mDispatching.set(Boolean.FALSE);
+			}
+		}
+
+		private Set<Class<?>> flatten(Class<?> type) {
+			Set<Class<?>> types = mFlattened.get(type);
+			if (types == null) {
+				types = new HashSet<Class<?>>();
+				for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+					types.add(c);
+					types.addAll(Arrays.asList(c.getInterfaces()));
+				}
+				mFlattened.putIfAbsent(type, types);
+			}
+			return types;
+		}
+	}
+
+	private EventBusBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int posts = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_POSTS;
+		final Event event = new Event(1);
+		System.out.printf("%-36s %12s %16s%n", "Benchmark", "M posts/s", "handler calls");
+		for (int round = 0; round < ROUNDS; round++) {
+			final OttoReplica otto = new OttoReplica();
+			final Target target = new Target();
+			otto.register(target, Event.class);
+			long start = System.nanoTime();
+			for (int i = 0; i < posts; i++) {
+				otto.post(event);
+			}
+			report("Otto replica, synchronous", posts, System.nanoTime() - start, target.sum);
+
+			final ExecutorService background = Executors.newSingleThreadExecutor();
+			final EventBus posting = new EventBus(background, background);
+			final long[] sum = new long[1];
+			posting.subscribe(Event.class, new EventBus.Handler<Event>() {
+				@Override
+				public void onEvent(Event e) {
+					sum[0] += e.value;
+				}
+			}, EventBus.POSTING);
+			start = System.nanoTime();
+			for (int i = 0; i < posts; i++) {
+				posting.post(event);
+			}
+			report("EventBus POSTING", posts, System.nanoTime() - start, sum[0]);
+
+			final EventBus queued = new EventBus(background, background);
+			final AtomicLong delivered = new AtomicLong();
+			queued.subscribe(Event.class, new EventBus.Handler<Event>() {
+				@Override
+				public void onEvent(Event e) {
+					delivered.incrementAndGet();
+				}
+			}, EventBus.BACKGROUND);
+			start = System.nanoTime();
+			for (int i = 0; i < posts; i++) {
+				queued.post(event);
+			}
+			while (delivered.get() < posts) {
+				Thread.yield();
+			}
+			report("EventBus BACKGROUND, all delivered", posts, System.nanoTime() - start,
+					delivered.get());
+
+			final EventBus coalesced = new EventBus(background, background);
+			final AtomicLong calls = new AtomicLong();
+			coalesced.subscribeCoalesced(Event.class, new EventBus.Handler<Event>() {
+				@Override
+				public void onEvent(Event e) {
+					calls.incrementAndGet();
+				}
+			}, EventBus.BACKGROUND);
+			start = System.nanoTime();
+			for (int i = 0; i < posts; i++) {
+				coalesced.post(event);
+			}
+			final long elapsed = System.nanoTime() - start;
+			background.shutdown();
+			background.awaitTermination(5, TimeUnit.SECONDS);
+			report("EventBus BACKGROUND, coalesced", posts, elapsed, calls.get());
+			System.out.println();
+		}
+	}
+
+	private static void report(String name, int posts, long nanos, long calls) {
+		System.out.printf("%-36s %12.1f %16d%n", name, posts * 1e3 / nanos, calls);
+	}
+}
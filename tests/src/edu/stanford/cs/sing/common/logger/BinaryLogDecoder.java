@@ -0,0 +1,184 @@
+package edu.stanford.cs.sing.common.logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Turns a {@link BinaryLogNode} file pulled from the device back into text, oldest record
+ * first, in a logcat-like format:
+ *
+ * <pre>
+ *   java -cp bin/classes:tests/bin/classes \
+ *       edu.stanford.cs.sing.common.logger.BinaryLogDecoder trace.bin
+ * </pre>
+ *
+ * <p>The dictionary file must sit next to the log, as pulled from the device.</p>
+ */
+public final class BinaryLogDecoder {
+
+    private static final char[] PRIORITY_LETTERS = {'?', '?', 'V', 'D', 'I', 'W', 'E', 'A'};
+
+    private BinaryLogDecoder() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: BinaryLogDecoder <log file>...");
+            System.exit(2);
+        }
+        for (String path : args) {
+            decode(new File(path), System.out);
+        }
+        System.out.flush();
+    }
+
+    /**
+     * Writes every record of the log to out, one line each.
+     *
+     * @return number of records decoded
+     */
+    public static int decode(File log, PrintStream out) throws IOException {
+        final HashMap<Integer, String> dictionary =
+                readDictionary(BinaryLogNode.dictionaryFile(log));
+        final ByteBuffer buffer = readFile(log);
+        if (buffer.remaining() < BinaryLogNode.HEADER_SIZE
+                || buffer.getInt(0) != BinaryLogNode.MAGIC
+                || buffer.getInt(4) != BinaryLogNode.VERSION
+                || buffer.getInt(8) != BinaryLogNode.RECORD_SIZE) {
+            throw new IOException("Not a binary log: " + log);
+        }
+        final int capacity = buffer.getInt(12);
+        final int textBase = BinaryLogNode.HEADER_SIZE + capacity * BinaryLogNode.RECORD_SIZE;
+        final int textSize = buffer.getInt(BinaryLogNode.OFF_TEXT_SIZE);
+        final long textEnd = buffer.getLong(BinaryLogNode.OFF_TEXT_POSITION);
+        if (capacity < 0 || textSize < 0 || (long) textBase + textSize > buffer.remaining()) {
+            throw new IOException("Truncated binary log: " + log);
+        }
+
+        // Sort occupied slots by unsigned sequence number, then find where it wrapped around.
+        long[] order = new long[capacity];
+        int count = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            final int sequence = buffer.getInt(offset(slot) + BinaryLogNode.OFF_SEQUENCE);
+            if (sequence != 0) {
+                order[count++] = (sequence & 0xFFFFFFFFL) << 31 | slot;
+            }
+        }
+        order = Arrays.copyOf(order, count);
+        Arrays.sort(order);
+        final int start = oldest(order);
+
+        final SimpleDateFormat time = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        final StringBuilder line = new StringBuilder(128);
+        for (int i = 0; i < count; i++) {
+            final int base = offset((int) (order[(start + i) % count] & Integer.MAX_VALUE));
+            final int priority = buffer.get(base + BinaryLogNode.OFF_PRIORITY);
+            final int argCount = buffer.get(base + BinaryLogNode.OFF_ARG_COUNT);
+            final int flags = buffer.get(base + BinaryLogNode.OFF_FLAGS);
+            final long arg1 = buffer.getLong(base + BinaryLogNode.OFF_ARG1);
+            final long arg2 = buffer.getLong(base + BinaryLogNode.OFF_ARG2);
+            line.setLength(0);
+            line.append(time.format(new Date(buffer.getLong(base + BinaryLogNode.OFF_TIME))))
+                    .append(' ')
+                    .append(priority >= 0 && priority < PRIORITY_LETTERS.length
+                            ? PRIORITY_LETTERS[priority] : '?')
+                    .append('/')
+                    .append(lookup(dictionary, buffer.getInt(base + BinaryLogNode.OFF_TAG)))
+                    .append(": ");
+            if ((flags & BinaryLogNode.FLAG_TEXT) != 0) {
+                appendText(line, buffer, textBase, textSize, textEnd, arg1, (int) arg2);
+            } else {
+                LogTemplate.expand(line,
+                        lookup(dictionary, buffer.getInt(base + BinaryLogNode.OFF_TEMPLATE)),
+                        arg1, arg2, argCount);
+            }
+            out.println(line);
+        }
+        return count;
+    }
+
+    // Sequence numbers are compared with wrap-around, so the oldest may not sort first:
+    // it follows the largest gap between neighbours.
+    private static int oldest(long[] order) {
+        int start = 0;
+        long widest = 0;
+        for (int i = 0; i < order.length; i++) {
+            final long next = (order[(i + 1) % order.length] >>> 31) - (order[i] >>> 31);
+            final long gap = next <= 0 ? next + (1L << 32) : next;
+            if (gap > widest) {
+                widest = gap;
+                start = (i + 1) % order.length;
+            }
+        }
+        return start;
+    }
+
+    // Appends the message text at position, unless newer text has overwritten it since.
+    private static void appendText(StringBuilder line, ByteBuffer buffer, int textBase,
+            int textSize, long textEnd, long position, int length) {
+        if (textSize == 0 || length < 0 || position < 0 || position + 2L * length > textEnd
+                || textEnd - position > textSize) {
+            line.append("<text overwritten>");
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            line.append(buffer.getChar(textBase + (int) ((position + 2L * i) % textSize)));
+        }
+    }
+
+    private static int offset(int slot) {
+        return BinaryLogNode.HEADER_SIZE + slot * BinaryLogNode.RECORD_SIZE;
+    }
+
+    private static String lookup(HashMap<Integer, String> dictionary, int id) {
+        final String s = dictionary.get(id);
+        if (s != null) {
+            return s;
+        }
+        return id == BinaryLogNode.NOT_STORED ? "<not stored>" : "<unknown string " + id + ">";
+    }
+
+    private static ByteBuffer readFile(File file) throws IOException {
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            final byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return ByteBuffer.wrap(data);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static HashMap<Integer, String> readDictionary(File file) throws IOException {
+        final HashMap<Integer, String> dictionary = new HashMap<Integer, String>();
+        if (!file.exists()) {
+            return dictionary;
+        }
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    dictionary.put(Integer.valueOf(line.substring(0, tab)),
+                            BinaryLogNode.unescape(line.substring(tab + 1)));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return dictionary;
+    }
+}
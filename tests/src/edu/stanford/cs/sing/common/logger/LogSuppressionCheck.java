@@ -0,0 +1,110 @@
+package edu.stanford.cs.sing.common.logger;
+
+import edu.stanford.cs.sing.common.bench.AllocationMeter;
+
+/**
+ * Checks that a template log call below the enabled level allocates nothing once the JIT has
+ * warmed up, whether it is suppressed by the global level, by a tag level or because no
+ * LogNode is set. Needs a HotSpot VM, which counts allocations per thread; run it with
+ * -XX:-DoEscapeAnalysis to rule out allocations only HotSpot would remove:
+ *
+ * <pre>
+ *   java -cp bin/classes:tests/bin/classes \
+ *       edu.stanford.cs.sing.common.logger.LogSuppressionCheck
+ * </pre>
+ *
+ * <p>Exits with status 1 if a suppressed call allocated or reached the LogNode, 2 if the VM
+ * cannot count allocations.</p>
+ */
+public final class LogSuppressionCheck {
+
+    private static final String TAG = "LogSuppressionCheck";
+    private static final String QUIET_TAG = "Quiet";
+    private static final int WARMUP_RUNS = 5;
+    private static final int MEASURED_CALLS = 1000000;
+
+    private static final class CountingNode implements LogNode {
+        int lines;
+
+        @Override
+        public void println(int priority, String tag, String msg, Throwable tr) {
+            lines++;
+        }
+    }
+
+    private final AllocationMeter mMeter = new AllocationMeter();
+    private final CountingNode mNode = new CountingNode();
+    private int mFailures;
+
+    private LogSuppressionCheck() {
+    }
+
+    public static void main(String[] args) {
+        final LogSuppressionCheck check = new LogSuppressionCheck();
+        if (!check.mMeter.isSupported()) {
+            System.err.println("This VM does not count allocations per thread");
+            System.exit(2);
+        }
+        check.run();
+        if (check.mFailures > 0) {
+            System.err.println("FAIL: " + check.mFailures + " suppressed paths allocated or logged");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private void run() {
+        Log.setLogNode(mNode);
+        Log.setMinLevel(Log.INFO);
+        Log.i(TAG, "enabled {}", 1L);
+        if (mNode.lines != 1) {
+            System.err.println("An enabled call did not reach the LogNode");
+            mFailures++;
+        }
+
+        measure("Log.d(tag, \"x {}\", long) below the global level", new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < MEASURED_CALLS; i++) {
+                    Log.d(TAG, "x {}", (long) i);
+                }
+            }
+        });
+
+        Log.setMinLevel(QUIET_TAG, Log.WARN);
+        measure("Log.i(tag, \"x {} {}\", long, long) below the tag level", new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < MEASURED_CALLS; i++) {
+                    Log.i(QUIET_TAG, "x {} {}", (long) i, i * 31L);
+                }
+            }
+        });
+
+        Log.setLogNode(null);
+        Log.setMinLevel(Log.VERBOSE);
+        measure("Log.e(tag, \"x {}\", long) without a LogNode", new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < MEASURED_CALLS; i++) {
+                    Log.e(TAG, "x {}", (long) i);
+                }
+            }
+        });
+    }
+
+    private void measure(String name, Runnable calls) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            calls.run();
+        }
+        final int lines = mNode.lines;
+        final long start = mMeter.allocatedBytes();
+        calls.run();
+        final long allocated = mMeter.allocatedSince(start);
+        System.out.println(name + ": " + MEASURED_CALLS + " calls, " + allocated
+                + " bytes allocated");
+        if (allocated != 0 || mNode.lines != lines) {
+            mFailures++;
+        }
+    }
+}
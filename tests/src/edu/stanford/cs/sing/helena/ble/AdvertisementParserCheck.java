@@ -0,0 +1,321 @@
+package edu.stanford.cs.sing.helena.ble;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import edu.stanford.cs.sing.common.bench.AllocationMeter;
+
+/**
+ * Compares {@link AdvertisementParser} with a naive parser that copies every AD structure out
+ * of the record, as android.bluetooth.le.ScanRecord does, then fuzzes both:
+ *
+ * <pre>
+ *   java -cp bin/classes:tests/bin/classes \
+ *       edu.stanford.cs.sing.helena.ble.AdvertisementParserCheck [records]
+ * </pre>
+ *
+ * <p>Prints time and allocation per record for both parsers on typical advertisements. The
+ * fuzz loop feeds random records, and typical ones truncated or with random bytes replaced,
+ * one million by default, and checks that neither parser throws and that both report the same
+ * fields. Exits with status 1 on any difference or exception, or if the in-place parser
+ * allocated once warmed up.</p>
+ */
+public final class AdvertisementParserCheck {
+
+	private static final int DEFAULT_RECORDS = 1000000;
+	private static final int RECORD_SIZE = 62;
+	private static final long WARMUP_MS = 2000;
+	private static final long MEASURE_MS = 1000;
+	private static final int BATCH = 1 << 12;
+	private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final UUID HELENA = UUID.fromString(HelenaGattAttributes.HELENA_SERVICE);
+	private static final UUID OTHER = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+
+	// Read after every run, so the JIT cannot drop the measured work.
+	static volatile long sSink;
+
+	/**
+	 * Parses the way most scan code does: each field is copied into its own array and service
+	 * UUIDs are expanded into UUID objects.
+	 */
+	static final class NaiveParser {
+		boolean malformed;
+		int txPower;
+		byte[] manufacturerData;
+		String shortName;
+		String completeName;
+		final List<UUID> uuids = new ArrayList<UUID>();
+
+		NaiveParser(byte[] record) {
+			txPower = AdvertisementParser.NO_TX_POWER;
+			int pos = 0;
+			while (pos < record.length) {
+				final int fieldLength = record[pos] & 0xFF;
+				if (fieldLength == 0) {
+					break;
+				}
+				if (pos + 1 + fieldLength > record.length) {
+					malformed = true;
+					break;
+				}
+				final int type = record[pos + 1] & 0xFF;
+				final byte[] data = Arrays.copyOfRange(record, pos + 2, pos + 1 + fieldLength);
+				switch (type) {
+					case AdvertisementParser.TYPE_UUID16_INCOMPLETE:
+					case AdvertisementParser.TYPE_UUID16_COMPLETE:
+						addUuids(data, 2);
+						break;
+					case AdvertisementParser.TYPE_UUID32_INCOMPLETE:
+					case AdvertisementParser.TYPE_UUID32_COMPLETE:
+						addUuids(data, 4);
+						break;
+					case AdvertisementParser.TYPE_UUID128_INCOMPLETE:
+					case AdvertisementParser.TYPE_UUID128_COMPLETE:
+						addUuids(data, 16);
+						break;
+					case AdvertisementParser.TYPE_TX_POWER:
+						if (data.length >= 1) {
+							txPower = data[0];
+						}
+						break;
+					case AdvertisementParser.TYPE_MANUFACTURER_DATA:
+						if (data.length >= 2 && manufacturerData == null) {
+							manufacturerData = data;
+						}
+						break;
+					case AdvertisementParser.TYPE_NAME_SHORT:
+						if (shortName == null) {
+							shortName = new String(data, UTF_8);
+						}
+						break;
+					case AdvertisementParser.TYPE_NAME_COMPLETE:
+						if (completeName == null) {
+							completeName = new String(data, UTF_8);
+						}
+						break;
+					default:
+						break;
+				}
+				pos += 1 + fieldLength;
+			}
+		}
+
+		private void addUuids(byte[] data, int size) {
+			for (int i = 0; i + size <= data.length; i += size) {
+				final byte[] bytes = Arrays.copyOfRange(data, i, i + size);
+				if (size == 16) {
+					uuids.add(new UUID(littleEndian(bytes, 8, 8), littleEndian(bytes, 0, 8)));
+				} else {
+					uuids.add(new UUID(littleEndian(bytes, 0, size) << 32 | 0x1000L,
+							BASE_UUID_LSB));
+				}
+			}
+		}
+
+		private static long littleEndian(byte[] bytes, int offset, int size) {
+			long value = 0;
+			for (int i = offset + size - 1; i >= offset; i--) {
+				value = value << 8 | (bytes[i] & 0xFF);
+			}
+			return value;
+		}
+
+		int manufacturerId() {
+			return manufacturerData == null ? AdvertisementParser.NO_MANUFACTURER
+					: (manufacturerData[0] & 0xFF) | (manufacturerData[1] & 0xFF) << 8;
+		}
+
+		String localName() {
+			return completeName != null ? completeName : shortName;
+		}
+	}
+
+	private final byte[][] mTypical;
+	private final AllocationMeter mMeter = new AllocationMeter();
+	private final AdvertisementParser mParser = new AdvertisementParser();
+	private final long[] mResult = new long[3];
+	private int mFailures;
+
+	private AdvertisementParserCheck() {
+		mTypical = new byte[][] {
+			record(new int[] {AdvertisementParser.TYPE_FLAGS, 0x06},
+					new int[] {AdvertisementParser.TYPE_UUID16_COMPLETE, 0x78, 0x19, 0x0F, 0x18},
+					new int[] {AdvertisementParser.TYPE_TX_POWER, 0xF4},
+					new int[] {AdvertisementParser.TYPE_MANUFACTURER_DATA, 0x0D, 0x00, 1, 2, 3},
+					name(AdvertisementParser.TYPE_NAME_COMPLETE, "Helena-GW-01")),
+			record(new int[] {AdvertisementParser.TYPE_FLAGS, 0x1A},
+					new int[] {AdvertisementParser.TYPE_MANUFACTURER_DATA, 0x4C, 0x00, 0x02,
+						0x15, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 0, 1, 0, 2,
+						0xC5}),
+			record(new int[] {AdvertisementParser.TYPE_FLAGS, 0x06},
+					uuid128(AdvertisementParser.TYPE_UUID128_COMPLETE, OTHER),
+					name(AdvertisementParser.TYPE_NAME_SHORT, "UART")),
+		};
+	}
+
+	public static void main(String[] args) {
+		final int records = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_RECORDS;
+		final AdvertisementParserCheck check = new AdvertisementParserCheck();
+		check.compare();
+		check.fuzz(records);
+		if (check.mFailures > 0) {
+			System.err.println("FAIL: " + check.mFailures + " problems");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private void compare() {
+		System.out.printf("%-44s %10s %10s%n", "Benchmark", "ns/op", "B/op");
+		final long inPlaceBytes = report("AdvertisementParser, in place", new Runnable() {
+			@Override
+			public void run() {
+				long sum = 0;
+				for (int i = 0; i < BATCH; i++) {
+					final AdvertisementParser ad = mParser.parse(mTypical[i % mTypical.length]);
+					sum += ad.getTxPower() + ad.getManufacturerId()
+							+ (ad.hasLocalName() ? 1 : 0) + (ad.hasServiceUuid(HELENA) ? 1 : 0);
+				}
+				sSink += sum;
+			}
+		});
+		report("Naive copying parser", new Runnable() {
+			@Override
+			public void run() {
+				long sum = 0;
+				for (int i = 0; i < BATCH; i++) {
+					final NaiveParser ad = new NaiveParser(mTypical[i % mTypical.length]);
+					sum += ad.txPower + ad.manufacturerId() + (ad.localName() != null ? 1 : 0)
+							+ (ad.uuids.contains(HELENA) ? 1 : 0);
+				}
+				sSink += sum;
+			}
+		});
+		if (inPlaceBytes > 0) {
+			System.err.println("  the in-place parser allocated " + inPlaceBytes + " bytes");
+			mFailures++;
+		}
+	}
+
+	// Prints time and allocation per record; returns the bytes allocated, -1 if unknown.
+	private long report(String name, Runnable batch) {
+		run(batch, WARMUP_MS);
+		run(batch, MEASURE_MS);
+		final long bytes = mMeter.isSupported() ? mResult[2] : -1;
+		System.out.printf("%-44s %10.1f %10s%n", name, (double) mResult[0] / mResult[1],
+				bytes < 0 ? "-" : String.format("%.2f", (double) bytes / mResult[1]));
+		return bytes;
+	}
+
+	// Fills mResult with elapsed nanoseconds, records parsed and bytes allocated.
+	private void run(Runnable batch, long ms) {
+		final long allocated = mMeter.allocatedBytes();
+		final long start = System.nanoTime();
+		final long end = start + ms * 1000000L;
+		long records = 0;
+		long now;
+		do {
+			batch.run();
+			records += BATCH;
+			now = System.nanoTime();
+		} while (now < end);
+		mResult[2] = mMeter.allocatedSince(allocated);
+		mResult[0] = now - start;
+		mResult[1] = records;
+	}
+
+	private void fuzz(int records) {
+		final Random random = new Random(1);
+		final byte[] record = new byte[RECORD_SIZE];
+		int malformed = 0;
+		for (int n = 0; n < records; n++) {
+			final byte[] input;
+			switch (n % 3) {
+				case 0:
+					input = new byte[random.nextInt(RECORD_SIZE + 1)];
+					random.nextBytes(input);
+					break;
+				case 1:
+					final byte[] typical = mTypical[random.nextInt(mTypical.length)];
+					input = Arrays.copyOf(typical, random.nextInt(typical.length + 1));
+					break;
+				default:
+					System.arraycopy(mTypical[random.nextInt(mTypical.length)], 0, record, 0,
+							RECORD_SIZE);
+					for (int i = random.nextInt(4); i >= 0; i--) {
+						record[random.nextInt(RECORD_SIZE)] = (byte) random.nextInt(0x100);
+					}
+					input = record;
+					break;
+			}
+			try {
+				if (!agree(input)) {
+					System.err.println("  parsers differ on " + Arrays.toString(input));
+					if (++mFailures > 10) {
+						return;
+					}
+				}
+				if (mParser.isMalformed()) {
+					malformed++;
+				}
+			} catch (RuntimeException e) {
+				System.err.println("  " + e + " on " + Arrays.toString(input));
+				if (++mFailures > 10) {
+					return;
+				}
+			}
+		}
+		System.out.println("Fuzzed " + records + " records, " + malformed + " malformed");
+	}
+
+	private boolean agree(byte[] record) {
+		final AdvertisementParser ad = mParser.parse(record);
+		final NaiveParser naive = new NaiveParser(record);
+		final String name = naive.localName();
+		return ad.isMalformed() == naive.malformed
+				&& ad.getTxPower() == naive.txPower
+				&& ad.getManufacturerId() == naive.manufacturerId()
+				&& ad.getManufacturerDataLength() == (naive.manufacturerData == null ? 0
+						: naive.manufacturerData.length - 2)
+				&& (name == null ? ad.getLocalName() == null : name.equals(ad.getLocalName()))
+				&& ad.hasServiceUuid(HELENA) == naive.uuids.contains(HELENA)
+				&& ad.hasServiceUuid(OTHER) == naive.uuids.contains(OTHER);
+	}
+
+	// Builds a zero-padded scan record from AD structures given as type followed by data.
+	private static byte[] record(int[]... structures) {
+		final byte[] record = new byte[RECORD_SIZE];
+		int pos = 0;
+		for (int[] structure : structures) {
+			record[pos++] = (byte) structure.length;
+			for (int value : structure) {
+				record[pos++] = (byte) value;
+			}
+		}
+		return record;
+	}
+
+	private static int[] name(int type, String name) {
+		final int[] structure = new int[1 + name.length()];
+		structure[0] = type;
+		for (int i = 0; i < name.length(); i++) {
+			structure[1 + i] = name.charAt(i);
+		}
+		return structure;
+	}
+
+	private static int[] uuid128(int type, UUID uuid) {
+		final int[] structure = new int[17];
+		structure[0] = type;
+		for (int i = 0; i < 8; i++) {
+			structure[1 + i] = (int) (uuid.getLeastSignificantBits() >>> (8 * i)) & 0xFF;
+			structure[9 + i] = (int) (uuid.getMostSignificantBits() >>> (8 * i)) & 0xFF;
+		}
+		return structure;
+	}
+}
@@ -0,0 +1,255 @@
+package edu.stanford.cs.sing.helena.ble;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Checks {@link FrameRingBuffer} wraparound, dropping when full and truncation, then measures
+ * frames per second from a producer thread to a consumer thread through the ring and through
+ * a replica of the broadcast path it replaced:
+ *
+ * <pre>
+ *   java -cp bin/classes:tests/bin/classes \
+ *       edu.stanford.cs.sing.helena.ble.FrameRingBufferCheck [milliseconds]
+ * </pre>
+ *
+ * <p>The ring is sized and drained as in BluetoothLeService, with full-size frames. The
+ * producer retries while the ring is full, so the rate is what the hand-off sustains, and the
+ * consumer checks every frame arrives once, in order and intact. The broadcast replica does
+ * what the service did per notification before the ring: format the value as hex, copy it
+ * into a new object and queue it for the main thread. A real broadcast also crosses into the
+ * system server and back, so the replica only bounds its cost from below. Exits with status 1
+ * if a frame is lost, duplicated, reordered or damaged.</p>
+ */
+public final class FrameRingBufferCheck {
+
+	private static final long DEFAULT_MEASURE_MS = 2000;
+	private static final long WARMUP_MS = 1000;
+	private static final int CAPACITY = 2048;
+	private static final int DRAIN_BATCH = 256;
+	private static final int FRAME_LENGTH = ListedDeviceDecoder.MAX_FRAME_SIZE;
+	private static final Object[] END = new Object[0];
+
+	// Checks that frames carry consecutive sequence numbers, starting from 0.
+	private final class Verifier implements FrameRingBuffer.FrameConsumer {
+		long next;
+
+		@Override
+		public void onFrame(int gateway, byte[] frame, int length, long receivedAt) {
+			if (receivedAt != next || gateway != gatewayOf(next) || length != FRAME_LENGTH
+					|| !holds(frame, next)) {
+				fail("frame " + next + " lost or damaged, got " + receivedAt);
+			}
+			next = receivedAt + 1;
+		}
+	}
+
+	private volatile int mFailures;
+
+	private FrameRingBufferCheck() {
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		final long measureMs = args.length > 0 ? Long.parseLong(args[0]) : DEFAULT_MEASURE_MS;
+		final FrameRingBufferCheck check = new FrameRingBufferCheck();
+		check.wrapsAround();
+		check.dropsWhenFull();
+		check.truncates();
+		check.runRing(WARMUP_MS);
+		check.runBroadcast(WARMUP_MS);
+		check.report("FrameRingBuffer", check.runRing(measureMs), measureMs);
+		check.report("broadcast replica", check.runBroadcast(measureMs), measureMs);
+		if (check.mFailures > 0) {
+			System.err.println("FAIL: " + check.mFailures + " expectations not met");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	// Many times round a small ring, with the consumer at varying distances behind.
+	private void wrapsAround() {
+		System.out.println("wraparound");
+		final FrameRingBuffer ring = new FrameRingBuffer(6, FRAME_LENGTH);
+		expect(ring.getCapacity() == 8, "capacity rounded up to 8");
+		final Verifier verifier = new Verifier();
+		final byte[] frame = new byte[FRAME_LENGTH];
+		long seq = 0;
+		for (int round = 0; round < 1000; round++) {
+			final int count = 1 + round % ring.getCapacity();
+			for (int i = 0; i < count; i++, seq++) {
+				fill(frame, seq);
+				expect(ring.offer(gatewayOf(seq), frame, seq, 0), "room for frame " + seq);
+			}
+			expect(ring.size() == count, "size " + count);
+			expect(ring.drain(verifier, count) == count, "all " + count + " drained");
+			expect(ring.isEmpty(), "an empty ring");
+		}
+		expect(verifier.next == seq && ring.getDroppedCount() == 0, "every frame delivered");
+	}
+
+	// The newest frames are dropped and counted; the queued ones are delivered unchanged.
+	private void dropsWhenFull() {
+		System.out.println("full ring");
+		final FrameRingBuffer ring = new FrameRingBuffer(8, FRAME_LENGTH);
+		final Verifier verifier = new Verifier();
+		final byte[] frame = new byte[FRAME_LENGTH];
+		// Start past the first lap, so the full check sees wrapped positions.
+		long seq = 0;
+		for (; seq < 5; seq++) {
+			fill(frame, seq);
+			ring.offer(gatewayOf(seq), frame, seq, 0);
+		}
+		ring.drain(verifier, 5);
+		for (int i = 0; i < 8; i++, seq++) {
+			fill(frame, seq);
+			expect(ring.offer(gatewayOf(seq), frame, seq, 0), "room for frame " + seq);
+		}
+		for (int i = 0; i < 3; i++) {
+			fill(frame, seq + i);
+			expect(!ring.offer(gatewayOf(seq + i), frame, seq + i, 0), "a full ring");
+		}
+		expect(ring.getDroppedCount() == 3, "3 frames dropped");
+		expect(ring.drain(verifier, Integer.MAX_VALUE) == 8 && verifier.next == seq,
+				"the 8 queued frames delivered");
+		fill(frame, seq);
+		expect(ring.offer(gatewayOf(seq), frame, seq, 0), "room again after draining");
+		expect(ring.drain(verifier, 1) == 1 && verifier.next == seq + 1, "the new frame");
+	}
+
+	private void truncates() {
+		System.out.println("truncation");
+		final FrameRingBuffer ring = new FrameRingBuffer(2, 4);
+		ring.offer(new byte[] {1, 2, 3, 4, 5, 6}, 0);
+		ring.offer(new byte[] {7, 8}, 1);
+		final int[] lengths = new int[2];
+		ring.drain(new FrameRingBuffer.FrameConsumer() {
+			@Override
+			public void onFrame(int gateway, byte[] frame, int length, long receivedAt) {
+				lengths[(int) receivedAt] = length;
+				expect(frame[0] == (receivedAt == 0 ? 1 : 7), "the start of frame " + receivedAt);
+			}
+		}, 2);
+		expect(lengths[0] == 4 && lengths[1] == 2, "a long frame cut to the slot size");
+	}
+
+	// Returns the number of frames handed over in ms.
+	private long runRing(long ms) throws InterruptedException {
+		final FrameRingBuffer ring = new FrameRingBuffer(CAPACITY, FRAME_LENGTH);
+		final Verifier verifier = new Verifier();
+		final boolean[] done = new boolean[1];
+		final Thread consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					if (ring.drain(verifier, DRAIN_BATCH) == 0) {
+						synchronized (done) {
+							if (done[0] && ring.isEmpty()) {
+								return;
+							}
+						}
+						Thread.yield();
+					}
+				}
+			}
+		}, "consumer");
+		consumer.start();
+		final byte[] frame = new byte[FRAME_LENGTH];
+		final long end = System.nanoTime() + ms * 1000000L;
+		long seq = 0;
+		while (System.nanoTime() < end) {
+			for (int i = 0; i < DRAIN_BATCH; i++, seq++) {
+				fill(frame, seq);
+				while (!ring.offer(gatewayOf(seq), frame, seq, 0)) {
+					Thread.yield();
+				}
+			}
+		}
+		synchronized (done) {
+			done[0] = true;
+		}
+		consumer.join();
+		expect(verifier.next == seq, "all " + seq + " frames through the ring, got "
+				+ verifier.next);
+		return seq;
+	}
+
+	// Returns the number of frames handed over in ms.
+	private long runBroadcast(long ms) throws InterruptedException {
+		final BlockingQueue<Object[]> queue = new LinkedBlockingQueue<Object[]>();
+		final Verifier verifier = new Verifier();
+		final Thread consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Object[] extras;
+					while ((extras = queue.take()) != END) {
+						final byte[] data = (byte[]) extras[1];
+						final long seq = (Long) extras[2];
+						verifier.onFrame(gatewayOf(seq), data, data.length, seq);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "consumer");
+		consumer.start();
+		final byte[] frame = new byte[FRAME_LENGTH];
+		final long end = System.nanoTime() + ms * 1000000L;
+		long seq = 0;
+		while (System.nanoTime() < end) {
+			fill(frame, seq);
+			// What broadcastUpdate put into the Intent for every notification.
+			final StringBuilder hex = new StringBuilder(frame.length);
+			for (byte b : frame) {
+				hex.append(String.format("%02X ", b));
+			}
+			queue.put(new Object[] {hex.toString(), frame.clone(), seq});
+			seq++;
+		}
+		queue.put(END);
+		consumer.join();
+		expect(verifier.next == seq, "all " + seq + " frames through the queue, got "
+				+ verifier.next);
+		return seq;
+	}
+
+	private void report(String name, long frames, long ms) {
+		System.out.printf("%-20s %12.0f frames/s%n", name, frames * 1000.0 / ms);
+	}
+
+	private static int gatewayOf(long seq) {
+		return (int) (seq & 0x7FFF);
+	}
+
+	// The sequence number big-endian in the first 8 bytes, its low byte in the rest.
+	private static void fill(byte[] frame, long seq) {
+		for (int i = 0; i < 8; i++) {
+			frame[i] = (byte) (seq >>> (56 - 8 * i));
+		}
+		for (int i = 8; i < frame.length; i++) {
+			frame[i] = (byte) seq;
+		}
+	}
+
+	private static boolean holds(byte[] frame, long seq) {
+		for (int i = 0; i < 8; i++) {
+			if (frame[i] != (byte) (seq >>> (56 - 8 * i))) {
+				return false;
+			}
+		}
+		return frame[FRAME_LENGTH - 1] == (byte) seq;
+	}
+
+	private void expect(boolean condition, String what) {
+		if (!condition) {
+			fail("expected " + what);
+		}
+	}
+
+	private synchronized void fail(String what) {
+		// Only the first few, a broken ring fails every frame after the first.
+		if (mFailures++ < 10) {
+			System.err.println("  " + what);
+		}
+	}
+}
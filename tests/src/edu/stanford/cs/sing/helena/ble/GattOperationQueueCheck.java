@@ -0,0 +1,311 @@
+package edu.stanford.cs.sing.helena.ble;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Runs {@link GattOperationQueue} against an in-memory stand-in for BluetoothGatt and a manual
+ * clock, covering serialization, timeouts and retries, operations the stack refuses to start,
+ * the write-without-response window and {@link GattOperationQueue#clear()}:
+ *
+ * <pre>
+ *   java -cp bin/classes:tests/bin/classes \
+ *       edu.stanford.cs.sing.helena.ble.GattOperationQueueCheck
+ * </pre>
+ *
+ * <p>Exits with status 1 if any expectation fails.</p>
+ */
+public final class GattOperationQueueCheck {
+
+	private static final long TIMEOUT_MS = 1000;
+	private static final int MAX_RETRIES = 2;
+	private static final int WINDOW = 4;
+	// The queue's delay before restarting an operation the stack refused.
+	private static final long RETRY_DELAY_MS = 50;
+	private static final int GATT_ERROR = 133;
+
+	// Starts operations by recording them; refuses the next few if asked to.
+	private static final class FakeGatt implements GattOperationQueue.Target {
+		final List<GattOperationQueue.Operation> started =
+				new ArrayList<GattOperationQueue.Operation>();
+		int refuse;
+
+		@Override
+		public boolean execute(GattOperationQueue.Operation op) {
+			if (refuse > 0) {
+				refuse--;
+				return false;
+			}
+			started.add(op);
+			return true;
+		}
+	}
+
+	// Runs scheduled tasks only when the test advances the clock.
+	private static final class ManualTimer implements GattOperationQueue.Timer {
+		private final List<Runnable> mTasks = new ArrayList<Runnable>();
+		private final List<Long> mDue = new ArrayList<Long>();
+		private long mNow;
+
+		@Override
+		public void schedule(Runnable task, long delayMs) {
+			mTasks.add(task);
+			mDue.add(mNow + delayMs);
+		}
+
+		@Override
+		public void cancel(Runnable task) {
+			for (int i = mTasks.size() - 1; i >= 0; i--) {
+				if (mTasks.get(i) == task) {
+					mTasks.remove(i);
+					mDue.remove(i);
+				}
+			}
+		}
+
+		void advance(long ms) {
+			final long end = mNow + ms;
+			while (true) {
+				int next = -1;
+				for (int i = 0; i < mTasks.size(); i++) {
+					if (mDue.get(i) <= end && (next < 0 || mDue.get(i) < mDue.get(next))) {
+						next = i;
+					}
+				}
+				if (next < 0) {
+					break;
+				}
+				mNow = mDue.remove(next);
+				mTasks.remove(next).run();
+			}
+			mNow = end;
+		}
+	}
+
+	private static final class Completions implements GattOperationQueue.Listener {
+		final List<GattOperationQueue.Operation> ops =
+				new ArrayList<GattOperationQueue.Operation>();
+		final List<Integer> statuses = new ArrayList<Integer>();
+
+		@Override
+		public void onOperationComplete(GattOperationQueue.Operation op, int status) {
+			ops.add(op);
+			statuses.add(status);
+		}
+
+		int statusOf(GattOperationQueue.Operation op) {
+			final int i = ops.indexOf(op);
+			return i < 0 ? Integer.MIN_VALUE : statuses.get(i);
+		}
+	}
+
+	private FakeGatt mGatt;
+	private ManualTimer mTimer;
+	private Completions mCompleted;
+	private GattOperationQueue mQueue;
+	private int mFailures;
+
+	private GattOperationQueueCheck() {
+	}
+
+	public static void main(String[] args) {
+		final GattOperationQueueCheck check = new GattOperationQueueCheck();
+		check.serializes();
+		check.retriesErrors();
+		check.retriesTimeouts();
+		check.retriesRefusedStarts();
+		check.pipelinesWritesWithoutResponse();
+		check.clearCancelsEverything();
+		if (check.mFailures > 0) {
+			System.err.println("FAIL: " + check.mFailures + " expectations not met");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private void reset() {
+		mGatt = new FakeGatt();
+		mTimer = new ManualTimer();
+		mCompleted = new Completions();
+		mQueue = new GattOperationQueue(mGatt, mTimer, mCompleted, TIMEOUT_MS, MAX_RETRIES,
+				WINDOW);
+	}
+
+	private void expect(boolean condition, String what) {
+		if (!condition) {
+			System.err.println("  expected " + what);
+			mFailures++;
+		}
+	}
+
+	// One operation at a time, in order, each only after the previous one's callback.
+	private void serializes() {
+		System.out.println("serialization");
+		reset();
+		final Object characteristic = new Object();
+		final Object descriptor = new Object();
+		final GattOperationQueue.Operation mtu = mQueue.requestMtu(247);
+		final GattOperationQueue.Operation discover = mQueue.discoverServices();
+		final GattOperationQueue.Operation read = mQueue.read(characteristic);
+		final GattOperationQueue.Operation subscribe =
+				mQueue.writeDescriptor(descriptor, new byte[] {1, 0});
+		expect(mGatt.started.size() == 1 && mGatt.started.get(0) == mtu, "only the MTU request");
+		mQueue.onServicesDiscovered(GattOperationQueue.STATUS_SUCCESS);
+		expect(mGatt.started.size() == 1, "a callback for another operation to be ignored");
+		mQueue.onMtuChanged(GattOperationQueue.STATUS_SUCCESS);
+		expect(mGatt.started.size() == 2 && mGatt.started.get(1) == discover, "discovery next");
+		mQueue.onServicesDiscovered(GattOperationQueue.STATUS_SUCCESS);
+		expect(mGatt.started.size() == 3 && mGatt.started.get(2) == read, "the read next");
+		mQueue.onCharacteristicRead(characteristic, GattOperationQueue.STATUS_SUCCESS);
+		expect(mGatt.started.size() == 4 && mGatt.started.get(3) == subscribe,
+				"the descriptor write next");
+		mQueue.onDescriptorWrite(descriptor, GattOperationQueue.STATUS_SUCCESS);
+		expect(mCompleted.ops.size() == 4 && mCompleted.ops.get(0) == mtu
+				&& mCompleted.ops.get(3) == subscribe, "completions in queue order");
+		expect(!mCompleted.statuses.contains(Integer.valueOf(GATT_ERROR))
+				&& mQueue.isIdle(), "all successful and the queue idle");
+	}
+
+	// An error status restarts the operation until the retries run out.
+	private void retriesErrors() {
+		System.out.println("retry on error");
+		reset();
+		final Object characteristic = new Object();
+		final GattOperationQueue.Operation read = mQueue.read(characteristic);
+		mQueue.onCharacteristicRead(characteristic, GATT_ERROR);
+		expect(mGatt.started.size() == 2 && read.getAttempts() == 2, "a second attempt");
+		mQueue.onCharacteristicRead(characteristic, GattOperationQueue.STATUS_SUCCESS);
+		expect(mCompleted.statusOf(read) == GattOperationQueue.STATUS_SUCCESS,
+				"success on the second attempt");
+
+		final GattOperationQueue.Operation write = mQueue.write(characteristic, new byte[] {1});
+		final GattOperationQueue.Operation next = mQueue.read(characteristic);
+		for (int i = 0; i <= MAX_RETRIES; i++) {
+			mQueue.onCharacteristicWrite(characteristic, GATT_ERROR);
+		}
+		expect(write.getAttempts() == MAX_RETRIES + 1
+				&& mCompleted.statusOf(write) == GATT_ERROR, "the error after all retries");
+		expect(mGatt.started.get(mGatt.started.size() - 1) == next,
+				"the queue to move on after a failure");
+	}
+
+	// A missing callback times out and restarts the operation until the retries run out.
+	private void retriesTimeouts() {
+		System.out.println("timeout and retry");
+		reset();
+		final Object descriptor = new Object();
+		final GattOperationQueue.Operation subscribe =
+				mQueue.writeDescriptor(descriptor, new byte[] {1, 0});
+		final GattOperationQueue.Operation discover = mQueue.discoverServices();
+		mTimer.advance(TIMEOUT_MS - 1);
+		expect(subscribe.getAttempts() == 1, "no retry before the timeout");
+		mTimer.advance(1);
+		expect(subscribe.getAttempts() == 2, "a retry at the timeout");
+		mTimer.advance(TIMEOUT_MS * MAX_RETRIES);
+		expect(mCompleted.statusOf(subscribe) == GattOperationQueue.STATUS_TIMEOUT,
+				"STATUS_TIMEOUT after all retries");
+		expect(mGatt.started.get(mGatt.started.size() - 1) == discover,
+				"the next operation started after the timeout");
+		// A callback for the abandoned operation must not complete the current one.
+		mQueue.onDescriptorWrite(descriptor, GattOperationQueue.STATUS_SUCCESS);
+		expect(mCompleted.statusOf(discover) == Integer.MIN_VALUE, "a late callback ignored");
+		mQueue.onServicesDiscovered(GattOperationQueue.STATUS_SUCCESS);
+		expect(mCompleted.statusOf(discover) == GattOperationQueue.STATUS_SUCCESS
+				&& mQueue.isIdle(), "discovery to complete normally");
+	}
+
+	// An operation the stack refuses is started again shortly after, within the retry limit.
+	private void retriesRefusedStarts() {
+		System.out.println("refused start");
+		reset();
+		final Object characteristic = new Object();
+		mGatt.refuse = 2;
+		final GattOperationQueue.Operation read = mQueue.read(characteristic);
+		expect(mGatt.started.isEmpty(), "the first start refused");
+		mTimer.advance(RETRY_DELAY_MS);
+		expect(mGatt.started.isEmpty(), "the second start refused");
+		mTimer.advance(RETRY_DELAY_MS);
+		expect(mGatt.started.size() == 1 && read.getAttempts() == 3, "the third start taken");
+		mQueue.onCharacteristicRead(characteristic, GattOperationQueue.STATUS_SUCCESS);
+		expect(mCompleted.statusOf(read) == GattOperationQueue.STATUS_SUCCESS,
+				"success after refused starts");
+
+		mGatt.refuse = Integer.MAX_VALUE;
+		final GattOperationQueue.Operation refused = mQueue.read(characteristic);
+		mTimer.advance(RETRY_DELAY_MS * (MAX_RETRIES + 1));
+		expect(mCompleted.statusOf(refused) == GattOperationQueue.STATUS_NOT_STARTED,
+				"STATUS_NOT_STARTED once the retries are used up");
+		expect(mQueue.isIdle(), "the queue idle after giving up");
+	}
+
+	// Writes without response are started back to back up to the window; an operation that
+	// needs a response waits until they have all been acknowledged.
+	private void pipelinesWritesWithoutResponse() {
+		System.out.println("write-without-response window");
+		reset();
+		final Object characteristic = new Object();
+		final List<GattOperationQueue.Operation> writes =
+				new ArrayList<GattOperationQueue.Operation>();
+		for (int i = 0; i < WINDOW + 2; i++) {
+			writes.add(mQueue.writeNoResponse(characteristic, new byte[] {(byte) i}));
+		}
+		final GattOperationQueue.Operation read = mQueue.read(characteristic);
+		expect(mGatt.started.size() == WINDOW, "a full window started at once");
+		mQueue.onCharacteristicWrite(characteristic, GattOperationQueue.STATUS_SUCCESS);
+		expect(mGatt.started.size() == WINDOW + 1, "one more write per acknowledgement");
+		mQueue.onCharacteristicWrite(characteristic, GattOperationQueue.STATUS_SUCCESS);
+		expect(mGatt.started.size() == WINDOW + 2 && !mGatt.started.contains(read),
+				"the read held back while writes are in flight");
+		for (int i = 0; i < WINDOW; i++) {
+			mQueue.onCharacteristicWrite(characteristic, GattOperationQueue.STATUS_SUCCESS);
+		}
+		expect(mGatt.started.size() == WINDOW + 3 && mGatt.started.get(WINDOW + 2) == read,
+				"the read started once the pipeline drained");
+		boolean ordered = true;
+		for (int i = 0; i < writes.size(); i++) {
+			ordered &= mCompleted.ops.get(i) == writes.get(i);
+		}
+		expect(ordered, "writes acknowledged in order");
+
+		// Writes the stack never acknowledges time out together.
+		reset();
+		mQueue.writeNoResponse(characteristic, new byte[] {1});
+		mQueue.writeNoResponse(characteristic, new byte[] {2});
+		final GattOperationQueue.Operation after = mQueue.read(characteristic);
+		mTimer.advance(TIMEOUT_MS);
+		expect(mCompleted.statuses.size() == 2
+				&& mCompleted.statuses.get(0) == GattOperationQueue.STATUS_TIMEOUT
+				&& mCompleted.statuses.get(1) == GattOperationQueue.STATUS_TIMEOUT,
+				"unacknowledged writes to time out");
+		expect(mGatt.started.get(mGatt.started.size() - 1) == after,
+				"the read started after the timeout");
+	}
+
+	// clear() reports everything queued or in flight cancelled and leaves nothing scheduled.
+	private void clearCancelsEverything() {
+		System.out.println("clear");
+		reset();
+		final Object characteristic = new Object();
+		mQueue.writeNoResponse(characteristic, new byte[] {1});
+		mQueue.writeNoResponse(characteristic, new byte[] {2});
+		mQueue.read(characteristic);
+		mQueue.discoverServices();
+		expect(mQueue.size() == 4, "four operations queued");
+		mQueue.clear();
+		expect(mQueue.isIdle() && mQueue.size() == 0, "an idle queue after clear");
+		boolean cancelled = mCompleted.statuses.size() == 4;
+		for (Iterator<Integer> i = mCompleted.statuses.iterator(); i.hasNext();) {
+			cancelled &= i.next() == GattOperationQueue.STATUS_CANCELLED;
+		}
+		expect(cancelled, "every operation reported STATUS_CANCELLED");
+		final int started = mGatt.started.size();
+		mTimer.advance(TIMEOUT_MS * (MAX_RETRIES + 2));
+		mQueue.onCharacteristicWrite(characteristic, GattOperationQueue.STATUS_SUCCESS);
+		expect(mGatt.started.size() == started && mCompleted.statuses.size() == 4,
+				"no retries or completions after clear");
+		final GattOperationQueue.Operation read = mQueue.read(characteristic);
+		expect(mGatt.started.get(mGatt.started.size() - 1) == read,
+				"new operations to start after clear");
+	}
+}
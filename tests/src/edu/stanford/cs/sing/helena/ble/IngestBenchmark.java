@@ -0,0 +1,375 @@
+package edu.stanford.cs.sing.helena.ble;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Random;
+
+import edu.stanford.cs.sing.common.bench.AllocationMeter;
+import edu.stanford.cs.sing.common.helper.ByteWork;
+import edu.stanford.cs.sing.common.helper.IntIndexMap;
+import edu.stanford.cs.sing.common.helper.TimeWorks;
+import edu.stanford.cs.sing.helena.nodes.FireArray;
+import edu.stanford.cs.sing.helena.nodes.Firestorm;
+
+/**
+ * Time and allocation per operation of the code that runs for every notification, on a
+ * desktop JVM with the app and test classes on the class path:
+ *
+ * <pre>
+ *   java -cp bin/classes:tests/bin/classes \
+ *       edu.stanford.cs.sing.helena.ble.IngestBenchmark [milliseconds]
+ * </pre>
+ *
+ * <p>Each path is warmed up until the model is in steady state, then run for the given time,
+ * one second by default, with receive times taken from the clock as the service does. The
+ * ByteWork converters are measured both on a copy made with getBytes and in place. HotSpot
+ * removes short-lived copies that ART keeps, so add -XX:-DoEscapeAnalysis to see what the
+ * device allocates. Allocation is left out on VMs that cannot count it per thread.</p>
+ *
+ * <p>Some cases keep the code they replaced as a baseline. FireArray used to find firestorms
+ * through an android.util.SparseArray, repeated here by {@link SparseArrayLookup}, and
+ * TimeWorks formatted every time stamp with a new SimpleDateFormat.</p>
+ */
+public final class IngestBenchmark {
+
+	private static final long DEFAULT_MEASURE_MS = 1000;
+	// Several retention sweeps, so the model has filled its budget before it is measured.
+	private static final long WARMUP_MS = 3000;
+	private static final int BATCH = 1 << 12;
+	private static final int FRAMES = 64;
+	private static final int FIRESTORMS = 5000;
+	private static final int RECORDS = ListedDeviceDecoder.MAX_FRAME_SIZE
+			/ ListedDeviceDecoder.RECORD_SIZE;
+
+	// Read after every run, so the JIT cannot drop the measured work.
+	static volatile long sSink;
+
+	private abstract static class Case {
+		final String name;
+
+		Case(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Runs the path ops times.
+		 *
+		 * @return a value depending on every result
+		 */
+		abstract long run(int ops);
+	}
+
+	// The binary search over sorted keys of android.util.SparseArray, which FireArray used
+	// before IntIndexMap.
+	private static final class SparseArrayLookup<E> {
+		private int[] mKeys = new int[10];
+		private Object[] mValues = new Object[10];
+		private int mSize;
+
+		@SuppressWarnings("unchecked")
+		E get(int key) {
+			final int i = binarySearch(key);
+			return i < 0 ? null : (E) mValues[i];
+		}
+
+		void put(int key, E value) {
+			int i = binarySearch(key);
+			if (i >= 0) {
+				mValues[i] = value;
+				return;
+			}
+			i = ~i;
+			if (mSize == mKeys.length) {
+				final int[] keys = new int[mSize * 2];
+				final Object[] values = new Object[mSize * 2];
+				System.arraycopy(mKeys, 0, keys, 0, mSize);
+				System.arraycopy(mValues, 0, values, 0, mSize);
+				mKeys = keys;
+				mValues = values;
+			}
+			System.arraycopy(mKeys, i, mKeys, i + 1, mSize - i);
+			System.arraycopy(mValues, i, mValues, i + 1, mSize - i);
+			mKeys[i] = key;
+			mValues[i] = value;
+			mSize++;
+		}
+
+		private int binarySearch(int key) {
+			int lo = 0;
+			int hi = mSize - 1;
+			while (lo <= hi) {
+				final int mid = (lo + hi) >>> 1;
+				final int midKey = mKeys[mid];
+				if (midKey < key) {
+					lo = mid + 1;
+				} else if (midKey > key) {
+					hi = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+			return ~lo;
+		}
+	}
+
+	private final byte[][] mFrames = new byte[FRAMES][];
+	private final int[] mIds = new int[BATCH];
+	private final AllocationMeter mMeter = new AllocationMeter();
+
+	private IngestBenchmark() {
+		final Random random = new Random(1);
+		for (int i = 0; i < BATCH; i++) {
+			mIds[i] = nextId(random);
+		}
+		for (int i = 0; i < FRAMES; i++) {
+			final byte[] frame = new byte[RECORDS * ListedDeviceDecoder.RECORD_SIZE];
+			for (int offset = 0; offset < frame.length; offset += ListedDeviceDecoder.RECORD_SIZE) {
+				final int id = nextId(random);
+				frame[offset] = (byte) (id >> 8);
+				frame[offset + 1] = (byte) id;
+				frame[offset + 2] = (byte) random.nextInt(0x100);
+			}
+			mFrames[i] = frame;
+		}
+	}
+
+	// A few firestorms report most, as from a real gateway.
+	private static int nextId(Random random) {
+		final double r = random.nextDouble();
+		return (int) (FIRESTORMS * r * r * r);
+	}
+
+	public static void main(String[] args) {
+		final long measureMs = args.length > 0 ? Long.parseLong(args[0]) : DEFAULT_MEASURE_MS;
+		new IngestBenchmark().run(measureMs);
+	}
+
+	private void run(long measureMs) {
+		final Case[] cases = cases();
+		System.out.printf("%-56s %10s %10s%n", "Benchmark", "ns/op", "B/op");
+		for (Case c : cases) {
+			measure(c, WARMUP_MS);
+			final long[] result = measure(c, measureMs);
+			final double nanosPerOp = (double) result[0] / result[1];
+			if (mMeter.isSupported()) {
+				System.out.printf("%-56s %10.1f %10.2f%n", c.name, nanosPerOp,
+						(double) result[2] / result[1]);
+			} else {
+				System.out.printf("%-56s %10.1f %10s%n", c.name, nanosPerOp, "-");
+			}
+		}
+	}
+
+	// Returns elapsed nanoseconds, operations and bytes allocated.
+	private long[] measure(Case c, long ms) {
+		final long allocated = mMeter.allocatedBytes();
+		final long start = System.nanoTime();
+		final long end = start + ms * 1000000L;
+		long ops = 0;
+		long now;
+		do {
+			sSink += c.run(BATCH);
+			ops += BATCH;
+			now = System.nanoTime();
+		} while (now < end);
+		return new long[] {now - start, ops, mMeter.allocatedSince(allocated)};
+	}
+
+	private Case[] cases() {
+		final FireArray fires = new FireArray();
+		final FireArray ingestFires = new FireArray();
+		final Firestorm firestorm = new Firestorm(1, 1, 1000);
+		// Both lookups hold every firestorm, added in the order the first reports arrive.
+		final ArrayList<Firestorm> list = new ArrayList<Firestorm>();
+		final IntIndexMap index = new IntIndexMap();
+		final SparseArrayLookup<Firestorm> sparse = new SparseArrayLookup<Firestorm>();
+		final Random random = new Random(2);
+		final char[] time = new char[TimeWorks.TIME_LENGTH];
+		while (list.size() < FIRESTORMS) {
+			final int id = random.nextInt(FIRESTORMS);
+			if (sparse.get(Firestorm.key(1, id)) == null) {
+				final Firestorm fire = new Firestorm(1, id, 1);
+				index.put(fire.key(), list.size());
+				list.add(fire);
+				sparse.put(fire.key(), fire);
+			}
+		}
+		return new Case[] {
+			new Case("ByteWork.getBytes") {
+				@Override
+				long run(int ops) {
+					long sum = 0;
+					for (int i = 0; i < ops; i++) {
+						final int offset = i % (RECORDS - 1) * ListedDeviceDecoder.RECORD_SIZE;
+						sum += ByteWork.getBytes(mFrames[i & (FRAMES - 1)], offset, offset + 1)[0];
+					}
+					return sum;
+				}
+			},
+			new Case("ByteWork.convertTwoBytesToInt(getBytes(...))") {
+				@Override
+				long run(int ops) {
+					long sum = 0;
+					for (int i = 0; i < ops; i++) {
+						final int offset = i % (RECORDS - 1) * ListedDeviceDecoder.RECORD_SIZE;
+						sum += ByteWork.convertTwoBytesToInt(
+								ByteWork.getBytes(mFrames[i & (FRAMES - 1)], offset, offset + 1));
+					}
+					return sum;
+				}
+			},
+			new Case("ByteWork.convertTwoBytesToInt(bytes, offset)") {
+				@Override
+				long run(int ops) {
+					long sum = 0;
+					for (int i = 0; i < ops; i++) {
+						final int offset = i % (RECORDS - 1) * ListedDeviceDecoder.RECORD_SIZE;
+						sum += ByteWork.convertTwoBytesToInt(mFrames[i & (FRAMES - 1)], offset);
+					}
+					return sum;
+				}
+			},
+			new Case("ByteWork.convertFourUnsignedBytesToLong(getBytes(...))") {
+				@Override
+				long run(int ops) {
+					long sum = 0;
+					for (int i = 0; i < ops; i++) {
+						final int offset = i % (RECORDS - 2) * ListedDeviceDecoder.RECORD_SIZE;
+						sum += ByteWork.convertFourUnsignedBytesToLong(
+								ByteWork.getBytes(mFrames[i & (FRAMES - 1)], offset, offset + 3));
+					}
+					return sum;
+				}
+			},
+			new Case("ByteWork.convertFourUnsignedBytesToLong(bytes, offset)") {
+				@Override
+				long run(int ops) {
+					long sum = 0;
+					for (int i = 0; i < ops; i++) {
+						final int offset = i % (RECORDS - 2) * ListedDeviceDecoder.RECORD_SIZE;
+						sum += ByteWork.convertFourUnsignedBytesToLong(mFrames[i & (FRAMES - 1)],
+								offset);
+					}
+					return sum;
+				}
+			},
+			// Per record, the decoding half of BluetoothLeService.ingest.
+			new Case("ingest: record to key") {
+				@Override
+				long run(int ops) {
+					long sum = 0;
+					for (int i = 0; i < ops; i += RECORDS) {
+						final byte[] frame = mFrames[i / RECORDS & (FRAMES - 1)];
+						if (!ListedDeviceDecoder.isValid(frame, frame.length)) {
+							continue;
+						}
+						final int end = ListedDeviceDecoder.recordCount(frame.length)
+								* ListedDeviceDecoder.RECORD_SIZE;
+						for (int offset = 0; offset < end;
+								offset += ListedDeviceDecoder.RECORD_SIZE) {
+							sum += Firestorm.key(1, ListedDeviceDecoder.firestormId(frame, offset))
+									^ ListedDeviceDecoder.observed(frame, offset);
+						}
+					}
+					return sum;
+				}
+			},
+			// Per record, all of BluetoothLeService.ingest.
+			new Case("ingest: record to model") {
+				@Override
+				long run(int ops) {
+					for (int i = 0; i < ops; i += RECORDS) {
+						final byte[] frame = mFrames[i / RECORDS & (FRAMES - 1)];
+						if (!ListedDeviceDecoder.isValid(frame, frame.length)) {
+							continue;
+						}
+						final long time = System.currentTimeMillis();
+						final int end = ListedDeviceDecoder.recordCount(frame.length)
+								* ListedDeviceDecoder.RECORD_SIZE;
+						for (int offset = 0; offset < end;
+								offset += ListedDeviceDecoder.RECORD_SIZE) {
+							ingestFires.addDeviceData(1, ListedDeviceDecoder.firestormId(frame,
+									offset), ListedDeviceDecoder.observed(frame, offset), time);
+						}
+					}
+					return ingestFires.getRetainedObservationCount();
+				}
+			},
+			new Case("firestorm lookup: IntIndexMap and list") {
+				@Override
+				long run(int ops) {
+					long sum = 0;
+					for (int i = 0; i < ops; i++) {
+						sum += list.get(index.get(Firestorm.key(1, mIds[i & (BATCH - 1)]))).id;
+					}
+					return sum;
+				}
+			},
+			new Case("firestorm lookup: SparseArray (baseline)") {
+				@Override
+				long run(int ops) {
+					long sum = 0;
+					for (int i = 0; i < ops; i++) {
+						sum += sparse.get(Firestorm.key(1, mIds[i & (BATCH - 1)])).id;
+					}
+					return sum;
+				}
+			},
+			new Case("FireArray.addDeviceData") {
+				@Override
+				long run(int ops) {
+					final long time = System.currentTimeMillis();
+					for (int i = 0; i < ops; i++) {
+						fires.addDeviceData(1, mIds[i & (BATCH - 1)], i & 0xFF, time);
+					}
+					return fires.getRetainedObservationCount();
+				}
+			},
+			new Case("Firestorm.addObservation") {
+				@Override
+				long run(int ops) {
+					final long time = System.currentTimeMillis();
+					for (int i = 0; i < ops; i++) {
+						firestorm.addObservation(i & 0xFF, time);
+					}
+					return firestorm.getLastUpdated();
+				}
+			},
+			new Case("TimeWorks.getCurrentTimeStamp") {
+				@Override
+				long run(int ops) {
+					long sum = 0;
+					for (int i = 0; i < ops; i++) {
+						sum += TimeWorks.getCurrentTimeStamp().length();
+					}
+					return sum;
+				}
+			},
+			// As TimeWorks.getCurrentTimeStamp did before it cached the current second.
+			new Case("SimpleDateFormat HH:mm:ss per call (baseline)") {
+				@Override
+				long run(int ops) {
+					long sum = 0;
+					for (int i = 0; i < ops; i++) {
+						final SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss");
+						sum += format.format(new Date(System.currentTimeMillis())).length();
+					}
+					return sum;
+				}
+			},
+			// A different second every call, as when formatting stored receive times.
+			new Case("TimeWorks.formatTime(millis, char[], offset)") {
+				@Override
+				long run(int ops) {
+					final long start = System.currentTimeMillis();
+					long sum = 0;
+					for (int i = 0; i < ops; i++) {
+						sum += TimeWorks.formatTime(start + i * 1000L, time, 0) + time[7];
+					}
+					return sum;
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,75 @@
+package edu.stanford.cs.sing.helena.ble;
+
+import java.util.Random;
+
+import edu.stanford.cs.sing.common.bench.AllocationMeter;
+
+/**
+ * Checks that decoding listed-device frames allocates nothing once the JIT has warmed up.
+ * Needs a HotSpot VM, which counts allocations per thread:
+ *
+ * <pre>
+ *   java -cp bin/classes:tests/bin/classes \
+ *       edu.stanford.cs.sing.helena.ble.ListedDeviceDecoderCheck
+ * </pre>
+ *
+ * <p>Exits with status 1 if a single byte was allocated while decoding, 2 if the VM cannot
+ * count allocations.</p>
+ */
+public final class ListedDeviceDecoderCheck {
+
+	private static final int FRAMES = 64;
+	private static final int WARMUP_ROUNDS = 20000;
+	private static final int MEASURED_ROUNDS = 100000;
+
+	private ListedDeviceDecoderCheck() {
+	}
+
+	public static void main(String[] args) {
+		final AllocationMeter meter = new AllocationMeter();
+		if (!meter.isSupported()) {
+			System.err.println("This VM does not count allocations per thread");
+			System.exit(2);
+		}
+		// Frames of every length from one record to a full packed frame.
+		final byte[][] frames = new byte[FRAMES][];
+		final Random random = new Random(1);
+		for (int i = 0; i < FRAMES; i++) {
+			frames[i] = new byte[ListedDeviceDecoder.RECORD_SIZE
+					+ random.nextInt(ListedDeviceDecoder.MAX_FRAME_SIZE - 2)];
+			random.nextBytes(frames[i]);
+		}
+		long checksum = decode(frames, WARMUP_ROUNDS);
+		final long start = meter.allocatedBytes();
+		checksum += decode(frames, MEASURED_ROUNDS);
+		final long allocated = meter.allocatedSince(start);
+		final long decoded = (long) FRAMES * MEASURED_ROUNDS;
+		System.out.println("Decoded " + decoded + " frames, " + allocated
+				+ " bytes allocated (checksum " + checksum + ")");
+		if (allocated != 0) {
+			System.err.println("FAIL: decoding allocated");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	// The same loop as the service's ingest, summing instead of updating the model.
+	private static long decode(byte[][] frames, int rounds) {
+		long sum = 0;
+		for (int round = 0; round < rounds; round++) {
+			for (int i = 0; i < frames.length; i++) {
+				final byte[] frame = frames[i];
+				if (!ListedDeviceDecoder.isValid(frame, frame.length)) {
+					continue;
+				}
+				final int end = ListedDeviceDecoder.recordCount(frame.length)
+						* ListedDeviceDecoder.RECORD_SIZE;
+				for (int offset = 0; offset < end; offset += ListedDeviceDecoder.RECORD_SIZE) {
+					sum += ListedDeviceDecoder.firestormId(frame, offset)
+							^ ListedDeviceDecoder.observed(frame, offset);
+				}
+			}
+		}
+		return sum;
+	}
+}
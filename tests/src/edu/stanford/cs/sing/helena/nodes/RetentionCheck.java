@@ -0,0 +1,127 @@
+package edu.stanford.cs.sing.helena.nodes;
+
+import edu.stanford.cs.sing.helena.ble.GatewaySimulator;
+import edu.stanford.cs.sing.helena.ble.ListedDeviceDecoder;
+
+/**
+ * Long-run check that the {@link RetentionPolicy} keeps the heap flat, run with a small heap
+ * so growth shows:
+ *
+ * <pre>
+ *   java -Xmx256m -cp bin/classes:tests/bin/classes \
+ *       edu.stanford.cs.sing.helena.nodes.RetentionCheck [frames]
+ * </pre>
+ *
+ * <p>Feeds simulated packed frames into a {@link FireArray} with the default policy, one
+ * millisecond of receive time per frame, and moves to a new gateway every million frames so
+ * firestorms keep going idle and being evicted. After the warm-up, the heap and the column
+ * storage of the model are sampled every half million frames. Exits with status 1 if the
+ * storage exceeds what the global budget allows, or if the heap of the second half of the
+ * run peaks above that of the first half by more than the slack.</p>
+ */
+public final class RetentionCheck {
+
+	private static final long DEFAULT_FRAMES = 6000000;
+	private static final int RECORDS_PER_FRAME = 8;
+	private static final int FIRESTORMS = 5000;
+	private static final long FRAMES_PER_GATEWAY = 1000000;
+	private static final long SAMPLE_EVERY = 500000;
+	private static final long WARMUP_FRAMES = 1000000;
+	// Heap noise allowed between the two halves of the run.
+	private static final double HEAP_SLACK = 1.1;
+	private static final int BYTES_PER_OBSERVATION = 9;
+
+	private FireArray mFires;
+	private int mGateway = 1;
+	private long mTime = 1000000000000L;
+
+	private RetentionCheck() {
+	}
+
+	public static void main(String[] args) {
+		final long frames = args.length > 0 ? Long.parseLong(args[0]) : DEFAULT_FRAMES;
+		System.exit(new RetentionCheck().run(frames) ? 0 : 1);
+	}
+
+	private boolean run(long frames) {
+		final RetentionPolicy policy = RetentionPolicy.DEFAULT;
+		mFires = new FireArray(policy);
+		final GatewaySimulator simulator = new GatewaySimulator(
+				new GatewaySimulator.FrameTarget() {
+					@Override
+					public void onListedDeviceFrame(byte[] frame) {
+						ingest(frame);
+					}
+				}, FIRESTORMS, 1, 1, RECORDS_PER_FRAME, 0xFF,
+				GatewaySimulator.Distribution.SKEWED, 1);
+		// Storage is allocated in powers of two, so it may hold up to twice the budget, and
+		// never less than the initial capacity per firestorm.
+		final long minimum = new ObservationArray(policy.getMaxObservations()).capacity();
+		long firstHalfHeap = 0;
+		long secondHalfHeap = 0;
+		boolean ok = true;
+		for (long sent = 0; sent < frames; sent += SAMPLE_EVERY) {
+			simulator.emit(Math.min(SAMPLE_EVERY, frames - sent));
+			if (sent + SAMPLE_EVERY < WARMUP_FRAMES) {
+				continue;
+			}
+			final long heap = usedHeap();
+			final long storage = storageBytes();
+			final long storageLimit = (policy.getMaxTotalObservations() * 2
+					+ mFires.size() * minimum) * BYTES_PER_OBSERVATION;
+			if (sent < (frames + WARMUP_FRAMES) / 2) {
+				firstHalfHeap = Math.max(firstHalfHeap, heap);
+			} else {
+				secondHalfHeap = Math.max(secondHalfHeap, heap);
+			}
+			System.out.printf("%9d frames  %5d firestorms  %8d observations  storage %6.1f MB"
+					+ "  heap %6.1f MB  evicted %d firestorms, %d observations%n",
+					sent + SAMPLE_EVERY, mFires.size(), mFires.getRetainedObservationCount(),
+					storage / 1e6, heap / 1e6, mFires.getEvictedFirestormCount(),
+					mFires.getEvictedObservationCount());
+			if (storage > storageLimit) {
+				System.out.printf("FAIL: storage over the %.1f MB the budget allows%n",
+						storageLimit / 1e6);
+				ok = false;
+			}
+		}
+		System.out.printf("Peak heap %.1f MB in the first half, %.1f MB in the second%n",
+				firstHalfHeap / 1e6, secondHalfHeap / 1e6);
+		if (secondHalfHeap > firstHalfHeap * HEAP_SLACK) {
+			System.out.println("FAIL: heap grew");
+			ok = false;
+		}
+		if (ok) {
+			System.out.println("OK");
+		}
+		return ok;
+	}
+
+	private void ingest(byte[] frame) {
+		mTime++;
+		if (mTime % FRAMES_PER_GATEWAY == 0) {
+			mGateway++;
+		}
+		for (int offset = 0; offset < frame.length; offset += ListedDeviceDecoder.RECORD_SIZE) {
+			mFires.addDeviceData(mGateway, ListedDeviceDecoder.firestormId(frame, offset),
+					ListedDeviceDecoder.observed(frame, offset), mTime);
+		}
+	}
+
+	// Bytes held by the column arrays of all firestorms.
+	private long storageBytes() {
+		long bytes = 0;
+		for (int i = 0; i < mFires.size(); i++) {
+			bytes += (long) mFires.get(i).getObservationList().capacity() * BYTES_PER_OBSERVATION;
+		}
+		return bytes;
+	}
+
+	private static long usedHeap() {
+		final Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
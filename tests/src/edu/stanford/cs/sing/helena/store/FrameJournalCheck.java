@@ -0,0 +1,277 @@
+package edu.stanford.cs.sing.helena.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import edu.stanford.cs.sing.helena.ble.FrameRingBuffer;
+
+/**
+ * Writes {@link FrameJournal}s into a scratch directory and replays them, covering segment
+ * rollover, retention of the newest segments, and recovery from a corrupt or truncated tail:
+ *
+ * <pre>
+ *   java -cp bin/classes:tests/bin/classes \
+ *       edu.stanford.cs.sing.helena.store.FrameJournalCheck
+ * </pre>
+ *
+ * <p>Every replay must return exactly the intact records, in order, with their gateway,
+ * receive time and payload. Exits with status 1 if any expectation fails.</p>
+ */
+public final class FrameJournalCheck {
+
+	private static final int SMALL_SEGMENT = 512;
+	private static final int LARGE_SEGMENT = 64 << 10;
+	private static final int MAX_FRAME = 60;
+	private static final int HEADER_SIZE = 4 + 8;
+	private static final int TRAILER_SIZE = 4;
+
+	private static final class Record {
+		final int gateway;
+		final long receivedAt;
+		final byte[] frame;
+
+		Record(int gateway, long receivedAt, byte[] frame) {
+			this.gateway = gateway;
+			this.receivedAt = receivedAt;
+			this.frame = frame;
+		}
+
+		int size() {
+			return HEADER_SIZE + frame.length + TRAILER_SIZE;
+		}
+	}
+
+	// Collects replayed records, copying the reused frame array.
+	private static final class Collector implements FrameRingBuffer.FrameConsumer {
+		final List<Record> records = new ArrayList<Record>();
+
+		@Override
+		public void onFrame(int gateway, byte[] frame, int length, long receivedAt) {
+			records.add(new Record(gateway, receivedAt, Arrays.copyOf(frame, length)));
+		}
+	}
+
+	private final Random mRandom = new Random(1);
+	private final File mRoot;
+	private long mClock = 1400000000000L;
+	private int mDirs;
+	private int mFailures;
+
+	private FrameJournalCheck(File root) {
+		mRoot = root;
+	}
+
+	public static void main(String[] args) throws IOException {
+		final File root = File.createTempFile("FrameJournalCheck", "");
+		if (!root.delete() || !root.mkdir()) {
+			throw new IOException("Cannot create " + root);
+		}
+		final FrameJournalCheck check = new FrameJournalCheck(root);
+		try {
+			check.rollsOver();
+			check.keepsNewestSegments();
+			check.dropsCorruptTail();
+			check.dropsTruncatedTail();
+			check.ignoresHalfWrittenRecord();
+		} finally {
+			delete(root);
+		}
+		if (check.mFailures > 0) {
+			System.err.println("FAIL: " + check.mFailures + " expectations not met");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	// Records spread over many segments replay in order.
+	private void rollsOver() throws IOException {
+		System.out.println("segment rollover");
+		final File dir = newDir();
+		final List<Record> written = append(dir, SMALL_SEGMENT, Integer.MAX_VALUE, 500);
+		expect(segments(dir).length > 10, "many segments");
+		expectReplay(dir, written, "all records");
+	}
+
+	// Only the newest segments are kept, and replay returns their records intact.
+	private void keepsNewestSegments() throws IOException {
+		System.out.println("retention");
+		final File dir = newDir();
+		final int maxSegments = 4;
+		final List<Record> written = append(dir, SMALL_SEGMENT, maxSegments, 500);
+		// The retired segments plus the spare prepared for the next rollover.
+		expect(segments(dir).length <= maxSegments + 2, "old segments deleted");
+		final Collector replayed = replay(dir);
+		final int from = written.size() - replayed.records.size();
+		expect(from > 0, "some records dropped with their segments");
+		expectRecords(replayed.records, written.subList(from, written.size()),
+				"the newest records");
+	}
+
+	// A record whose CRC does not match is dropped on replay and overwritten after reopening.
+	private void dropsCorruptTail() throws IOException {
+		System.out.println("corrupt tail");
+		final File dir = newDir();
+		final List<Record> written = append(dir, LARGE_SEGMENT, 2, 200);
+		final Record last = written.get(written.size() - 1);
+		final int offset = offsetOf(written, written.size() - 1);
+		final RandomAccessFile file = new RandomAccessFile(segments(dir)[0], "rw");
+		try {
+			file.seek(offset + HEADER_SIZE + last.frame.length / 2);
+			final int b = file.read();
+			file.seek(offset + HEADER_SIZE + last.frame.length / 2);
+			file.write(b ^ 0x40);
+		} finally {
+			file.close();
+		}
+		final List<Record> intact =
+				new ArrayList<Record>(written.subList(0, written.size() - 1));
+		expectReplay(dir, intact, "records before the corrupt one");
+		intact.addAll(append(dir, LARGE_SEGMENT, 2, 20));
+		expectReplay(dir, intact, "new records in place of the corrupt one");
+	}
+
+	// A segment cut off in the middle of a record loses only that record.
+	private void dropsTruncatedTail() throws IOException {
+		System.out.println("truncated tail");
+		final File dir = newDir();
+		final List<Record> written = append(dir, LARGE_SEGMENT, 2, 200);
+		final int offset = offsetOf(written, written.size() - 1);
+		final RandomAccessFile file = new RandomAccessFile(segments(dir)[0], "rw");
+		try {
+			file.setLength(offset + HEADER_SIZE + 1);
+		} finally {
+			file.close();
+		}
+		final List<Record> intact =
+				new ArrayList<Record>(written.subList(0, written.size() - 1));
+		expectReplay(dir, intact, "records before the truncated one");
+		intact.addAll(append(dir, LARGE_SEGMENT, 2, 20));
+		expectReplay(dir, intact, "new records after the truncated one");
+	}
+
+	// Bytes of a record whose length word was not written yet are ignored and zeroed.
+	private void ignoresHalfWrittenRecord() throws IOException {
+		System.out.println("half-written record");
+		final File dir = newDir();
+		final List<Record> written = append(dir, LARGE_SEGMENT, 2, 200);
+		final int offset = offsetOf(written, written.size());
+		final byte[] garbage = new byte[40];
+		mRandom.nextBytes(garbage);
+		// The length word stays zero, as when a crash hits before the append completes.
+		Arrays.fill(garbage, 0, 4, (byte) 0);
+		final RandomAccessFile file = new RandomAccessFile(segments(dir)[0], "rw");
+		try {
+			file.seek(offset);
+			file.write(garbage);
+		} finally {
+			file.close();
+		}
+		final List<Record> intact = new ArrayList<Record>(written);
+		expectReplay(dir, intact, "all complete records");
+		intact.addAll(append(dir, LARGE_SEGMENT, 2, 20));
+		expectReplay(dir, intact, "new records over the half-written one");
+	}
+
+	// Opens the journal in dir, appends count random records and closes it.
+	private List<Record> append(File dir, int segmentSize, int maxSegments, int count)
+			throws IOException {
+		final List<Record> written = new ArrayList<Record>();
+		final FrameJournal journal = new FrameJournal(dir, segmentSize, maxSegments);
+		try {
+			for (int i = 0; i < count; i++) {
+				final byte[] frame = new byte[1 + mRandom.nextInt(MAX_FRAME)];
+				mRandom.nextBytes(frame);
+				final Record record = new Record(mRandom.nextInt(0x8000), mClock, frame);
+				mClock += mRandom.nextInt(100);
+				// Pass a longer array than the frame, as callers do with reused buffers.
+				final byte[] buffer = Arrays.copyOf(frame, MAX_FRAME + 1);
+				if (journal.append(record.gateway, buffer, frame.length, record.receivedAt)) {
+					written.add(record);
+				} else {
+					expect(false, "append to succeed");
+				}
+			}
+		} finally {
+			journal.close();
+		}
+		return written;
+	}
+
+	private void expectReplay(File dir, List<Record> expected, String what) throws IOException {
+		expectRecords(replay(dir).records, expected, what);
+	}
+
+	private void expectRecords(List<Record> actual, List<Record> expected, String what) {
+		boolean same = actual.size() == expected.size();
+		for (int i = 0; same && i < actual.size(); i++) {
+			final Record a = actual.get(i);
+			final Record e = expected.get(i);
+			same = a.gateway == e.gateway && a.receivedAt == e.receivedAt
+					&& Arrays.equals(a.frame, e.frame);
+		}
+		expect(same, what + ": " + expected.size() + " records, replayed " + actual.size());
+	}
+
+	private static Collector replay(File dir) throws IOException {
+		final Collector collector = new Collector();
+		final long count = FrameJournal.replay(dir, collector);
+		if (count != collector.records.size()) {
+			throw new IllegalStateException("replay count " + count + " but "
+					+ collector.records.size() + " records");
+		}
+		return collector;
+	}
+
+	// Offset of record index in a journal holding only records, all in its first segment.
+	private static int offsetOf(List<Record> records, int index) {
+		int offset = 0;
+		for (int i = 0; i < index; i++) {
+			offset += records.get(i).size();
+		}
+		return offset;
+	}
+
+	// Segment files of dir, oldest first.
+	private static File[] segments(File dir) {
+		final File[] files = dir.listFiles();
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.valueOf(number(a)).compareTo(number(b));
+			}
+		});
+		return files;
+	}
+
+	private static long number(File segment) {
+		final String name = segment.getName();
+		return Long.parseLong(name.substring(name.indexOf('-') + 1, name.indexOf('.')));
+	}
+
+	private File newDir() {
+		return new File(mRoot, "journal-" + mDirs++);
+	}
+
+	private void expect(boolean condition, String what) {
+		if (!condition) {
+			System.err.println("  expected " + what);
+			mFailures++;
+		}
+	}
+
+	private static void delete(File file) {
+		final File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
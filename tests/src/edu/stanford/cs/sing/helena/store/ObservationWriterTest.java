@@ -0,0 +1,92 @@
+package edu.stanford.cs.sing.helena.store;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+/**
+ * Writes observations through an {@link ObservationWriter} into a scratch database: a million
+ * with the default batch size, and a sweep of batch sizes whose rates are logged for comparison.
+ */
+public class ObservationWriterTest extends AndroidTestCase {
+	private final static String TAG = "ObservationWriterTest";
+
+	private static final int ROWS = 1000000;
+	private static final long TIMEOUT_MS = 5 * 60 * 1000;
+	private static final int[] BATCH_SIZES = {1, 16, 128, 512, 2048, 8192};
+	private static final int SWEEP_ROWS = 200000;
+	// A transaction per row is too slow to sweep the full count.
+	private static final int SWEEP_ROWS_UNBATCHED = 20000;
+
+	private Context mContext;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mContext = new RenamingDelegatingContext(getContext(), "test.");
+		mContext.deleteDatabase(ObservationDatabase.DATABASE_NAME);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mContext.deleteDatabase(ObservationDatabase.DATABASE_NAME);
+		super.tearDown();
+	}
+
+	public void testWritesMillionRows() throws Exception {
+		final ObservationDatabase database = new ObservationDatabase(mContext);
+		final ObservationWriter writer = new ObservationWriter(database);
+		try {
+			final long elapsed = write(writer, ROWS, ObservationWriter.DEFAULT_BATCH_SIZE);
+			assertEquals(0, writer.getDroppedCount());
+			assertEquals(ROWS, writer.getWrittenCount());
+			assertEquals(ROWS, DatabaseUtils.queryNumEntries(database.getReadableDatabase(),
+					ObservationDatabase.TABLE_OBSERVATIONS));
+			Log.i(TAG, "Wrote " + ROWS + " rows in " + elapsed + " ms, "
+					+ ROWS * 1000L / Math.max(1, elapsed) + " rows/s");
+		} finally {
+			writer.close();
+		}
+	}
+
+	public void testBatchSizes() throws Exception {
+		for (int batchSize : BATCH_SIZES) {
+			mContext.deleteDatabase(ObservationDatabase.DATABASE_NAME);
+			final int rows = batchSize == 1 ? SWEEP_ROWS_UNBATCHED : SWEEP_ROWS;
+			final ObservationDatabase database = new ObservationDatabase(mContext);
+			final ObservationWriter writer = new ObservationWriter(database, batchSize);
+			try {
+				final long elapsed = write(writer, rows, batchSize);
+				assertEquals(0, writer.getDroppedCount());
+				assertEquals(rows, writer.getWrittenCount());
+				Log.i(TAG, "Batches of " + batchSize + ": " + rows + " rows in " + elapsed
+						+ " ms, " + rows * 1000L / Math.max(1, elapsed) + " rows/s");
+			} finally {
+				writer.close();
+			}
+		}
+	}
+
+	// Writes rows and waits for them to reach the database; returns the elapsed time.
+	private static long write(ObservationWriter writer, int rows, int batchSize)
+			throws InterruptedException {
+		final long start = SystemClock.elapsedRealtime();
+		for (int i = 0; i < rows; i++) {
+			// Stay within the writer's batches, as the BLE notification rate does. Yield rather
+			// than sleep, which would cap small batches at a few rows per millisecond.
+			while (i - writer.getWrittenCount() > 4 * batchSize) {
+				Thread.yield();
+			}
+			writer.onObservation(i & 7, i % 5000, i & 0xFF, 1400000000000L + i);
+		}
+		writer.flush();
+		while (writer.getWrittenCount() + writer.getDroppedCount() < rows) {
+			assertTrue("Timed out writing", SystemClock.elapsedRealtime() - start < TIMEOUT_MS);
+			Thread.sleep(10);
+		}
+		return SystemClock.elapsedRealtime() - start;
+	}
+}